@@ -0,0 +1,66 @@
+/*
+* Copyright 2022 Basis Technology Corp.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.rosette.elasticsearch;
+
+import com.basistech.rosette.dm.Entity;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Mapping the entities of an ADM to what the entities processor stores in the document, for documents with
+ * a few up to many entities.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class EntityMappingBenchmark {
+
+    @Param({"10", "100", "1000"})
+    public int entities;
+
+    @Param({"false", "true"})
+    public boolean includeOffsets;
+
+    private List<Entity> admEntities;
+    private EntitiesProcessor processor;
+
+    @Setup
+    public void setup() throws Exception {
+        admEntities = MockResponses.entities(entities);
+        processor = MockResponses.entitiesProcessor(includeOffsets);
+    }
+
+    @Benchmark
+    public List<Map<String, Object>> transformEntities() {
+        return processor.transformEntities(admEntities, 0);
+    }
+}
@@ -0,0 +1,102 @@
+/*
+* Copyright 2022 Basis Technology Corp.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.rosette.elasticsearch;
+
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.ingest.IngestDocument;
+import org.elasticsearch.ingest.Processor;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A document through a processor end to end: the request is built and sent over the pooled HTTP client to an
+ * in-process {@link StubRosette}, and its response read and stored in the document. Calls are run on the calling
+ * thread, without the cache, batching or retries, so this is the cost of a document that does go out to Rosette.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ExecuteBenchmark {
+
+    @Param({EntitiesProcessor.TYPE, SentimentProcessor.TYPE, CategoriesProcessor.TYPE, LanguageProcessor.TYPE})
+    public String processorType;
+
+    private StubRosette stub;
+    private HttpClientPool httpClientPool;
+    private Processor processor;
+    private Map<String, Object> source;
+
+    @Setup
+    public void setup() throws Exception {
+        stub = new StubRosette();
+        RosetteStats stats = new RosetteStats();
+        httpClientPool = new HttpClientPool(Settings.EMPTY, stats);
+        RosetteApiWrapper rosAPI = new RosetteApiWrapper("benchmark", stub.url(), Runnable::run,
+                RosetteResponseCache.disabled(), RequestBatcher.direct(Runnable::run), httpClientPool,
+                RosetteCircuitBreaker.disabled(), RetryPolicy.none(), HedgePolicy.none(), null, stats);
+
+        Map<String, Processor.Factory> factories = new HashMap<>();
+        factories.put(EntitiesProcessor.TYPE, new EntitiesProcessor.Factory(rosAPI, RosetteResponseCache.disabled()));
+        factories.put(SentimentProcessor.TYPE, new SentimentProcessor.Factory(rosAPI));
+        factories.put(CategoriesProcessor.TYPE, new CategoriesProcessor.Factory(rosAPI));
+        factories.put(LanguageProcessor.TYPE, new LanguageProcessor.Factory(rosAPI, new LocalLanguageIdentifier()));
+        Map<String, Object> config = new HashMap<>();
+        config.put("field", "text");
+        processor = factories.get(processorType).create(factories, "benchmark", null, config);
+
+        source = new HashMap<>();
+        source.put("text", "Original Ghostbuster Dan Aykroyd, who also co-wrote the 1984 Ghostbusters film, "
+                + "couldn't be more pleased with the new all-female Ghostbusters cast.");
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        httpClientPool.close();
+        stub.close();
+    }
+
+    @Benchmark
+    public IngestDocument execute() throws Exception {
+        IngestDocument document = new IngestDocument("index", "_doc", "id", null, null, null, new HashMap<>(source));
+        CompletableFuture<IngestDocument> result = new CompletableFuture<>();
+        processor.execute(document, (processed, e) -> {
+            if (e != null) {
+                result.completeExceptionally(e);
+            } else {
+                result.complete(processed);
+            }
+        });
+        return result.get();
+    }
+}
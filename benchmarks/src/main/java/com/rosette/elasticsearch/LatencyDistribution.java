@@ -0,0 +1,103 @@
+/*
+* Copyright 2022 Basis Technology Corp.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.rosette.elasticsearch;
+
+import java.util.Random;
+
+/**
+ * How long the stub takes to answer a call, parsed from one of:
+ * <ul>
+ *     <li>{@code none}: answers right away</li>
+ *     <li>{@code fixed:<ms>}: always the same</li>
+ *     <li>{@code uniform:<min ms>-<max ms>}: anything in between, as likely</li>
+ *     <li>{@code lognormal:<median ms>,<p99 ms>}: mostly close to the median with a long tail, like a real service</li>
+ * </ul>
+ */
+abstract class LatencyDistribution {
+
+    //Standard normal quantile of the 99th percentile
+    private static final double Z_99 = 2.3263;
+
+    static final LatencyDistribution NONE = new LatencyDistribution("none") {
+        @Override
+        long sampleMillis(Random random) {
+            return 0;
+        }
+    };
+
+    private final String description;
+
+    private LatencyDistribution(String description) {
+        this.description = description;
+    }
+
+    abstract long sampleMillis(Random random);
+
+    static LatencyDistribution parse(String value) {
+        int colon = value.indexOf(':');
+        String kind = colon < 0 ? value : value.substring(0, colon);
+        String[] args = colon < 0 ? new String[0] : value.substring(colon + 1).split("[-,]");
+        try {
+            switch (kind) {
+                case "none":
+                    return NONE;
+                case "fixed":
+                    long fixed = Long.parseLong(args[0].trim());
+                    return new LatencyDistribution(value) {
+                        @Override
+                        long sampleMillis(Random random) {
+                            return fixed;
+                        }
+                    };
+                case "uniform":
+                    long min = Long.parseLong(args[0].trim());
+                    long max = Long.parseLong(args[1].trim());
+                    if (max < min) {
+                        throw new IllegalArgumentException("latency [" + value + "] has a max below its min");
+                    }
+                    return new LatencyDistribution(value) {
+                        @Override
+                        long sampleMillis(Random random) {
+                            return min + (long) (random.nextDouble() * (max - min + 1));
+                        }
+                    };
+                case "lognormal":
+                    double median = Double.parseDouble(args[0].trim());
+                    double p99 = Double.parseDouble(args[1].trim());
+                    if (median <= 0 || p99 < median) {
+                        throw new IllegalArgumentException("latency [" + value + "] needs 0 < median <= p99");
+                    }
+                    double mu = Math.log(median);
+                    double sigma = Math.log(p99 / median) / Z_99;
+                    return new LatencyDistribution(value) {
+                        @Override
+                        long sampleMillis(Random random) {
+                            return Math.round(Math.exp(mu + sigma * random.nextGaussian()));
+                        }
+                    };
+                default:
+                    throw new IllegalArgumentException("unknown latency distribution [" + kind + "]");
+            }
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("can't parse latency [" + value + "]", e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return description;
+    }
+}
@@ -0,0 +1,352 @@
+/*
+* Copyright 2022 Basis Technology Corp.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.rosette.elasticsearch;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpDelete;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpPut;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.util.EntityUtils;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.core.TimeValue;
+import org.elasticsearch.xcontent.json.JsonXContent;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Drives bulk requests through pipelines of the Rosette processors on a running node, with Rosette played by a
+ * {@link StubRosette} that answers with a realistic latency, and reports how many documents the node gets through
+ * at each concurrency, how busy its write (ingest) and rosette thread pools are, and the latency of the bulk
+ * requests.
+ * <p>
+ * The node has to call the stub, i.e. be started with
+ * {@code ROSETTE_API_URL=http://<host>:<stub.port>/rest/worker/v1/}.
+ * Options are given as {@code --name=value}, see {@link #DEFAULTS}.
+ */
+public final class LoadHarness {
+
+    private static final Map<String, String> DEFAULTS;
+
+    static {
+        Map<String, String> defaults = new HashMap<>();
+        defaults.put("es", "http://localhost:9200");
+        defaults.put("stub.host", "0.0.0.0");
+        defaults.put("stub.port", "8181");
+        //Time Rosette takes to answer, see LatencyDistribution
+        defaults.put("latency", "lognormal:80,400");
+        //Share of the calls that fail with a 500
+        defaults.put("error_rate", "0");
+        //How often, and for how long, Rosette throttles all calls with a 429, 0 to never throttle
+        defaults.put("throttle_every", "0");
+        defaults.put("throttle_for", "2s");
+        //Directory the pipeline definitions are read from, and which of them to run (all if empty)
+        defaults.put("processors", "plugin/src/test/resources/it_processors");
+        defaults.put("pipelines", "");
+        defaults.put("concurrency", "1,4,16,64");
+        defaults.put("bulk_size", "50");
+        defaults.put("warmup", "10s");
+        defaults.put("duration", "30s");
+        defaults.put("index", "rosette-load");
+        DEFAULTS = Collections.unmodifiableMap(defaults);
+    }
+
+    //Texts of the documents, each is made unique so the response cache doesn't answer for Rosette
+    private static final String[] TEXTS = {
+        "Original Ghostbuster Dan Aykroyd, who also co-wrote the 1984 Ghostbusters film, couldn't be more pleased "
+                + "with the new all-female Ghostbusters cast.",
+        "Bill Murray will appear in new Ghostbusters film, Dr. Peter Venkman was spotted filming a cameo in Boston "
+                + "this week.",
+        "The European Central Bank left interest rates unchanged on Thursday, and its president said inflation in "
+                + "the euro area should stay close to its target.",
+        "Microsoft and Salesforce are in talks to work together on cloud products, the two companies said in "
+                + "Seattle and San Francisco."
+    };
+
+    private static final ContentType NDJSON = ContentType.create("application/x-ndjson", StandardCharsets.UTF_8);
+
+    private final Map<String, String> options;
+    private final String es;
+    private final CloseableHttpClient client;
+    private final AtomicLong docIds = new AtomicLong();
+
+    private LoadHarness(Map<String, String> options, CloseableHttpClient client) {
+        this.options = options;
+        this.es = options.get("es").replaceAll("/+$", "");
+        this.client = client;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>(DEFAULTS);
+        for (String arg : args) {
+            int equals = arg.indexOf('=');
+            String name = arg.startsWith("--") && equals > 2 ? arg.substring(2, equals) : null;
+            if (name == null || !DEFAULTS.containsKey(name)) {
+                System.err.println("unknown option [" + arg + "], options and their defaults are " + DEFAULTS);
+                System.exit(1);
+            }
+            options.put(name, arg.substring(equals + 1));
+        }
+
+        int maxConcurrency = 0;
+        for (int concurrency : concurrencyLevels(options)) {
+            maxConcurrency = Math.max(maxConcurrency, concurrency);
+        }
+        try (StubRosette stub = new StubRosette(InetAddress.getByName(options.get("stub.host")),
+                Integer.parseInt(options.get("stub.port")), LatencyDistribution.parse(options.get("latency")),
+                Double.parseDouble(options.get("error_rate")), millis(options, "throttle_every"),
+                millis(options, "throttle_for"));
+             CloseableHttpClient client = HttpClients.custom()
+                     .setMaxConnPerRoute(maxConcurrency + 1)
+                     .setMaxConnTotal(maxConcurrency + 1)
+                     .build()) {
+            System.out.println("Rosette stub listening on " + stub.url() + ", latency " + options.get("latency")
+                    + ", error rate " + options.get("error_rate") + ", throttling every "
+                    + options.get("throttle_every") + " for " + options.get("throttle_for"));
+            new LoadHarness(options, client).run(stub);
+        }
+    }
+
+    private void run(StubRosette stub) throws Exception {
+        Map<String, Object> node = send(new HttpGet(es + "/"));
+        System.out.println("Node " + node.get("name") + " at " + es);
+
+        File[] files = new File(options.get("processors")).listFiles((dir, name) -> name.endsWith(".json"));
+        if (files == null || files.length == 0) {
+            throw new IllegalArgumentException("no pipeline definitions in [" + options.get("processors") + "]");
+        }
+        Arrays.sort(files);
+        List<String> selected = Arrays.asList(options.get("pipelines").split("\\s*,\\s*"));
+
+        System.out.println(String.format(Locale.ROOT, "%-20s %6s %10s %8s %9s %9s %9s %9s %9s %9s %8s %8s",
+                "pipeline", "conc", "docs/s", "failed", "write%", "rosette%", "p50 ms", "p99 ms", "p99.9 ms",
+                "max ms", "429s", "5xxs"));
+        for (File file : files) {
+            String name = file.getName().substring(0, file.getName().length() - ".json".length());
+            if (!options.get("pipelines").isEmpty() && !selected.contains(name)) {
+                continue;
+            }
+            String pipeline = options.get("index") + "-" + name;
+            HttpPut put = new HttpPut(es + "/_ingest/pipeline/" + pipeline);
+            put.setEntity(new ByteArrayEntity(Files.readAllBytes(file.toPath()), ContentType.APPLICATION_JSON));
+            send(put);
+            for (int concurrency : concurrencyLevels(options)) {
+                Result result = runLevel(stub, pipeline, concurrency);
+                System.out.println(String.format(Locale.ROOT,
+                        "%-20s %6d %10.1f %8d %9.1f %9.1f %9.1f %9.1f %9.1f %9.1f %8d %8d",
+                        name, concurrency, result.docsPerSecond, result.failed, result.writeUtilization * 100,
+                        result.rosetteUtilization * 100, result.latency.getValueAtPercentile(50) / 1000.0,
+                        result.latency.getValueAtPercentile(99) / 1000.0,
+                        result.latency.getValueAtPercentile(99.9) / 1000.0, result.latency.getMaxValue() / 1000.0,
+                        result.throttled, result.errors));
+            }
+            send(new HttpDelete(es + "/_ingest/pipeline/" + pipeline));
+        }
+    }
+
+    //Warms up, then measures, bulk requests sent back to back by the given number of clients
+    private Result runLevel(StubRosette stub, String pipeline, int concurrency) throws Exception {
+        HttpDelete deleteIndex = new HttpDelete(es + "/" + options.get("index") + "?ignore_unavailable=true");
+        send(deleteIndex);
+        Map<String, Double> poolSizes = threadPoolSizes();
+
+        Recorder recorder = new Recorder(3);
+        AtomicLong succeeded = new AtomicLong();
+        AtomicLong failed = new AtomicLong();
+        long warmupNanos = TimeUnit.MILLISECONDS.toNanos(millis(options, "warmup"));
+        long durationNanos = TimeUnit.MILLISECONDS.toNanos(millis(options, "duration"));
+        long start = System.nanoTime();
+        long measureFrom = start + warmupNanos;
+        long measureUntil = measureFrom + durationNanos;
+
+        ExecutorService clients = Executors.newFixedThreadPool(concurrency);
+        ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor();
+        List<Map<String, Double>> samples = Collections.synchronizedList(new ArrayList<>());
+        try {
+            List<Future<?>> running = new ArrayList<>();
+            for (int i = 0; i < concurrency; i++) {
+                running.add(clients.submit(() -> {
+                    while (System.nanoTime() < measureUntil) {
+                        long sent = System.nanoTime();
+                        long[] outcome = bulk(pipeline);
+                        long took = System.nanoTime() - sent;
+                        //Only requests sent and answered within the measurement count
+                        if (sent >= measureFrom && sent + took <= measureUntil) {
+                            recorder.recordValue(TimeUnit.NANOSECONDS.toMicros(took));
+                            succeeded.addAndGet(outcome[0]);
+                            failed.addAndGet(outcome[1]);
+                        }
+                    }
+                    return null;
+                }));
+            }
+            TimeUnit.NANOSECONDS.sleep(Math.max(0, measureFrom - System.nanoTime()));
+            long throttled = stub.throttled();
+            long errors = stub.errors();
+            sampler.scheduleAtFixedRate(() -> {
+                try {
+                    samples.add(activeThreads());
+                } catch (Exception e) {
+                    //A missed sample only makes the average a little less precise
+                }
+            }, 0, 1, TimeUnit.SECONDS);
+            for (Future<?> future : running) {
+                future.get();
+            }
+
+            Result result = new Result();
+            result.latency = recorder.getIntervalHistogram();
+            result.docsPerSecond = succeeded.get() / (durationNanos / 1e9);
+            result.failed = failed.get();
+            result.writeUtilization = utilization(samples, poolSizes, "write");
+            result.rosetteUtilization = utilization(samples, poolSizes, "rosette");
+            result.throttled = stub.throttled() - throttled;
+            result.errors = stub.errors() - errors;
+            return result;
+        } finally {
+            sampler.shutdownNow();
+            clients.shutdownNow();
+        }
+    }
+
+    //Sends one bulk request of new documents, returns how many were indexed and how many failed
+    private long[] bulk(String pipeline) throws IOException {
+        int bulkSize = Integer.parseInt(options.get("bulk_size"));
+        StringBuilder body = new StringBuilder();
+        for (int i = 0; i < bulkSize; i++) {
+            long id = docIds.incrementAndGet();
+            body.append("{\"index\":{}}\n{\"text\":\"").append(TEXTS[(int) (id % TEXTS.length)]).append(" (")
+                    .append(id).append(")\"}\n");
+        }
+        HttpPost post = new HttpPost(es + "/" + options.get("index") + "/_bulk?pipeline=" + pipeline);
+        post.setEntity(new ByteArrayEntity(body.toString().getBytes(StandardCharsets.UTF_8), NDJSON));
+        Map<String, Object> response;
+        try {
+            response = send(post);
+        } catch (IOException e) {
+            return new long[] {0, bulkSize};
+        }
+        if (!Boolean.TRUE.equals(response.get("errors"))) {
+            return new long[] {bulkSize, 0};
+        }
+        long failed = 0;
+        for (Object item : (List<?>) response.get("items")) {
+            Map<?, ?> result = (Map<?, ?>) ((Map<?, ?>) item).values().iterator().next();
+            if (result.containsKey("error")) {
+                failed++;
+            }
+        }
+        return new long[] {bulkSize - failed, failed};
+    }
+
+    //Threads of the write and rosette pools of all nodes
+    private Map<String, Double> threadPoolSizes() throws IOException {
+        return sumThreadPools(send(new HttpGet(es + "/_nodes/thread_pool")), "size");
+    }
+
+    //Threads of the write and rosette pools of all nodes busy right now
+    private Map<String, Double> activeThreads() throws IOException {
+        return sumThreadPools(send(new HttpGet(es + "/_nodes/stats/thread_pool")), "active");
+    }
+
+    private static Map<String, Double> sumThreadPools(Map<String, Object> response, String field) {
+        Map<String, Double> sums = new HashMap<>();
+        for (Object node : ((Map<?, ?>) response.get("nodes")).values()) {
+            Map<?, ?> pools = (Map<?, ?>) ((Map<?, ?>) node).get("thread_pool");
+            for (String pool : new String[] {"write", "rosette"}) {
+                Map<?, ?> stats = (Map<?, ?>) pools.get(pool);
+                if (stats != null && stats.get(field) instanceof Number) {
+                    sums.merge(pool, ((Number) stats.get(field)).doubleValue(), Double::sum);
+                }
+            }
+        }
+        return sums;
+    }
+
+    //Average share of the threads of a pool that were busy
+    private static double utilization(List<Map<String, Double>> samples, Map<String, Double> sizes, String pool) {
+        Double size = sizes.get(pool);
+        if (size == null || size == 0 || samples.isEmpty()) {
+            return 0;
+        }
+        double active = 0;
+        synchronized (samples) {
+            for (Map<String, Double> sample : samples) {
+                active += sample.getOrDefault(pool, 0.0);
+            }
+            return active / samples.size() / size;
+        }
+    }
+
+    private Map<String, Object> send(HttpUriRequest request) throws IOException {
+        HttpResponse response = client.execute(request);
+        byte[] body = response.getEntity() == null ? new byte[0] : EntityUtils.toByteArray(response.getEntity());
+        int status = response.getStatusLine().getStatusCode();
+        if (status >= 300 && !(request instanceof HttpDelete && status == 404)) {
+            throw new IOException(request.getMethod() + " " + request.getURI() + " failed with " + status + ": "
+                    + new String(body, StandardCharsets.UTF_8));
+        }
+        return body.length == 0 ? Collections.emptyMap()
+                : XContentHelper.convertToMap(JsonXContent.jsonXContent, body, 0, body.length, false);
+    }
+
+    private static List<Integer> concurrencyLevels(Map<String, String> options) {
+        List<Integer> levels = new ArrayList<>();
+        for (String level : options.get("concurrency").split("\\s*,\\s*")) {
+            levels.add(Integer.parseInt(level));
+        }
+        return levels;
+    }
+
+    private static long millis(Map<String, String> options, String name) {
+        String value = options.get(name);
+        return "0".equals(value) ? 0 : TimeValue.parseTimeValue(value, name).millis();
+    }
+
+    private static final class Result {
+        private Histogram latency;
+        private double docsPerSecond;
+        private long failed;
+        private double writeUtilization;
+        private double rosetteUtilization;
+        private long throttled;
+        private long errors;
+    }
+}
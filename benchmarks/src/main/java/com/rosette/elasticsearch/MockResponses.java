@@ -0,0 +1,73 @@
+/*
+* Copyright 2022 Basis Technology Corp.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.rosette.elasticsearch;
+
+import com.basistech.rosette.dm.AnnotatedText;
+import com.basistech.rosette.dm.Entity;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+
+//Responses the unit tests are served by the mock server, and what the benchmarks build from them
+final class MockResponses {
+
+    private MockResponses() {
+    }
+
+    //Body of the mocked response of an endpoint, i.e. "entities" or "sentiment_adm"
+    static byte[] read(String name) {
+        try (InputStream is = MockResponses.class.getClassLoader()
+                .getResourceAsStream("mock_responses/" + name + "_response.json")) {
+            if (is == null) {
+                throw new IllegalArgumentException("no mocked response for [" + name + "]");
+            }
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = is.read(buffer)) >= 0) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    static AnnotatedText adm(String name) throws Exception {
+        return RosetteResponseCache.deserialize(read(name), AnnotatedText.class);
+    }
+
+    //Entities of the mocked entities response, repeated until there are as many as asked for, as in a long document
+    static List<Entity> entities(int count) throws Exception {
+        List<Entity> mocked = adm("entities").getEntities();
+        List<Entity> entities = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            entities.add(mocked.get(i % mocked.size()));
+        }
+        return entities;
+    }
+
+    //Processor that only maps entities, it never calls Rosette
+    static EntitiesProcessor entitiesProcessor(boolean includeOffsets) {
+        return new EntitiesProcessor(new RosetteApiWrapper("benchmark", "http://localhost/rest/worker/v1/"),
+                "benchmark", null, "text", EntitiesProcessor.Parameters.TARGET_FIELD.defaultValue, includeOffsets,
+                false, null, false);
+    }
+}
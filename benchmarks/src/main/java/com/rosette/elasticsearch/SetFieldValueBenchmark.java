@@ -0,0 +1,76 @@
+/*
+* Copyright 2022 Basis Technology Corp.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.rosette.elasticsearch;
+
+import org.elasticsearch.ingest.IngestDocument;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Storing the mapped entities in a document, at the top level and under a path that has to be created. Each
+ * operation is on a new document, {@link #newDocument()} is what that costs on its own.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SetFieldValueBenchmark {
+
+    @Param({"10", "100", "1000"})
+    public int entities;
+
+    @Param({"ros_entities", "rosette.enrichment.entities"})
+    public String targetField;
+
+    private Map<String, Object> source;
+    private List<Map<String, Object>> mapped;
+
+    @Setup
+    public void setup() throws Exception {
+        source = new HashMap<>();
+        source.put("text", "Original Ghostbuster Dan Aykroyd, who also co-wrote the 1984 Ghostbusters film, "
+                + "couldn't be more pleased with the new all-female Ghostbusters cast.");
+        mapped = MockResponses.entitiesProcessor(true).transformEntities(MockResponses.entities(entities), 0);
+    }
+
+    @Benchmark
+    public IngestDocument newDocument() {
+        return new IngestDocument("index", "_doc", "id", null, null, null, new HashMap<>(source));
+    }
+
+    @Benchmark
+    public IngestDocument setFieldValue() {
+        IngestDocument document = newDocument();
+        document.setFieldValue(targetField, mapped);
+        return document;
+    }
+}
@@ -0,0 +1,178 @@
+/*
+* Copyright 2022 Basis Technology Corp.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.rosette.elasticsearch;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.http.HttpHeaders;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-process stand in for Rosette, serving the mocked responses on the same paths as the mock server of the unit
+ * tests, so calls go over a real HTTP connection without leaving the machine. It can be made to answer slowly,
+ * fail some calls and throttle all calls for a while every so often, as a busy Rosette would.
+ */
+final class StubRosette implements Closeable {
+
+    static final String BASE_PATH = "/rest/worker/v1/";
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final LatencyDistribution latency;
+    private final double errorRate;
+    private final long throttleEveryNanos;
+    private final long throttleForNanos;
+    private final long startNanos = System.nanoTime();
+    private final AtomicLong calls = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicLong throttled = new AtomicLong();
+    //Mocked responses by the name of their file, read once
+    private final Map<String, byte[]> responses = new ConcurrentHashMap<>();
+
+    //Answers right away and never fails, on a free loopback port
+    StubRosette() throws IOException {
+        this(InetAddress.getLoopbackAddress(), 0, LatencyDistribution.NONE, 0, 0, 0);
+    }
+
+    /**
+     * @param address address to listen on
+     * @param port port to listen on, 0 for any free one
+     * @param latency how long calls take
+     * @param errorRate share of the calls that fail with a 500
+     * @param throttleEveryMillis how often all calls are throttled with a 429 for a while, 0 to never throttle
+     * @param throttleForMillis how long calls are throttled for
+     */
+    StubRosette(InetAddress address, int port, LatencyDistribution latency, double errorRate,
+                long throttleEveryMillis, long throttleForMillis) throws IOException {
+        this.latency = latency;
+        this.errorRate = errorRate;
+        this.throttleEveryNanos = TimeUnit.MILLISECONDS.toNanos(throttleEveryMillis);
+        this.throttleForNanos = TimeUnit.MILLISECONDS.toNanos(throttleForMillis);
+        server = HttpServer.create(new InetSocketAddress(address, port), 0);
+        executor = Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, "stub-rosette");
+            thread.setDaemon(true);
+            return thread;
+        });
+        server.setExecutor(executor);
+        server.createContext(BASE_PATH, this::handle);
+        server.start();
+    }
+
+    String url() {
+        InetSocketAddress address = server.getAddress();
+        return "http://" + address.getHostString() + ":" + address.getPort() + BASE_PATH;
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try (InputStream in = exchange.getRequestBody()) {
+            byte[] buffer = new byte[8192];
+            while (in.read(buffer) >= 0) {
+                //The request is read through so the connection can be reused
+            }
+        }
+        calls.incrementAndGet();
+        if (throttleEveryNanos > 0 && (System.nanoTime() - startNanos) % throttleEveryNanos < throttleForNanos) {
+            throttled.incrementAndGet();
+            exchange.getResponseHeaders().set(HttpHeaders.RETRY_AFTER, "1");
+            sendError(exchange, 429, "overCapacity", "Rosette is throttling calls");
+            return;
+        }
+        Random random = ThreadLocalRandom.current();
+        long delay = latency.sampleMillis(random);
+        if (delay > 0) {
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                exchange.close();
+                return;
+            }
+        }
+        if (errorRate > 0 && random.nextDouble() < errorRate) {
+            errors.incrementAndGet();
+            sendError(exchange, 500, "unexpectedException", "Rosette failed the call");
+            return;
+        }
+
+        String endpoint = exchange.getRequestURI().getPath().substring(BASE_PATH.length());
+        String query = exchange.getRequestURI().getQuery();
+        //Same as the mock server, the entities processor asks sentiment for an ADM
+        if ("sentiment".equals(endpoint) && query != null && query.contains("output=rosette")) {
+            endpoint = "sentiment_adm";
+        }
+        byte[] body;
+        try {
+            body = responses.computeIfAbsent(endpoint, MockResponses::read);
+        } catch (IllegalArgumentException e) {
+            exchange.sendResponseHeaders(404, -1);
+            exchange.close();
+            return;
+        }
+        exchange.getResponseHeaders().set(HttpHeaders.CONTENT_TYPE, "application/json");
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    //Error response in the form Rosette sends them
+    private static void sendError(HttpExchange exchange, int status, String code, String message) throws IOException {
+        byte[] body = ("{\"code\":\"" + code + "\",\"message\":\"" + message + "\"}")
+                .getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set(HttpHeaders.CONTENT_TYPE, "application/json");
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    //Calls answered so far, whatever the answer
+    long calls() {
+        return calls.get();
+    }
+
+    //Calls failed with a 500
+    long errors() {
+        return errors.get();
+    }
+
+    //Calls throttled with a 429
+    long throttled() {
+        return throttled.get();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+}
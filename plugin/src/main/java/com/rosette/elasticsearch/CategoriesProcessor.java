@@ -15,19 +15,15 @@
 */
 package com.rosette.elasticsearch;
 
-import com.basistech.rosette.api.HttpRosetteAPIException;
 import com.basistech.rosette.apimodel.CategoriesOptions;
 import com.basistech.rosette.apimodel.CategoriesResponse;
 import com.basistech.rosette.apimodel.DocumentRequest;
-import org.apache.logging.log4j.Logger;
 import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.action.ActionListener;
 import org.elasticsearch.common.Strings;
-import org.elasticsearch.common.logging.Loggers;
 import org.elasticsearch.ingest.ConfigurationUtils;
 import org.elasticsearch.ingest.IngestDocument;
 import org.elasticsearch.ingest.Processor;
-import java.security.AccessController;
-import java.security.PrivilegedAction;
 import java.util.Map;
 
 import static com.basistech.rosette.api.common.AbstractRosetteAPI.CATEGORIES_SERVICE_PATH;
@@ -35,38 +31,32 @@ import static com.basistech.rosette.api.common.AbstractRosetteAPI.CATEGORIES_SER
 public class CategoriesProcessor extends RosetteAbstractProcessor {
 
     public static final String TYPE = "ros_categories";
-    private static final Logger LOGGER = Loggers
-            .getLogger(CategoriesProcessor.class, CategoriesProcessor.class.getName());
+
+    private String languageField;
+    private TextSampler sampler;
 
     CategoriesProcessor(RosetteApiWrapper rosAPI, String tag, String description, String inputField,
-                        String targetField) {
+                        String targetField, String languageField, TextSampler sampler) {
         super(rosAPI, tag, description, TYPE, inputField, targetField);
+        this.languageField = languageField;
+        this.sampler = sampler;
     }
 
     @Override
-    public void processDocument(String inputText, IngestDocument ingestDocument) throws Exception {
+    public void processDocument(String inputText, IngestDocument ingestDocument, ActionListener<Object> listener) {
         // call /categories endpoint and set the top result in the field
         DocumentRequest<CategoriesOptions> request = DocumentRequest.<CategoriesOptions>builder()
-                .content(inputText).build();
-        CategoriesResponse response;
-        try {
-            // RosApi client binding's Jackson needs elevated privilege
-            response = AccessController.doPrivileged((PrivilegedAction<CategoriesResponse>) () ->
-                    rosAPI.getHttpRosetteAPI().perform(CATEGORIES_SERVICE_PATH, request, CategoriesResponse.class)
-            );
-        } catch (HttpRosetteAPIException ex) {
-            LOGGER.error(ex.getErrorResponse().getMessage());
-            throw new ElasticsearchException(ex.getErrorResponse().getMessage(), ex);
-        }
-
-        if (response.getCategories() != null
-                && !response.getCategories().isEmpty()
-                && response.getCategories().get(0) != null
-                && !Strings.isNullOrEmpty(response.getCategories().get(0).getLabel())) {
-            ingestDocument.setFieldValue(targetField, response.getCategories().get(0).getLabel());
-        } else {
-            throw new ElasticsearchException(TYPE + " ingest processor failed to categorize document.");
-        }
+                .content(sampler.sample(inputText)).language(documentLanguage(ingestDocument, languageField)).build();
+        rosAPI.perform(CATEGORIES_SERVICE_PATH, request, CategoriesResponse.class, listener.map(response -> {
+            if (response.getCategories() != null
+                    && !response.getCategories().isEmpty()
+                    && response.getCategories().get(0) != null
+                    && !Strings.isNullOrEmpty(response.getCategories().get(0).getLabel())) {
+                return response.getCategories().get(0).getLabel();
+            } else {
+                throw new ElasticsearchException(TYPE + " ingest processor failed to categorize document.");
+            }
+        }));
     }
 
     public static final class Factory implements Processor.Factory {
@@ -82,12 +72,20 @@ public class CategoriesProcessor extends RosetteAbstractProcessor {
             String inputField = ConfigurationUtils.readStringProperty(TYPE, processorTag, config, "field");
             String targetField = ConfigurationUtils.readStringProperty(TYPE, processorTag, config,
                     Parameters.TARGET_FIELD.name, Parameters.TARGET_FIELD.defaultValue);
-            return new CategoriesProcessor(rosAPI, processorTag, processorDescription, inputField, targetField);
+            String languageField = ConfigurationUtils.readOptionalStringProperty(TYPE, processorTag, config,
+                    Parameters.LANGUAGE_FIELD.name);
+            TextSampler sampler = TextSampler.readConfig(TYPE, processorTag, config);
+            CategoriesProcessor processor = new CategoriesProcessor(rosAPI, processorTag, processorDescription,
+                    inputField, targetField, languageField, sampler);
+            processor.setOnUnavailable(readOnUnavailable(TYPE, processorTag, config));
+            processor.readReprocessOptions(processorTag, config);
+            return processor;
         }
     }
 
     enum Parameters {
-        TARGET_FIELD("target_field", "ros_category");
+        TARGET_FIELD("target_field", "ros_category"),
+        LANGUAGE_FIELD("language_field", null);
 
         String name;
         String defaultValue;
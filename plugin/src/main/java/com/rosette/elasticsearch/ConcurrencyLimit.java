@@ -0,0 +1,99 @@
+/*
+* Copyright 2022 Basis Technology Corp.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.rosette.elasticsearch;
+
+/**
+ * Most calls allowed in flight to one Rosette endpoint. An adaptive limit follows what the endpoint can take
+ * (additive increase, multiplicative decrease): it grows by one for every limit's worth of calls that come back
+ * fine while it is in use, and is cut when Rosette pushes back, i.e. answers 429 or 503, times out, or gets
+ * markedly slower than it usually is.
+ */
+final class ConcurrencyLimit {
+
+    //Share of the limit kept when it's cut
+    private static final double BACKOFF = 0.75;
+    //Recent latency above this multiple of the long term latency counts as pushback
+    private static final double LATENCY_TOLERANCE = 2.0;
+    //Weights of a sample in the recent, and in the long term, average latency
+    private static final double RECENT_SMOOTHING = 0.2;
+    private static final double LONG_TERM_SMOOTHING = 0.01;
+    //Samples taken before latency is used as a signal at all
+    private static final int WARMUP_SAMPLES = 20;
+
+    private final boolean adaptive;
+    private final int maxLimit;
+    private double limit;
+    private double recentLatency;
+    private double longTermLatency;
+    private long samples;
+    //When the limit was last cut, calls that started before then don't cut it again
+    private long lastCut;
+    private boolean cut;
+
+    private ConcurrencyLimit(int initialLimit, int maxLimit, boolean adaptive) {
+        this.limit = initialLimit;
+        this.maxLimit = maxLimit;
+        this.adaptive = adaptive;
+    }
+
+    static ConcurrencyLimit fixed(int limit) {
+        return new ConcurrencyLimit(limit, limit, false);
+    }
+
+    /**
+     * @param initialLimit limit to start from
+     * @param maxLimit most the limit grows to
+     */
+    static ConcurrencyLimit adaptive(int initialLimit, int maxLimit) {
+        return new ConcurrencyLimit(Math.min(initialLimit, maxLimit), maxLimit, true);
+    }
+
+    synchronized int get() {
+        return (int) limit;
+    }
+
+    /**
+     * Adapts the limit to the outcome of a call.
+     * @param startNanos {@link System#nanoTime()} when the call was sent
+     * @param endNanos {@link System#nanoTime()} when it completed
+     * @param pushback whether Rosette pushed back on the call
+     * @param inFlight calls that were in flight with it
+     */
+    synchronized void onSample(long startNanos, long endNanos, boolean pushback, int inFlight) {
+        if (!adaptive) {
+            return;
+        }
+        if (!pushback) {
+            //Quick rejections would drag the average down, so only calls that went through count
+            double latency = endNanos - startNanos;
+            recentLatency = samples == 0 ? latency : recentLatency + RECENT_SMOOTHING * (latency - recentLatency);
+            longTermLatency = samples == 0 ? latency
+                    : longTermLatency + LONG_TERM_SMOOTHING * (latency - longTermLatency);
+            samples++;
+            pushback = samples > WARMUP_SAMPLES && recentLatency > LATENCY_TOLERANCE * longTermLatency;
+        }
+        if (pushback) {
+            if (!cut || startNanos - lastCut > 0) {
+                limit = Math.max(1, limit * BACKOFF);
+                lastCut = endNanos;
+                cut = true;
+            }
+        } else if (inFlight >= limit / 2) {
+            //Only grows while the limit is actually in use
+            limit = Math.min(maxLimit, limit + 1 / limit);
+        }
+    }
+}
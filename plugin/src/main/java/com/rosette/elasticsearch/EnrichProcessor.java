@@ -0,0 +1,238 @@
+/*
+* Copyright 2022 Basis Technology Corp.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.rosette.elasticsearch;
+
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.ingest.ConfigurationUtils;
+import org.elasticsearch.ingest.IngestDocument;
+import org.elasticsearch.ingest.Processor;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Runs several Rosette analyses of the same field in one processor. The calls are made concurrently (after the
+ * language analysis, if there is one), and the results are only written (each to the target field of its analysis)
+ * once all of them succeeded.
+ */
+public class EnrichProcessor extends RosetteAbstractProcessor {
+
+    public static final String TYPE = "ros_enrich";
+
+    private final List<RosetteAbstractProcessor> analyses;
+
+    EnrichProcessor(RosetteApiWrapper rosAPI, String tag, String description, String inputField,
+                    List<RosetteAbstractProcessor> analyses) {
+        super(rosAPI, tag, description, TYPE, inputField, null);
+        this.analyses = analyses;
+    }
+
+    @Override
+    protected List<String> getTargetFields() {
+        List<String> targetFields = new ArrayList<>(analyses.size());
+        for (RosetteAbstractProcessor analysis : analyses) {
+            targetFields.addAll(analysis.getTargetFields());
+        }
+        return targetFields;
+    }
+
+    @Override
+    public void processDocument(String inputText, IngestDocument ingestDocument, ActionListener<Object> listener) {
+        AtomicReferenceArray<Object> results = new AtomicReferenceArray<>(analyses.size());
+        ActionListener<Object> done = ActionListener.notifyOnce(listener);
+        int language = languageAnalysis();
+        if (language < 0) {
+            processAnalyses(inputText, ingestDocument, -1, results, done);
+            return;
+        }
+        //The language is detected first so that the other analyses pass it on, as they would after a language
+        // processor. Analyses don't touch the document while they run, so the hint is set here before they start.
+        try {
+            analyses.get(language).processDocument(inputText, ingestDocument, ActionListener.wrap(result -> {
+                results.set(language, result);
+                ingestDocument.getIngestMetadata().put(LANGUAGE_HINT, result);
+                processAnalyses(inputText, ingestDocument, language, results, done);
+            }, done::onFailure));
+        } catch (Exception e) {
+            done.onFailure(e);
+        }
+    }
+
+    //Index of the language analysis, -1 if there is none
+    private int languageAnalysis() {
+        for (int i = 0; i < analyses.size(); i++) {
+            if (analyses.get(i) instanceof LanguageProcessor) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    //Runs the analyses but the one already done concurrently, the listener is notified once all of them are
+    private void processAnalyses(String inputText, IngestDocument ingestDocument, int skipped,
+                                 AtomicReferenceArray<Object> results, ActionListener<Object> done) {
+        AtomicInteger remaining = new AtomicInteger(skipped < 0 ? analyses.size() : analyses.size() - 1);
+        if (remaining.get() == 0) {
+            done.onResponse(results);
+            return;
+        }
+        for (int i = 0; i < analyses.size(); i++) {
+            if (i == skipped) {
+                continue;
+            }
+            int index = i;
+            ActionListener<Object> analysisListener = ActionListener.wrap(result -> {
+                results.set(index, result);
+                if (remaining.decrementAndGet() == 0) {
+                    done.onResponse(results);
+                }
+            }, done::onFailure);
+            try {
+                analyses.get(i).processDocument(inputText, ingestDocument, analysisListener);
+            } catch (Exception e) {
+                done.onFailure(e);
+                return;
+            }
+        }
+    }
+
+    //The analyses are all made from the same input, so one fingerprint covers them
+    @Override
+    protected String getFingerprintField() {
+        return TYPE + FINGERPRINT_SUFFIX;
+    }
+
+    @Override
+    protected void reuseTargetFields(IngestDocument ingestDocument) {
+        for (RosetteAbstractProcessor analysis : analyses) {
+            analysis.reuseTargetFields(ingestDocument);
+        }
+    }
+
+    @Override
+    protected void setTargetFields(IngestDocument ingestDocument, Object result) {
+        AtomicReferenceArray<?> results = (AtomicReferenceArray<?>) result;
+        for (int i = 0; i < analyses.size(); i++) {
+            analyses.get(i).setTargetFields(ingestDocument, results.get(i));
+        }
+    }
+
+    public static final class Factory implements Processor.Factory {
+        private RosetteApiWrapper rosAPI;
+        //Factories of the processors that can be run as analyses, by analysis name
+        private Map<String, Processor.Factory> analysisFactories;
+
+        Factory(RosetteApiWrapper rosAPI, Map<String, Processor.Factory> analysisFactories) {
+            this.rosAPI = rosAPI;
+            this.analysisFactories = analysisFactories;
+        }
+
+        @Override
+        public Processor create(Map<String, Processor.Factory> registry, String processorTag,
+                                String processorDescription, Map<String, Object> config) throws Exception {
+            String inputField = ConfigurationUtils.readStringProperty(TYPE, processorTag, config, "field");
+            Map<String, Map<String, Object>> analysisConfigs = readAnalyses(processorTag, config);
+
+            List<RosetteAbstractProcessor> analyses = new ArrayList<>(analysisConfigs.size());
+            List<String> targetFields = new ArrayList<>();
+            for (Map.Entry<String, Map<String, Object>> analysisConfig : analysisConfigs.entrySet()) {
+                Processor.Factory factory = analysisFactories.get(analysisConfig.getKey());
+                if (factory == null) {
+                    throw ConfigurationUtils.newConfigurationException(TYPE, processorTag,
+                            Parameters.ANALYSES.name, "unknown analysis [" + analysisConfig.getKey()
+                                    + "], expected one of " + analysisFactories.keySet());
+                }
+                for (String option : new String[] {ON_UNAVAILABLE, SKIP_UNCHANGED, OVERWRITE}) {
+                    if (analysisConfig.getValue().containsKey(option)) {
+                        throw ConfigurationUtils.newConfigurationException(TYPE, processorTag,
+                                Parameters.ANALYSES.name, option + " applies to all analyses, and is set on the "
+                                        + TYPE + " processor itself");
+                    }
+                }
+                Map<String, Object> options = new HashMap<>(analysisConfig.getValue());
+                options.put("field", inputField);
+                RosetteAbstractProcessor analysis = (RosetteAbstractProcessor) factory.create(registry, processorTag,
+                        processorDescription, options);
+                if (!options.isEmpty()) {
+                    throw ConfigurationUtils.newConfigurationException(TYPE, processorTag,
+                            Parameters.ANALYSES.name, "unknown options " + options.keySet() + " for analysis ["
+                                    + analysisConfig.getKey() + "]");
+                }
+                for (String targetField : analysis.getTargetFields()) {
+                    if (targetFields.contains(targetField)) {
+                        throw ConfigurationUtils.newConfigurationException(TYPE, processorTag,
+                                Parameters.ANALYSES.name, "more than one analysis writes to [" + targetField + "]");
+                    }
+                    targetFields.add(targetField);
+                }
+                analyses.add(analysis);
+            }
+            EnrichProcessor processor = new EnrichProcessor(rosAPI, processorTag, processorDescription, inputField,
+                    analyses);
+            processor.setOnUnavailable(readOnUnavailable(TYPE, processorTag, config));
+            processor.readReprocessOptions(processorTag, config);
+            return processor;
+        }
+
+        //Analyses are either a list of names, or a map of names to the options of each analysis
+        @SuppressWarnings("unchecked")
+        private Map<String, Map<String, Object>> readAnalyses(String processorTag, Map<String, Object> config) {
+            Object value = ConfigurationUtils.readObject(TYPE, processorTag, config, Parameters.ANALYSES.name);
+            Map<String, Map<String, Object>> analyses = new LinkedHashMap<>();
+            if (value instanceof List) {
+                for (Object name : (List<Object>) value) {
+                    analyses.put(String.valueOf(name), Collections.emptyMap());
+                }
+            } else if (value instanceof Map) {
+                for (Map.Entry<String, Object> analysis : ((Map<String, Object>) value).entrySet()) {
+                    if (analysis.getValue() != null && !(analysis.getValue() instanceof Map)) {
+                        throw ConfigurationUtils.newConfigurationException(TYPE, processorTag,
+                                Parameters.ANALYSES.name, "options of analysis [" + analysis.getKey()
+                                        + "] must be an object");
+                    }
+                    analyses.put(analysis.getKey(), analysis.getValue() == null ? Collections.emptyMap()
+                            : (Map<String, Object>) analysis.getValue());
+                }
+            } else {
+                throw ConfigurationUtils.newConfigurationException(TYPE, processorTag, Parameters.ANALYSES.name,
+                        "must be a list of analyses, or an object of analyses and their options");
+            }
+            if (analyses.isEmpty()) {
+                throw ConfigurationUtils.newConfigurationException(TYPE, processorTag, Parameters.ANALYSES.name,
+                        "at least one analysis is required");
+            }
+            return analyses;
+        }
+    }
+
+    enum Parameters {
+        ANALYSES("analyses", null);
+
+        String name;
+        String defaultValue;
+
+        Parameters(String name, String defaultValue) {
+            this.name = name;
+            this.defaultValue = defaultValue;
+        }
+    }
+}
@@ -15,7 +15,6 @@
 */
 package com.rosette.elasticsearch;
 
-import com.basistech.rosette.api.HttpRosetteAPIException;
 import com.basistech.rosette.apimodel.DocumentRequest;
 import com.basistech.rosette.apimodel.EntitiesOptions;
 import com.basistech.rosette.apimodel.NameTranslationRequest;
@@ -25,20 +24,18 @@ import com.basistech.rosette.dm.AnnotatedText;
 import com.basistech.rosette.dm.Entity;
 import com.basistech.rosette.dm.Mention;
 import com.basistech.util.LanguageCode;
-import org.apache.logging.log4j.Logger;
-import org.elasticsearch.ElasticsearchException;
-import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.action.ActionListener;
 import org.elasticsearch.ingest.ConfigurationUtils;
 import org.elasticsearch.ingest.IngestDocument;
 import org.elasticsearch.ingest.Processor;
 
-import java.security.AccessController;
-import java.security.PrivilegedAction;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.stream.Collectors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import static com.basistech.rosette.api.common.AbstractRosetteAPI.ENTITIES_SERVICE_PATH;
 import static com.basistech.rosette.api.common.AbstractRosetteAPI.NAME_TRANSLATION_SERVICE_PATH;
@@ -48,61 +45,217 @@ public class EntitiesProcessor extends RosetteAbstractProcessor {
 
     public static final String TYPE = "ros_entities";
 
-    private static final Logger LOGGER = Loggers.getLogger(EntitiesProcessor.class, EntitiesProcessor.class.getName());
-
     private boolean includeOffsets;
     private boolean doTranslate;
     private LanguageCode translateLanguage;
     private boolean doSentiment;
+    private int translationConcurrency;
+    private RosetteResponseCache translationCache;
+    private String languageField;
+    private int chunkSize;
 
     EntitiesProcessor(RosetteApiWrapper rosAPI, String tag, String description, String inputField, String targetField,
                       boolean includeOffsets, boolean doTranslate, LanguageCode translateLanguage,
                       boolean doSentiment) {
+        this(rosAPI, tag, description, inputField, targetField, includeOffsets, doTranslate, translateLanguage,
+                doSentiment, Integer.parseInt(Parameters.TRANSLATION_CONCURRENCY.defaultValue),
+                RosetteResponseCache.disabled(), null, 0);
+    }
+
+    EntitiesProcessor(RosetteApiWrapper rosAPI, String tag, String description, String inputField, String targetField,
+                      boolean includeOffsets, boolean doTranslate, LanguageCode translateLanguage,
+                      boolean doSentiment, int translationConcurrency, RosetteResponseCache translationCache,
+                      String languageField, int chunkSize) {
         super(rosAPI, tag, description, TYPE, inputField, targetField);
         this.includeOffsets = includeOffsets;
         this.doTranslate = doTranslate;
         this.translateLanguage = translateLanguage;
         this.doSentiment = doSentiment;
+        this.translationConcurrency = translationConcurrency;
+        this.translationCache = translationCache;
+        this.languageField = languageField;
+        this.chunkSize = chunkSize;
     }
 
     @Override
-    public void processDocument(String inputText, IngestDocument ingestDocument) throws Exception {
+    public void processDocument(String inputText, IngestDocument ingestDocument, ActionListener<Object> listener) {
+        LanguageCode language = documentLanguage(ingestDocument, languageField);
+        if (chunkSize > 0 && inputText.length() > chunkSize) {
+            processChunks(inputText, language, listener);
+            return;
+        }
+
         //Need to use the ADM for entities so we get offsets
-        AnnotatedText adm;
+        ActionListener<AnnotatedText> admListener = ActionListener.wrap(adm -> processEntities(
+                transformEntities(adm.getEntities(), 0), listener), listener::onFailure);
 
         //If entity level sentiment is desired, use the entity information from the ASCENT call
-        try {
+        if (doSentiment) {
             //SENTIMENT
+            DocumentRequest<SentimentOptions> sentrequest = DocumentRequest.<SentimentOptions>builder()
+                    .content(inputText).language(language).build();
+            //A sentiment processor running after this one reuses the response
+            rosAPI.perform(ingestDocument, SENTIMENT_SERVICE_PATH, sentrequest, admListener);
+        } else {
+            //REX
+            DocumentRequest<EntitiesOptions> entityrequest = DocumentRequest.<EntitiesOptions>builder()
+                    .content(inputText).language(language).build();
+            rosAPI.perform(ENTITIES_SERVICE_PATH, entityrequest, admListener);
+        }
+    }
+
+    //Sends the chunks of a long document to Rosette all at once, and merges their entities once all are back
+    private void processChunks(String inputText, LanguageCode language, ActionListener<Object> listener) {
+        int[] offsets = TextChunker.split(inputText, chunkSize);
+        int chunks = offsets.length - 1;
+        AtomicReferenceArray<AnnotatedText> adms = new AtomicReferenceArray<>(chunks);
+        AtomicInteger remaining = new AtomicInteger(chunks);
+        ActionListener<Object> done = ActionListener.notifyOnce(listener);
+        for (int i = 0; i < chunks; i++) {
+            int chunk = i;
+            ActionListener<AnnotatedText> chunkListener = ActionListener.wrap(adm -> {
+                adms.set(chunk, adm);
+                if (remaining.decrementAndGet() == 0) {
+                    processEntities(mergeChunks(adms, offsets), done);
+                }
+            }, done::onFailure);
+            String content = inputText.substring(offsets[i], offsets[i + 1]);
             if (doSentiment) {
                 DocumentRequest<SentimentOptions> sentrequest = DocumentRequest.<SentimentOptions>builder()
-                        .content(inputText).build();
-                adm = AccessController.doPrivileged((PrivilegedAction<AnnotatedText>) () ->
-                        rosAPI.getHttpRosetteAPI().perform(SENTIMENT_SERVICE_PATH, sentrequest)
-                );
+                        .content(content).language(language).build();
+                rosAPI.perform(SENTIMENT_SERVICE_PATH, sentrequest, chunkListener);
             } else {
-                //REX
                 DocumentRequest<EntitiesOptions> entityrequest = DocumentRequest.<EntitiesOptions>builder()
-                        .content(inputText).build();
-                adm = AccessController.doPrivileged((PrivilegedAction<AnnotatedText>) () ->
-                        rosAPI.getHttpRosetteAPI().perform(ENTITIES_SERVICE_PATH, entityrequest)
-                );
+                        .content(content).language(language).build();
+                rosAPI.perform(ENTITIES_SERVICE_PATH, entityrequest, chunkListener);
             }
-        } catch (HttpRosetteAPIException ex) {
-            LOGGER.error(ex.getErrorResponse().getMessage());
-            throw new ElasticsearchException(ex.getErrorResponse().getMessage(), ex);
         }
+    }
 
-        List<Map<String, Object>> entities = adm.getEntities().stream().map(this::processEntity)
-                .collect(Collectors.toList());
+    //Merges the entities of all chunks into what a single call would have returned: offsets are moved to the
+    // whole text, and entities found in more than one chunk are reported once, with the head mention of their
+    // first chunk. Linked entities are matched on their id. Other ids are only unique within a chunk, so those
+    // entities are matched on their head mention and type, and given new ids.
+    List<Map<String, Object>> mergeChunks(AtomicReferenceArray<AnnotatedText> adms, int[] offsets) {
+        Map<String, Map<String, Object>> merged = new LinkedHashMap<>();
+        int unlinked = 0;
+        for (int i = 0; i < adms.length(); i++) {
+            for (Map<String, Object> entity : transformEntities(adms.get(i).getEntities(), offsets[i])) {
+                String entityId = (String) entity.get("entityId");
+                boolean linked = entityId != null && entityId.startsWith("Q");
+                String key = linked ? entityId : entity.get("type") + "|" + entity.get("mention");
+                Map<String, Object> existing = merged.get(key);
+                if (existing == null) {
+                    if (!linked) {
+                        entity.put("entityId", "T" + unlinked++);
+                    }
+                    merged.put(key, entity);
+                    continue;
+                }
+                existing.put("count", (Integer) existing.get("count") + (Integer) entity.get("count"));
+                if (includeOffsets) {
+                    @SuppressWarnings("unchecked")
+                    List<Map<String, Object>> existingOffsets = (List<Map<String, Object>>) existing.get("offsets");
+                    @SuppressWarnings("unchecked")
+                    List<Map<String, Object>> entityOffsets = (List<Map<String, Object>>) entity.get("offsets");
+                    existingOffsets.addAll(entityOffsets);
+                }
+                if (!existing.containsKey("sentiment") && entity.containsKey("sentiment")) {
+                    existing.put("sentiment", entity.get("sentiment"));
+                }
+            }
+        }
+        return new ArrayList<>(merged.values());
+    }
 
-        ingestDocument.setFieldValue(targetField, entities);
+    List<Map<String, Object>> transformEntities(List<Entity> entities, int offsetShift) {
+        List<Map<String, Object>> processed = new ArrayList<>(entities.size());
+        for (Entity entity : entities) {
+            processed.add(processEntity(entity, offsetShift));
+        }
+        return processed;
+    }
+
+    //Translates the head mentions of the entities (if requested) a few at a time. Each distinct name is only
+    // translated once per document, and not at all if it's already cached.
+    private void processEntities(List<Map<String, Object>> processed, ActionListener<Object> listener) {
+        Map<String, Translation> translations = new LinkedHashMap<>();
+        for (Map<String, Object> processedEntity : processed) {
+            String headMention = (String) processedEntity.get("mention");
+            String type = (String) processedEntity.get("type");
+            if (!needsTranslation(type)) {
+                continue;
+            }
+            String key = headMention + '|' + type + '|' + translateLanguage.ISO639_3();
+            Object cached = translationCache.get(key);
+            if (cached != null) {
+                processedEntity.put("translation", cached);
+            } else {
+                translations.computeIfAbsent(key, k -> new Translation(k, headMention, type))
+                        .entities.add(processedEntity);
+            }
+        }
+        if (translations.isEmpty()) {
+            listener.onResponse(processed);
+            return;
+        }
+
+        List<Translation> pending = new ArrayList<>(translations.values());
+        AtomicInteger next = new AtomicInteger();
+        AtomicInteger remaining = new AtomicInteger(pending.size());
+        ActionListener<Object> done = ActionListener.notifyOnce(listener);
+        for (int i = 0; i < Math.min(translationConcurrency, pending.size()); i++) {
+            translateNext(pending, next, remaining, processed, done);
+        }
+    }
+
+    //Starts the next pending translation, once it's done the one after that, until none are left or one failed
+    private void translateNext(List<Translation> pending, AtomicInteger next, AtomicInteger remaining,
+                               List<Map<String, Object>> processed, ActionListener<Object> listener) {
+        int index = next.getAndIncrement();
+        if (index >= pending.size()) {
+            return;
+        }
+        Translation translation = pending.get(index);
+        NameTranslationRequest rntrequest = NameTranslationRequest.builder()
+                .name(translation.name)
+                .targetLanguage(translateLanguage)
+                .entityType(translation.type)
+                .build();
+
+        rosAPI.perform(NAME_TRANSLATION_SERVICE_PATH, rntrequest, NameTranslationResponse.class,
+                ActionListener.wrap(rntresponse -> {
+                    translationCache.put(translation.key, rntresponse.getTranslation());
+                    for (Map<String, Object> entity : translation.entities) {
+                        entity.put("translation", rntresponse.getTranslation());
+                    }
+                    if (remaining.decrementAndGet() == 0) {
+                        listener.onResponse(processed);
+                    } else {
+                        translateNext(pending, next, remaining, processed, listener);
+                    }
+                }, e -> {
+                    //The document fails as a whole, so the translations that haven't started yet aren't made
+                    next.set(pending.size());
+                    listener.onFailure(e);
+                }));
+    }
+
+    private boolean needsTranslation(String type) {
+        return doTranslate
+                && ("PERSON".equalsIgnoreCase(type)
+                || "LOCATION".equalsIgnoreCase(type)
+                || "ORGANIZATION".equalsIgnoreCase(type));
     }
 
     public static final class Factory implements Processor.Factory {
         private RosetteApiWrapper rosAPI;
+        //Shared by all entities processors, so a name is translated once for all documents
+        private RosetteResponseCache translationCache;
 
-        Factory(RosetteApiWrapper rosAPI) {
+        Factory(RosetteApiWrapper rosAPI, RosetteResponseCache translationCache) {
             this.rosAPI = rosAPI;
+            this.translationCache = translationCache;
         }
 
         @Override
@@ -121,74 +274,83 @@ public class EntitiesProcessor extends RosetteAbstractProcessor {
                             Parameters.TRANSLATE_LANGUAGE.name, Parameters.TRANSLATE_LANGUAGE.defaultValue));
             boolean doSentiment = ConfigurationUtils.readBooleanProperty(TYPE, processorTag, config,
                     Parameters.SENTIMENT.name, Boolean.parseBoolean(Parameters.SENTIMENT.defaultValue));
+            int translationConcurrency = ConfigurationUtils.readIntProperty(TYPE, processorTag, config,
+                    Parameters.TRANSLATION_CONCURRENCY.name,
+                    Integer.parseInt(Parameters.TRANSLATION_CONCURRENCY.defaultValue));
+            if (translationConcurrency < 1) {
+                throw ConfigurationUtils.newConfigurationException(TYPE, processorTag,
+                        Parameters.TRANSLATION_CONCURRENCY.name, "must be at least 1");
+            }
+            String languageField = ConfigurationUtils.readOptionalStringProperty(TYPE, processorTag, config,
+                    Parameters.LANGUAGE_FIELD.name);
+            int chunkSize = ConfigurationUtils.readIntProperty(TYPE, processorTag, config,
+                    Parameters.CHUNK_SIZE.name, Integer.parseInt(Parameters.CHUNK_SIZE.defaultValue));
+            if (chunkSize < 0) {
+                throw ConfigurationUtils.newConfigurationException(TYPE, processorTag,
+                        Parameters.CHUNK_SIZE.name, "must not be negative");
+            }
 
-            return new EntitiesProcessor(rosAPI, processorTag, processorDescription, inputField, targetField,
-                    includeOffsets, doTranslate, translateLanguage, doSentiment);
+            EntitiesProcessor processor = new EntitiesProcessor(rosAPI, processorTag, processorDescription, inputField,
+                    targetField, includeOffsets, doTranslate, translateLanguage, doSentiment, translationConcurrency,
+                    translationCache, languageField, chunkSize);
+            processor.setOnUnavailable(readOnUnavailable(TYPE, processorTag, config));
+            processor.readReprocessOptions(processorTag, config);
+            return processor;
         }
     }
 
-    //Transforms the Entity object into a Map that ES can serialize.
-    // Calls RNT on each head mention for a translation (if requested)
-    private HashMap<String, Object> processEntity(Entity entity) {
+    //Transforms the Entity object into a Map that ES can serialize, offsets are moved by the given shift
+    private Map<String, Object> processEntity(Entity entity, int offsetShift) {
         List<Mention> mentions = entity.getMentions();
         String headMention = mentions.get(entity.getHeadMentionIndex()).getNormalized();
-        String type = entity.getType();
 
         HashMap<String, Object> toReturn = new HashMap<>();
 
         toReturn.put("mention", headMention);
         toReturn.put("entityId", entity.getEntityId());
-        toReturn.put("type", type);
+        toReturn.put("type", entity.getType());
         toReturn.put("count", mentions.size());
 
         if (includeOffsets) {
             List<Map<String, Object>> offsets = new ArrayList<>();
             for (Mention mention : mentions) {
                 Map<String, Object> offsetMap = new HashMap<>();
-                offsetMap.put("start", mention.getStartOffset());
-                offsetMap.put("end", mention.getEndOffset());
+                offsetMap.put("start", mention.getStartOffset() + offsetShift);
+                offsetMap.put("end", mention.getEndOffset() + offsetShift);
                 offsets.add(offsetMap);
             }
             toReturn.put("offsets", offsets);
         }
 
-        //RNT
-        if (doTranslate
-                && ("PERSON".equalsIgnoreCase(type)
-                || "LOCATION".equalsIgnoreCase(type)
-                || "ORGANIZATION".equalsIgnoreCase(type))) {
-            NameTranslationRequest rntrequest = NameTranslationRequest.builder()
-                    .name(headMention)
-                    .targetLanguage(translateLanguage)
-                    .entityType(type)
-                    .build();
-
-            NameTranslationResponse rntresponse;
-            try {
-                rntresponse = AccessController.doPrivileged((PrivilegedAction<NameTranslationResponse>) () ->
-                        rosAPI.getHttpRosetteAPI().perform(NAME_TRANSLATION_SERVICE_PATH, rntrequest,
-                                NameTranslationResponse.class)
-                );
-            } catch (HttpRosetteAPIException ex) {
-                LOGGER.error(ex.getErrorResponse().getMessage());
-                throw new ElasticsearchException(ex.getErrorResponse().getMessage(), ex);
-            }
-            toReturn.put("translation", rntresponse.getTranslation());
-        }
-
         if (entity.getSentiment() != null) {
             toReturn.put("sentiment", entity.getSentiment().get(0).getLabel());
         }
-
         return toReturn;
     }
 
+    //Head mention of one or more entities of a document waiting on a name translation
+    private static final class Translation {
+        private final String key;
+        private final String name;
+        private final String type;
+        private final List<Map<String, Object>> entities = new ArrayList<>();
+
+        private Translation(String key, String name, String type) {
+            this.key = key;
+            this.name = name;
+            this.type = type;
+        }
+    }
+
     enum Parameters {
         TARGET_FIELD("target_field", "ros_entities"),
         OFFSETS("include_offsets", "false"),
         TRANSLATE("include_translation", "false"),
         TRANSLATE_LANGUAGE("translation_language", "eng"),
-        SENTIMENT("include_sentiment", "false");
+        SENTIMENT("include_sentiment", "false"),
+        TRANSLATION_CONCURRENCY("translation_concurrency", "4"),
+        LANGUAGE_FIELD("language_field", null),
+        CHUNK_SIZE("chunk_size", "0");
 
         String name;
         String defaultValue;
@@ -0,0 +1,119 @@
+/*
+* Copyright 2022 Basis Technology Corp.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.rosette.elasticsearch;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides when a Rosette call that is taking long gets a second, identical call (a hedge) sent alongside it, the
+ * first of the two to answer wins. A call is hedged once it's been in flight longer than a given percentile of
+ * the recent latency of its endpoint. Hedges are paid for out of a budget that every call adds a fraction of a
+ * hedge to, so they can't add more than that fraction of load on Rosette, even when it is slow across the board.
+ */
+final class HedgePolicy {
+
+    //Recent latencies kept per endpoint
+    private static final int WINDOW = 256;
+    //Latencies recorded before calls to an endpoint are hedged at all
+    private static final int MIN_SAMPLES = 32;
+    //The budget is counted in millionths of a hedge, so fractions add up exactly
+    private static final long HEDGE = 1_000_000;
+    //Most hedges that can be saved up
+    private static final long MAX_TOKENS = 10 * HEDGE;
+
+    private final double percentile;
+    private final long budget;
+    private final ConcurrentMap<String, Latencies> latencies = new ConcurrentHashMap<>();
+    private long tokens;
+
+    /**
+     * @param percentile percentile of the latency after which a call is hedged (i.e. 95), 0 to never hedge
+     * @param budget most hedges per call sent, i.e. 0.05 for at most one hedge every 20 calls
+     */
+    HedgePolicy(double percentile, double budget) {
+        this.percentile = percentile;
+        this.budget = Math.round(budget * HEDGE);
+    }
+
+    static HedgePolicy none() {
+        return new HedgePolicy(0, 0);
+    }
+
+    boolean isEnabled() {
+        return percentile > 0 && budget > 0;
+    }
+
+    /**
+     * Records a call that went out, which adds to the hedge budget.
+     * @return milliseconds after which the call should be hedged, or -1 if it shouldn't
+     */
+    long onCall(String endpoint) {
+        if (!isEnabled()) {
+            return -1;
+        }
+        synchronized (this) {
+            tokens = Math.min(MAX_TOKENS, tokens + budget);
+        }
+        Latencies endpointLatencies = latencies.get(endpoint);
+        long delayNanos = endpointLatencies == null ? -1 : endpointLatencies.percentile(percentile);
+        return delayNanos < 0 ? -1 : TimeUnit.NANOSECONDS.toMillis(delayNanos);
+    }
+
+    //Takes a hedge out of the budget, if there is one left
+    synchronized boolean tryHedge() {
+        if (tokens < HEDGE) {
+            return false;
+        }
+        tokens -= HEDGE;
+        return true;
+    }
+
+    //Records how long a call that went through took
+    void onSample(String endpoint, long latencyNanos) {
+        if (isEnabled()) {
+            latencies.computeIfAbsent(endpoint, e -> new Latencies()).add(latencyNanos);
+        }
+    }
+
+    private static final class Latencies {
+        private final long[] samples = new long[WINDOW];
+        private long count;
+        //Percentile as of the last time it was computed, refreshed every few samples
+        private long cached = -1;
+        private long cachedAt;
+
+        private synchronized void add(long latencyNanos) {
+            samples[(int) (count++ % WINDOW)] = latencyNanos;
+        }
+
+        private synchronized long percentile(double percentile) {
+            if (count < MIN_SAMPLES) {
+                return -1;
+            }
+            if (cached < 0 || count - cachedAt >= MIN_SAMPLES) {
+                long[] sorted = Arrays.copyOf(samples, (int) Math.min(count, WINDOW));
+                Arrays.sort(sorted);
+                int index = (int) Math.ceil(percentile / 100 * sorted.length) - 1;
+                cached = sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+                cachedAt = count;
+            }
+            return cached;
+        }
+    }
+}
@@ -0,0 +1,232 @@
+/*
+* Copyright 2022 Basis Technology Corp.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.rosette.elasticsearch;
+
+import com.basistech.rosette.api.HttpRosetteAPI;
+import org.apache.logging.log4j.Logger;
+import org.elasticsearch.common.Randomness;
+import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.core.TimeValue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+
+/**
+ * Spreads calls over several Rosette instances, so on-premise installations don't need a load balancer in front
+ * of them. A call with a cache key goes to the instance picked for that key by rendezvous hashing, so the same
+ * content keeps going to the same instance and its own caches stay warm, unless that instance already has well
+ * over its share of the calls in flight. Other calls go to the less busy of two instances picked at random
+ * (power of two choices). Instances that fail several calls in a row are left out for a while (ejected).
+ */
+final class HostBalancer {
+
+    private static final Logger LOGGER = Loggers.getLogger(HostBalancer.class, HostBalancer.class.getName());
+
+    //How far over its share of the calls in flight the instance picked for a key may go before calls move away
+    private static final double LOAD_FACTOR = 1.25;
+
+    static final class Host {
+        private final String url;
+        private final HttpRosetteAPI api;
+        //Hash of the url, mixed with the key of a call to rank instances for it
+        private final long seed;
+        private final AtomicInteger outstanding = new AtomicInteger();
+        private final AtomicInteger failures = new AtomicInteger();
+        private volatile long ejectedUntil;
+        private volatile boolean ejected;
+
+        private Host(String url, HttpRosetteAPI api) {
+            this.url = url;
+            this.api = api;
+            this.seed = mix(url == null ? 0 : url.hashCode());
+        }
+
+        String url() {
+            return url;
+        }
+
+        HttpRosetteAPI api() {
+            return api;
+        }
+
+        int outstanding() {
+            return outstanding.get();
+        }
+
+        private boolean isEjected(long now) {
+            return ejected && now - ejectedUntil < 0;
+        }
+    }
+
+    private final List<Host> hosts;
+    //Consecutive failures that eject an instance, 0 never ejects any
+    private final int ejectionFailures;
+    private final long ejectionNanos;
+    private final boolean sticky;
+    private final LongSupplier nanoTime;
+
+    /**
+     * @param urls urls of the Rosette instances, a single null one for the default url of the api client
+     * @param clients builds the api client of an instance from its url
+     * @param ejectionFailures consecutive failed calls after which an instance is ejected, 0 to never eject
+     * @param ejectionTime how long an instance stays ejected
+     * @param sticky whether calls with a cache key keep going to the same instance
+     * @param nanoTime source of {@link System#nanoTime()}
+     */
+    HostBalancer(List<String> urls, Function<String, HttpRosetteAPI> clients, int ejectionFailures,
+                 TimeValue ejectionTime, boolean sticky, LongSupplier nanoTime) {
+        List<Host> hosts = new ArrayList<>(urls.size());
+        for (String url : urls) {
+            hosts.add(new Host(url, clients.apply(url)));
+        }
+        this.hosts = Collections.unmodifiableList(hosts);
+        this.ejectionFailures = ejectionFailures;
+        this.ejectionNanos = ejectionTime.nanos();
+        this.sticky = sticky;
+        this.nanoTime = nanoTime;
+    }
+
+    List<Host> hosts() {
+        return hosts;
+    }
+
+    //Calls in flight to each instance and whether it is left out, for the node stats
+    List<Map<String, Object>> stats() {
+        long now = nanoTime.getAsLong();
+        List<Map<String, Object>> stats = new ArrayList<>(hosts.size());
+        for (Host host : hosts) {
+            Map<String, Object> hostStats = new LinkedHashMap<>();
+            hostStats.put("url", host.url == null ? HttpRosetteAPI.DEFAULT_URL_BASE : host.url);
+            hostStats.put("in_flight", host.outstanding());
+            hostStats.put("ejected", host.isEjected(now));
+            stats.add(hostStats);
+        }
+        return stats;
+    }
+
+    /**
+     * Picks the instance to send a call to, which must then be reported with {@link #onSuccess} or
+     * {@link #onFailure}.
+     * @param key cache key of the call, or null if it has none
+     * @param avoid instance the same call was just sent to (i.e. for hedges and retries), or null
+     */
+    Host acquire(String key, Host avoid) {
+        Host host = pick(key, avoid);
+        host.outstanding.incrementAndGet();
+        return host;
+    }
+
+    private Host pick(String key, Host avoid) {
+        if (hosts.size() == 1) {
+            return hosts.get(0);
+        }
+        long now = nanoTime.getAsLong();
+        List<Host> candidates = new ArrayList<>(hosts.size());
+        int load = 0;
+        for (Host host : hosts) {
+            if (!host.isEjected(now) && host != avoid) {
+                candidates.add(host);
+                load += host.outstanding();
+            }
+        }
+        if (candidates.isEmpty()) {
+            //Every other instance is ejected, it's better to try one of them than to fail the call
+            for (Host host : hosts) {
+                if (host != avoid) {
+                    candidates.add(host);
+                    load += host.outstanding();
+                }
+            }
+        }
+        if (candidates.size() == 1) {
+            return candidates.get(0);
+        }
+        if (sticky && key != null) {
+            Host preferred = rendezvous(key, candidates);
+            //Bounded load: the instance may take up to its share of the calls in flight, including this one
+            if (preferred.outstanding() + 1 <= Math.ceil(LOAD_FACTOR * (load + 1) / candidates.size())) {
+                return preferred;
+            }
+        }
+        Random random = Randomness.get();
+        int first = random.nextInt(candidates.size());
+        int second = random.nextInt(candidates.size() - 1);
+        if (second >= first) {
+            second++;
+        }
+        Host a = candidates.get(first);
+        Host b = candidates.get(second);
+        return b.outstanding() < a.outstanding() ? b : a;
+    }
+
+    //Instance ranking highest for the key, which only changes for the keys of an instance that comes or goes
+    private static Host rendezvous(String key, List<Host> candidates) {
+        long keyHash = mix(key.hashCode());
+        Host best = null;
+        long bestScore = 0;
+        for (Host host : candidates) {
+            long score = mix(keyHash ^ host.seed);
+            if (best == null || Long.compareUnsigned(score, bestScore) > 0) {
+                best = host;
+                bestScore = score;
+            }
+        }
+        return best;
+    }
+
+    //The instance answered the call, even if with an error of the request
+    void onSuccess(Host host) {
+        host.outstanding.decrementAndGet();
+        host.failures.set(0);
+        if (host.ejected) {
+            host.ejected = false;
+            LOGGER.info("Rosette at [{}] is available again", host.url);
+        }
+    }
+
+    //The instance couldn't be reached, or answered with a server error
+    void onFailure(Host host) {
+        host.outstanding.decrementAndGet();
+        //Failures aren't reset by ejection, so a single failure after it ends ejects the instance again
+        if (ejectionFailures <= 0 || hosts.size() == 1 || host.failures.incrementAndGet() < ejectionFailures) {
+            return;
+        }
+        long now = nanoTime.getAsLong();
+        if (!host.isEjected(now)) {
+            LOGGER.warn("Rosette at [{}] failed {} calls in a row, leaving it out for [{}]", host.url,
+                    host.failures.get(), TimeValue.timeValueNanos(ejectionNanos));
+            host.ejectedUntil = now + ejectionNanos;
+            host.ejected = true;
+        }
+    }
+
+    //Finalizer of MurmurHash3, spreads the bits of a hash over the whole long
+    private static long mix(long hash) {
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
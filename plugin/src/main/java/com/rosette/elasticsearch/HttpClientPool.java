@@ -0,0 +1,285 @@
+/*
+* Copyright 2022 Basis Technology Corp.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.rosette.elasticsearch;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpResponseInterceptor;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.entity.GzipCompressingEntity;
+import org.apache.http.client.utils.DateUtils;
+import org.apache.http.config.SocketConfig;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpCoreContext;
+import org.elasticsearch.common.settings.Settings;
+
+import java.io.Closeable;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import static com.rosette.elasticsearch.RosetteTextAnalysisPlugin.ROSETTE_HTTP_COMPRESSION;
+import static com.rosette.elasticsearch.RosetteTextAnalysisPlugin.ROSETTE_HTTP_COMPRESSION_THRESHOLD;
+import static com.rosette.elasticsearch.RosetteTextAnalysisPlugin.ROSETTE_HTTP_CONNECT_TIMEOUT;
+import static com.rosette.elasticsearch.RosetteTextAnalysisPlugin.ROSETTE_HTTP_KEEP_ALIVE;
+import static com.rosette.elasticsearch.RosetteTextAnalysisPlugin.ROSETTE_HTTP_MAX_CONNECTIONS;
+import static com.rosette.elasticsearch.RosetteTextAnalysisPlugin.ROSETTE_HTTP_MAX_CONNECTIONS_PER_ROUTE;
+import static com.rosette.elasticsearch.RosetteTextAnalysisPlugin.ROSETTE_HTTP_POOL_TIMEOUT;
+import static com.rosette.elasticsearch.RosetteTextAnalysisPlugin.ROSETTE_HTTP_READ_TIMEOUT;
+import static com.rosette.elasticsearch.RosetteTextAnalysisPlugin.ROSETTE_HTTP_RECEIVE_BUFFER_SIZE;
+import static com.rosette.elasticsearch.RosetteTextAnalysisPlugin.ROSETTE_HTTP_SEND_BUFFER_SIZE;
+
+/**
+ * Pooled HTTP client the Rosette API client sends its requests with, configured from the node settings.
+ */
+public final class HttpClientPool implements Closeable {
+
+    //Retry-After of the last throttled response on this thread, the api client doesn't pass response headers on
+    private static final ThreadLocal<Long> RETRY_AFTER = new ThreadLocal<>();
+
+    private final PoolingHttpClientConnectionManager connectionManager;
+    private final CloseableHttpClient client;
+
+    HttpClientPool(Settings settings) {
+        this(settings, new RosetteStats());
+    }
+
+    /**
+     * @param stats metrics the bytes sent to and received from each endpoint are recorded in
+     */
+    HttpClientPool(Settings settings, RosetteStats stats) {
+        long keepAlive = ROSETTE_HTTP_KEEP_ALIVE.get(settings).millis();
+        //Connections are dropped once they've been open for the keep alive, so they follow load balancer changes
+        connectionManager = new PoolingHttpClientConnectionManager(keepAlive, TimeUnit.MILLISECONDS);
+        connectionManager.setMaxTotal(ROSETTE_HTTP_MAX_CONNECTIONS.get(settings));
+        connectionManager.setDefaultMaxPerRoute(ROSETTE_HTTP_MAX_CONNECTIONS_PER_ROUTE.get(settings));
+        connectionManager.setDefaultSocketConfig(SocketConfig.custom()
+                .setTcpNoDelay(true)
+                .setSoKeepAlive(true)
+                .setSoTimeout((int) ROSETTE_HTTP_READ_TIMEOUT.get(settings).millis())
+                //0 keeps the OS default
+                .setSndBufSize((int) ROSETTE_HTTP_SEND_BUFFER_SIZE.get(settings).getBytes())
+                .setRcvBufSize((int) ROSETTE_HTTP_RECEIVE_BUFFER_SIZE.get(settings).getBytes())
+                .build());
+
+        ByteCountingInterceptor byteCounter = new ByteCountingInterceptor(stats);
+        HttpClientBuilder clientBuilder = HttpClients.custom()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(RequestConfig.custom()
+                        .setConnectTimeout((int) ROSETTE_HTTP_CONNECT_TIMEOUT.get(settings).millis())
+                        .setSocketTimeout((int) ROSETTE_HTTP_READ_TIMEOUT.get(settings).millis())
+                        .setConnectionRequestTimeout((int) ROSETTE_HTTP_POOL_TIMEOUT.get(settings).millis())
+                        .build())
+                //Rosette doesn't say how long it keeps connections, so idle ones are reused up to the keep alive
+                .setKeepAliveStrategy((response, context) -> keepAlive)
+                .addInterceptorLast(new RetryAfterInterceptor())
+                //Bytes as they go over the wire: request bodies once compressed, responses before they're
+                // decompressed
+                .addInterceptorLast((HttpRequestInterceptor) byteCounter)
+                .addInterceptorFirst((HttpResponseInterceptor) byteCounter);
+        if (ROSETTE_HTTP_COMPRESSION.get(settings)) {
+            //First, so the compressed entity is the one content headers are set from. Responses are
+            // negotiated (and decompressed) by the client itself.
+            clientBuilder.addInterceptorFirst(new GzipRequestInterceptor(
+                    ROSETTE_HTTP_COMPRESSION_THRESHOLD.get(settings).getBytes()));
+        } else {
+            clientBuilder.disableContentCompression();
+        }
+        client = clientBuilder.build();
+    }
+
+    CloseableHttpClient getClient() {
+        return client;
+    }
+
+    /**
+     * Takes the Retry-After of the last throttled (429 or 503) response received on the calling thread. Calls are
+     * blocking, so it's the one of the last call made on the thread.
+     * @return milliseconds Rosette asked to wait before retrying, or null if it didn't
+     */
+    static Long takeRetryAfter() {
+        Long retryAfter = RETRY_AFTER.get();
+        RETRY_AFTER.remove();
+        return retryAfter;
+    }
+
+    /**
+     * @return usage of the pool: connections leased by calls in flight, idle connections, calls waiting on a
+     * connection and the most connections allowed
+     */
+    public PoolStats stats() {
+        return connectionManager.getTotalStats();
+    }
+
+    @Override
+    public void close() throws IOException {
+        client.close();
+    }
+
+    //Gzips request bodies that are large enough for it to pay off
+    static final class GzipRequestInterceptor implements HttpRequestInterceptor {
+        private final long threshold;
+
+        GzipRequestInterceptor(long threshold) {
+            this.threshold = threshold;
+        }
+
+        @Override
+        public void process(HttpRequest request, HttpContext context) {
+            if (!(request instanceof HttpEntityEnclosingRequest)) {
+                return;
+            }
+            HttpEntity entity = ((HttpEntityEnclosingRequest) request).getEntity();
+            //Bodies of unknown length are streamed, and left as they are
+            if (entity == null || entity.getContentEncoding() != null || entity.getContentLength() < 0
+                    || entity.getContentLength() < threshold) {
+                return;
+            }
+            ((HttpEntityEnclosingRequest) request).setEntity(new GzipCompressingEntity(entity));
+        }
+    }
+
+    //Counts the bytes of request and response bodies, by the endpoint (last segment of the path) they're for
+    static final class ByteCountingInterceptor implements HttpRequestInterceptor, HttpResponseInterceptor {
+        private final RosetteStats stats;
+
+        ByteCountingInterceptor(RosetteStats stats) {
+            this.stats = stats;
+        }
+
+        @Override
+        public void process(HttpRequest request, HttpContext context) {
+            if (!(request instanceof HttpEntityEnclosingRequest)) {
+                return;
+            }
+            HttpEntity entity = ((HttpEntityEnclosingRequest) request).getEntity();
+            if (entity == null) {
+                return;
+            }
+            String endpoint = endpoint(request);
+            ((HttpEntityEnclosingRequest) request).setEntity(new HttpEntityWrapper(entity) {
+                @Override
+                public void writeTo(OutputStream out) throws IOException {
+                    super.writeTo(new FilterOutputStream(out) {
+                        @Override
+                        public void write(int b) throws IOException {
+                            out.write(b);
+                            stats.onBytesSent(endpoint, 1);
+                        }
+
+                        @Override
+                        public void write(byte[] b, int off, int len) throws IOException {
+                            out.write(b, off, len);
+                            stats.onBytesSent(endpoint, len);
+                        }
+                    });
+                }
+            });
+        }
+
+        @Override
+        public void process(HttpResponse response, HttpContext context) {
+            HttpEntity entity = response.getEntity();
+            HttpRequest request = HttpCoreContext.adapt(context).getRequest();
+            if (entity == null || request == null) {
+                return;
+            }
+            String endpoint = endpoint(request);
+            response.setEntity(new HttpEntityWrapper(entity) {
+                @Override
+                public InputStream getContent() throws IOException {
+                    return new FilterInputStream(super.getContent()) {
+                        @Override
+                        public int read() throws IOException {
+                            int b = super.read();
+                            if (b >= 0) {
+                                stats.onBytesReceived(endpoint, 1);
+                            }
+                            return b;
+                        }
+
+                        @Override
+                        public int read(byte[] b, int off, int len) throws IOException {
+                            int read = super.read(b, off, len);
+                            if (read > 0) {
+                                stats.onBytesReceived(endpoint, read);
+                            }
+                            return read;
+                        }
+                    };
+                }
+
+                @Override
+                public void writeTo(OutputStream out) throws IOException {
+                    try (InputStream in = getContent()) {
+                        byte[] buffer = new byte[8192];
+                        int read;
+                        while ((read = in.read(buffer)) >= 0) {
+                            out.write(buffer, 0, read);
+                        }
+                    }
+                }
+            });
+        }
+
+        //Endpoints are named by their service path, i.e. "/entities"
+        static String endpoint(HttpRequest request) {
+            String uri = request.getRequestLine().getUri();
+            int query = uri.indexOf('?');
+            if (query >= 0) {
+                uri = uri.substring(0, query);
+            }
+            int slash = uri.lastIndexOf('/');
+            return slash < 0 ? uri : uri.substring(slash);
+        }
+    }
+
+    //Records the Retry-After header of throttled responses, in seconds or as an HTTP date
+    static final class RetryAfterInterceptor implements HttpResponseInterceptor {
+        @Override
+        public void process(HttpResponse response, HttpContext context) {
+            RETRY_AFTER.remove();
+            int status = response.getStatusLine().getStatusCode();
+            Header header = response.getFirstHeader(HttpHeaders.RETRY_AFTER);
+            if ((status != 429 && status != 503) || header == null) {
+                return;
+            }
+            try {
+                RETRY_AFTER.set(TimeUnit.SECONDS.toMillis(Long.parseLong(header.getValue().trim())));
+            } catch (NumberFormatException e) {
+                Date date = DateUtils.parseDate(header.getValue());
+                if (date != null) {
+                    RETRY_AFTER.set(Math.max(0, date.getTime() - System.currentTimeMillis()));
+                }
+            }
+        }
+    }
+}
@@ -15,19 +15,15 @@
 */
 package com.rosette.elasticsearch;
 
-import com.basistech.rosette.api.HttpRosetteAPIException;
 import com.basistech.rosette.apimodel.DocumentRequest;
 import com.basistech.rosette.apimodel.LanguageOptions;
 import com.basistech.rosette.apimodel.LanguageResponse;
-import org.apache.logging.log4j.Logger;
 import org.elasticsearch.ElasticsearchException;
-import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.action.ActionListener;
 import org.elasticsearch.ingest.ConfigurationUtils;
 import org.elasticsearch.ingest.IngestDocument;
 import org.elasticsearch.ingest.Processor;
 
-import java.security.AccessController;
-import java.security.PrivilegedAction;
 import java.util.Map;
 
 import static com.basistech.rosette.api.common.AbstractRosetteAPI.LANGUAGE_SERVICE_PATH;
@@ -36,44 +32,68 @@ public class LanguageProcessor extends RosetteAbstractProcessor {
 
     public static final String TYPE = "ros_language";
 
-    private static final Logger LOGGER = Loggers.getLogger(LanguageProcessor.class, LanguageProcessor.class.getName());
+    private TextSampler sampler;
+    private LocalLanguageIdentifier localIdentifier;
+    //Least confidence for a local guess to be used instead of calling Rosette, 0 always calls Rosette
+    private double localThreshold;
 
-    LanguageProcessor(RosetteApiWrapper rosAPI, String tag, String description, String inputField, String targetField) {
+    LanguageProcessor(RosetteApiWrapper rosAPI, String tag, String description, String inputField, String targetField,
+                      TextSampler sampler, LocalLanguageIdentifier localIdentifier, double localThreshold) {
         super(rosAPI, tag, description, TYPE, inputField, targetField);
+        this.sampler = sampler;
+        this.localIdentifier = localIdentifier;
+        this.localThreshold = localThreshold;
     }
 
     @Override
-    public void processDocument(String inputText, IngestDocument ingestDocument) throws Exception {
+    public void processDocument(String inputText, IngestDocument ingestDocument, ActionListener<Object> listener) {
+        if (localThreshold > 0) {
+            String language = localIdentifier.identify(inputText, localThreshold);
+            if (language != null) {
+                listener.onResponse(language);
+                return;
+            }
+        }
+
         // call /language endpoint and set the result in the field
         DocumentRequest<LanguageOptions> request = DocumentRequest.<LanguageOptions>builder()
-                .content(inputText).build();
-        LanguageResponse response;
-        try {
-            // RosApi client binding's Jackson needs elevated privilege
-            response = AccessController.doPrivileged((PrivilegedAction<LanguageResponse>) () ->
-                    rosAPI.getHttpRosetteAPI().perform(LANGUAGE_SERVICE_PATH, request,
-                            LanguageResponse.class)
-            );
-        } catch (HttpRosetteAPIException ex) {
-            LOGGER.error(ex.getErrorResponse().getMessage());
-            throw new ElasticsearchException(ex.getErrorResponse().getMessage(), ex);
-        }
+                .content(sampler.sample(inputText)).build();
+        rosAPI.perform(LANGUAGE_SERVICE_PATH, request, LanguageResponse.class, listener.map(response -> {
+            if (response.getLanguageDetections() != null
+                    && !response.getLanguageDetections().isEmpty()
+                    && response.getLanguageDetections().get(0) != null
+                    && response.getLanguageDetections().get(0).getLanguage() != null) {
+                return response.getLanguageDetections().get(0).getLanguage().ISO639_3();
+            } else {
+                throw new ElasticsearchException(TYPE + " ingest processor failed to guess language of document.");
+            }
+        }));
+    }
 
-        if (response.getLanguageDetections() != null
-                && !response.getLanguageDetections().isEmpty()
-                && response.getLanguageDetections().get(0) != null
-                && response.getLanguageDetections().get(0).getLanguage() != null) {
-            ingestDocument.setFieldValue(targetField, response.getLanguageDetections().get(0).getLanguage().ISO639_3());
-        } else {
-            throw new ElasticsearchException(TYPE + " ingest processor failed to guess language of document.");
+    //Later Rosette processors pass the language on, so Rosette doesn't detect it again for each of them. It's only
+    // set along with the target field, as analyses of an enrich processor run concurrently with one another.
+    @Override
+    protected void setTargetFields(IngestDocument ingestDocument, Object result) {
+        super.setTargetFields(ingestDocument, result);
+        ingestDocument.getIngestMetadata().put(LANGUAGE_HINT, result);
+    }
+
+    //The language of kept results is passed on as a fresh one would be
+    @Override
+    protected void reuseTargetFields(IngestDocument ingestDocument) {
+        Object language = ingestDocument.getFieldValue(targetField, Object.class);
+        if (language instanceof String) {
+            ingestDocument.getIngestMetadata().put(LANGUAGE_HINT, language);
         }
     }
 
     public static final class Factory implements Processor.Factory {
         private RosetteApiWrapper rosAPI;
+        private LocalLanguageIdentifier localIdentifier;
 
-        Factory(RosetteApiWrapper rosAPI) {
+        Factory(RosetteApiWrapper rosAPI, LocalLanguageIdentifier localIdentifier) {
             this.rosAPI = rosAPI;
+            this.localIdentifier = localIdentifier;
         }
 
         @Override
@@ -82,12 +102,26 @@ public class LanguageProcessor extends RosetteAbstractProcessor {
             String inputField = ConfigurationUtils.readStringProperty(TYPE, processorTag, config, "field");
             String targetField = ConfigurationUtils.readStringProperty(TYPE, processorTag, config,
                     Parameters.TARGET_FIELD.name, Parameters.TARGET_FIELD.defaultValue);
-            return new LanguageProcessor(rosAPI, processorTag, processorDescription, inputField, targetField);
+            TextSampler sampler = TextSampler.readConfig(TYPE, processorTag, config);
+            //readDoubleProperty fails on a missing property, and local_threshold is optional
+            Double localThreshold = config.containsKey(Parameters.LOCAL_THRESHOLD.name)
+                    ? ConfigurationUtils.readDoubleProperty(TYPE, processorTag, config, Parameters.LOCAL_THRESHOLD.name)
+                    : null;
+            if (localThreshold != null && (localThreshold <= 0 || localThreshold > 1)) {
+                throw ConfigurationUtils.newConfigurationException(TYPE, processorTag,
+                        Parameters.LOCAL_THRESHOLD.name, "must be greater than 0 and at most 1");
+            }
+            LanguageProcessor processor = new LanguageProcessor(rosAPI, processorTag, processorDescription, inputField,
+                    targetField, sampler, localIdentifier, localThreshold == null ? 0 : localThreshold);
+            processor.setOnUnavailable(readOnUnavailable(TYPE, processorTag, config));
+            processor.readReprocessOptions(processorTag, config);
+            return processor;
         }
     }
 
     enum Parameters {
-        TARGET_FIELD("target_field", "ros_language");
+        TARGET_FIELD("target_field", "ros_language"),
+        LOCAL_THRESHOLD("local_threshold", null);
 
         String name;
         String defaultValue;
@@ -0,0 +1,126 @@
+/*
+* Copyright 2022 Basis Technology Corp.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.rosette.elasticsearch;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Identifies the language of text written in a script that is (nearly) only used for one language, i.e. Hangul
+ * or Thai, from a histogram of the scripts of its letters. Text in shared scripts, such as Latin or Cyrillic, is
+ * left to Rosette. One instance is shared by all language processors of a node, and counts how often the local
+ * guess was used.
+ */
+final class LocalLanguageIdentifier {
+
+    //Letters looked at, the script mix of a longer text is clear from its start
+    private static final int MAX_LETTERS = 1000;
+    //Least share of the letters in kana for text to be taken as Japanese, Chinese text may quote a kana name
+    private static final double MIN_KANA_SHARE = 0.2;
+
+    private static final Map<Character.UnicodeScript, String> SCRIPT_LANGUAGES =
+            new EnumMap<>(Character.UnicodeScript.class);
+
+    //Hebrew, Georgian and Myanmar are left out, as Yiddish and Ladino, Mingrelian and Svan, and Shan, Mon and
+    // Karen are written in them too
+    static {
+        SCRIPT_LANGUAGES.put(Character.UnicodeScript.THAI, "tha");
+        SCRIPT_LANGUAGES.put(Character.UnicodeScript.GREEK, "ell");
+        SCRIPT_LANGUAGES.put(Character.UnicodeScript.ARMENIAN, "hye");
+        SCRIPT_LANGUAGES.put(Character.UnicodeScript.KHMER, "khm");
+        SCRIPT_LANGUAGES.put(Character.UnicodeScript.LAO, "lao");
+        SCRIPT_LANGUAGES.put(Character.UnicodeScript.SINHALA, "sin");
+        SCRIPT_LANGUAGES.put(Character.UnicodeScript.TAMIL, "tam");
+        SCRIPT_LANGUAGES.put(Character.UnicodeScript.TELUGU, "tel");
+        SCRIPT_LANGUAGES.put(Character.UnicodeScript.KANNADA, "kan");
+        SCRIPT_LANGUAGES.put(Character.UnicodeScript.MALAYALAM, "mal");
+        SCRIPT_LANGUAGES.put(Character.UnicodeScript.GUJARATI, "guj");
+        SCRIPT_LANGUAGES.put(Character.UnicodeScript.GURMUKHI, "pan");
+        SCRIPT_LANGUAGES.put(Character.UnicodeScript.ORIYA, "ori");
+    }
+
+    private final LongAdder local = new LongAdder();
+    private final LongAdder remote = new LongAdder();
+
+    /**
+     * @param text text to identify the language of
+     * @param threshold least share of the letters that must be in the language's script(s)
+     * @return ISO 639-3 code of the language, or null when the text should be sent to Rosette
+     */
+    String identify(String text, double threshold) {
+        String language = guess(text, threshold);
+        if (language == null) {
+            remote.increment();
+        } else {
+            local.increment();
+        }
+        return language;
+    }
+
+    //Number of texts identified locally
+    long localCount() {
+        return local.sum();
+    }
+
+    //Number of texts left to Rosette
+    long remoteCount() {
+        return remote.sum();
+    }
+
+    private static String guess(String text, double threshold) {
+        Map<Character.UnicodeScript, Integer> histogram = new EnumMap<>(Character.UnicodeScript.class);
+        int letters = 0;
+        for (int i = 0; i < text.length() && letters < MAX_LETTERS; ) {
+            int codePoint = text.codePointAt(i);
+            i += Character.charCount(codePoint);
+            if (!Character.isLetter(codePoint)) {
+                continue;
+            }
+            Character.UnicodeScript script = Character.UnicodeScript.of(codePoint);
+            if (script == Character.UnicodeScript.COMMON || script == Character.UnicodeScript.INHERITED) {
+                continue;
+            }
+            histogram.merge(script, 1, Integer::sum);
+            letters++;
+        }
+        if (letters == 0) {
+            return null;
+        }
+
+        int han = histogram.getOrDefault(Character.UnicodeScript.HAN, 0);
+        int kana = histogram.getOrDefault(Character.UnicodeScript.HIRAGANA, 0)
+                + histogram.getOrDefault(Character.UnicodeScript.KATAKANA, 0);
+        int hangul = histogram.getOrDefault(Character.UnicodeScript.HANGUL, 0);
+        //Japanese and Korean are also written with Chinese characters, which alone don't tell the language
+        if (kana > 0 && kana >= hangul) {
+            return (double) kana / letters >= MIN_KANA_SHARE && (double) (kana + han) / letters >= threshold
+                    ? "jpn" : null;
+        }
+        if (hangul > 0 && hangul >= han) {
+            return (double) (hangul + han) / letters >= threshold ? "kor" : null;
+        }
+
+        Map.Entry<Character.UnicodeScript, Integer> top = null;
+        for (Map.Entry<Character.UnicodeScript, Integer> entry : histogram.entrySet()) {
+            if (top == null || entry.getValue() > top.getValue()) {
+                top = entry;
+            }
+        }
+        String language = SCRIPT_LANGUAGES.get(top.getKey());
+        return language != null && (double) top.getValue() / letters >= threshold ? language : null;
+    }
+}
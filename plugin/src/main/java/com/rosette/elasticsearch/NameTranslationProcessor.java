@@ -15,30 +15,22 @@
 */
 package com.rosette.elasticsearch;
 
-import com.basistech.rosette.api.HttpRosetteAPIException;
 import com.basistech.rosette.api.common.AbstractRosetteAPI;
 import com.basistech.rosette.apimodel.NameTranslationRequest;
 import com.basistech.rosette.apimodel.NameTranslationResponse;
 import com.basistech.util.ISO15924;
 import com.basistech.util.LanguageCode;
-import org.apache.logging.log4j.Logger;
-import org.elasticsearch.ElasticsearchException;
-import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.action.ActionListener;
 import org.elasticsearch.ingest.ConfigurationUtils;
 import org.elasticsearch.ingest.IngestDocument;
 import org.elasticsearch.ingest.Processor;
 
-import java.security.AccessController;
-import java.security.PrivilegedAction;
 import java.util.Map;
 
 public class NameTranslationProcessor extends RosetteAbstractProcessor {
 
     public static final String TYPE = "ros_name_translation";
 
-    private static final Logger LOGGER = Loggers
-            .getLogger(NameTranslationProcessor.class, NameTranslationProcessor.class.getName());
-
     private LanguageCode targetLanguage;
     private ISO15924 targetScript;
     private String entityType;
@@ -59,7 +51,7 @@ public class NameTranslationProcessor extends RosetteAbstractProcessor {
     }
 
     @Override
-    public void processDocument(String inputText, IngestDocument ingestDocument) throws Exception {
+    public void processDocument(String inputText, IngestDocument ingestDocument, ActionListener<Object> listener) {
         // call /name-translation endpoint and set the result in the field
         NameTranslationRequest request = NameTranslationRequest.builder()
                 .name(inputText)
@@ -70,19 +62,8 @@ public class NameTranslationProcessor extends RosetteAbstractProcessor {
                 .sourceLanguageOfOrigin(sourceOrigin)
                 .sourceScript(sourceScript).build();
 
-        NameTranslationResponse response;
-        try {
-            // RosApi client binding's Jackson needs elevated privilege
-            response = AccessController.doPrivileged((PrivilegedAction<NameTranslationResponse>) () ->
-                    rosAPI.getHttpRosetteAPI().perform(AbstractRosetteAPI.NAME_TRANSLATION_SERVICE_PATH, request,
-                            NameTranslationResponse.class)
-            );
-        } catch (HttpRosetteAPIException ex) {
-            LOGGER.error(ex.getErrorResponse().getMessage());
-            throw new ElasticsearchException(ex.getErrorResponse().getMessage(), ex);
-        }
-
-        ingestDocument.setFieldValue(targetField, response.getTranslation());
+        rosAPI.perform(AbstractRosetteAPI.NAME_TRANSLATION_SERVICE_PATH, request, NameTranslationResponse.class,
+                listener.map(NameTranslationResponse::getTranslation));
     }
 
     public static final class Factory implements Processor.Factory {
@@ -118,8 +99,12 @@ public class NameTranslationProcessor extends RosetteAbstractProcessor {
                     .readStringProperty(TYPE, processorTag, config,
                             Parameters.SOURCE_LANGUAGE_ORIGIN.name, Parameters.SOURCE_LANGUAGE_ORIGIN.defaultValue));
 
-            return new NameTranslationProcessor(rosAPI, processorTag, processorDescription, inputField, targetField,
-                    targetLanguage, targetScript, entityType, sourceLanguage, sourceScript, sourceOrigin);
+            NameTranslationProcessor processor = new NameTranslationProcessor(rosAPI, processorTag,
+                    processorDescription, inputField, targetField, targetLanguage, targetScript, entityType,
+                    sourceLanguage, sourceScript, sourceOrigin);
+            processor.setOnUnavailable(readOnUnavailable(TYPE, processorTag, config));
+            processor.readReprocessOptions(processorTag, config);
+            return processor;
         }
     }
 
@@ -0,0 +1,486 @@
+/*
+* Copyright 2022 Basis Technology Corp.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.rosette.elasticsearch;
+
+import org.apache.logging.log4j.Logger;
+import org.elasticsearch.common.hash.MurmurHash3;
+import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.core.TimeValue;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * Optional on-disk tier of the response cache, so that a node restart doesn't leave the cache cold.
+ * Serialized responses are appended to a memory-mapped log under the node's data path and found through an
+ * off-heap open addressing hash index, which is rebuilt from the log when the node starts. Once the log fills
+ * up it is compacted in the background into a new log that only holds the live entries. The new log is written
+ * under a temporary name and only renamed into place once it is complete, so a node that stops halfway through
+ * a compaction keeps the previous log.
+ */
+public final class PersistentResponseCache implements Closeable {
+
+    private static final Logger LOGGER = Loggers.getLogger(PersistentResponseCache.class,
+            PersistentResponseCache.class.getName());
+
+    static final String DIRECTORY = "rosette_cache";
+    private static final String LOG_PREFIX = "responses-";
+    private static final String LOG_SUFFIX = ".log";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    //Record layout: length, crc32 of everything after it, write time, key length, key, serialized response
+    private static final int HEADER_BYTES = Integer.BYTES + Integer.BYTES + Long.BYTES + Integer.BYTES;
+    //Index slot layout: key hash (0 marks an empty slot), record offset
+    private static final int SLOT_BYTES = Long.BYTES + Long.BYTES;
+    private static final int MIN_INDEX_SLOTS = 1024;
+
+    private final Path directory;
+    private final int capacity;
+    private final long ttlMillis;
+    private final Consumer<Runnable> executor;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final AtomicBoolean compacting = new AtomicBoolean();
+
+    //All of the following are guarded by lock
+    private long generation;
+    private FileChannel channel;
+    private MappedByteBuffer log;
+    private int writePosition;
+    private ByteBuffer index;
+    private int liveEntries;
+    private long liveBytes;
+    private boolean closed;
+
+    /**
+     * Opens the cache in the given directory, picking up the entries of a previous run.
+     * @param directory where the log lives
+     * @param size maximum size of the log
+     * @param ttl how long an entry stays usable after it was written
+     * @param executor runs background compactions
+     * @throws IOException if the log can't be opened
+     */
+    PersistentResponseCache(Path directory, ByteSizeValue size, TimeValue ttl, Consumer<Runnable> executor)
+            throws IOException {
+        this.directory = directory;
+        this.capacity = (int) Math.min(Integer.MAX_VALUE, size.getBytes());
+        this.ttlMillis = ttl.millis();
+        this.executor = executor;
+
+        Files.createDirectories(directory);
+        //Logs only get their name once complete, so the latest one is kept. Older ones are left over from a
+        // compaction that stopped before it deleted them, temporary ones from one that stopped before it was done.
+        long latest = -1;
+        try (DirectoryStream<Path> logs = Files.newDirectoryStream(directory, LOG_PREFIX + "*" + LOG_SUFFIX)) {
+            for (Path path : logs) {
+                latest = Math.max(latest, generationOf(path));
+            }
+        }
+        try (DirectoryStream<Path> temps = Files.newDirectoryStream(directory,
+                LOG_PREFIX + "*" + LOG_SUFFIX + TEMP_SUFFIX)) {
+            for (Path path : temps) {
+                Files.deleteIfExists(path);
+            }
+        }
+        try (DirectoryStream<Path> logs = Files.newDirectoryStream(directory, LOG_PREFIX + "*" + LOG_SUFFIX)) {
+            for (Path path : logs) {
+                if (generationOf(path) != latest) {
+                    Files.deleteIfExists(path);
+                }
+            }
+        }
+        generation = Math.max(latest, 0);
+        channel = openLog(generation);
+        log = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        index = newIndex(MIN_INDEX_SLOTS);
+        recover();
+        LOGGER.info("Opened persistent Rosette response cache at {} with {} entries", directory, liveEntries);
+    }
+
+    /**
+     * Looks up a response.
+     * @param key cache key, as built by {@link RosetteResponseCache#key}
+     * @param resultType type to read the response as
+     * @return the response, or null if there is no usable entry for the key
+     */
+    <R> R get(String key, Class<R> resultType) {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        byte[] value;
+        lock.readLock().lock();
+        try {
+            int offset = find(hash(keyBytes));
+            if (offset < 0 || !matches(offset, keyBytes) || isExpired(offset)) {
+                return null;
+            }
+            int length = log.getInt(offset);
+            value = new byte[length - HEADER_BYTES - keyBytes.length];
+            ByteBuffer record = log.duplicate();
+            record.position(offset + HEADER_BYTES + keyBytes.length);
+            record.get(value);
+        } finally {
+            lock.readLock().unlock();
+        }
+        try {
+            return RosetteResponseCache.deserialize(value, resultType);
+        } catch (Exception e) {
+            LOGGER.debug("Failed to read cached Rosette response", e);
+            return null;
+        }
+    }
+
+    /**
+     * Stores a response. Writes are dropped rather than waited on while the log is being compacted.
+     * @param key cache key, as built by {@link RosetteResponseCache#key}
+     * @param response response to store
+     */
+    void put(String key, Object response) {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        byte[] value;
+        try {
+            value = RosetteResponseCache.serialize(response);
+        } catch (Exception e) {
+            LOGGER.debug("Failed to serialize Rosette response for the cache", e);
+            return;
+        }
+        int length = HEADER_BYTES + keyBytes.length + value.length;
+        //A single response shouldn't push everything else out
+        if (length > capacity / 4) {
+            return;
+        }
+        boolean full = false;
+        if (!compacting.get() && lock.writeLock().tryLock()) {
+            try {
+                if (closed) {
+                    return;
+                } else if (writePosition + length + Integer.BYTES > capacity) {
+                    full = true;
+                } else {
+                    append(writePosition, keyBytes, value, System.currentTimeMillis());
+                    index(hash(keyBytes), writePosition);
+                    writePosition += length;
+                    //End marker, so recovery never reads past the last complete record
+                    log.putInt(writePosition, 0);
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+        if (full) {
+            compactInBackground();
+        }
+    }
+
+    public int count() {
+        lock.readLock().lock();
+        try {
+            return liveEntries;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Closes the log. A compaction that is copying entries is waited for, and its result is thrown away.
+     */
+    @Override
+    public void close() throws IOException {
+        lock.writeLock().lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            log.force();
+            channel.close();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void compactInBackground() {
+        if (compacting.compareAndSet(false, true)) {
+            executor.accept(() -> {
+                try {
+                    compact();
+                } catch (Exception e) {
+                    LOGGER.warn("Failed to compact persistent Rosette response cache", e);
+                } finally {
+                    compacting.set(false);
+                }
+            });
+        }
+    }
+
+    //Copies the live, unexpired records into the next generation of the log and switches over to it.
+    // If they would take more than half the log, the oldest ones are dropped.
+    void compact() throws IOException {
+        long nextGeneration;
+        Path temp;
+        ByteBuffer nextIndex;
+        int nextPosition = 0;
+        int nextEntries = 0;
+        lock.readLock().lock();
+        try {
+            if (closed) {
+                return;
+            }
+            long skipBytes = Math.max(0, liveBytes - capacity / 2);
+            nextGeneration = generation + 1;
+            temp = tempPath(nextGeneration);
+            nextIndex = newIndex(slotsFor(liveEntries));
+            try (FileChannel tempChannel = FileChannel.open(temp, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                for (int offset = 0; offset < writePosition; offset += log.getInt(offset)) {
+                    int length = log.getInt(offset);
+                    if (!isLive(offset) || isExpired(offset)) {
+                        continue;
+                    }
+                    if (skipBytes > 0) {
+                        skipBytes -= length;
+                        continue;
+                    }
+                    ByteBuffer record = log.duplicate();
+                    record.position(offset).limit(offset + length);
+                    writeFully(tempChannel, record, nextPosition);
+                    nextEntries += indexInto(nextIndex, slotHash(offset), nextPosition);
+                    nextPosition += length;
+                }
+                ByteBuffer endMarker = ByteBuffer.allocate(Integer.BYTES);
+                endMarker.putInt(0, 0);
+                writeFully(tempChannel, endMarker, nextPosition);
+                tempChannel.force(true);
+            } catch (IOException | RuntimeException e) {
+                Files.deleteIfExists(temp);
+                throw e;
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        FileChannel previousChannel;
+        long previousGeneration;
+        lock.writeLock().lock();
+        try {
+            //Closed while the entries were copied, the log that was closed is the one to keep
+            if (closed) {
+                Files.deleteIfExists(temp);
+                return;
+            }
+            //Only now that the new log is complete and on disk it gets a name a restart picks up
+            Files.move(temp, logPath(nextGeneration), StandardCopyOption.ATOMIC_MOVE);
+            FileChannel nextChannel = openLog(nextGeneration);
+            MappedByteBuffer nextLog;
+            try {
+                nextLog = nextChannel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+            } catch (IOException e) {
+                nextChannel.close();
+                throw e;
+            }
+            previousChannel = channel;
+            previousGeneration = generation;
+            generation = nextGeneration;
+            channel = nextChannel;
+            log = nextLog;
+            index = nextIndex;
+            writePosition = nextPosition;
+            liveEntries = nextEntries;
+            liveBytes = nextPosition;
+        } finally {
+            lock.writeLock().unlock();
+        }
+        //The mapping of the previous log is released once it's garbage collected
+        previousChannel.close();
+        Files.deleteIfExists(logPath(previousGeneration));
+        LOGGER.debug("Compacted persistent Rosette response cache to {} entries", nextEntries);
+    }
+
+    private static void writeFully(FileChannel target, ByteBuffer source, long position) throws IOException {
+        while (source.hasRemaining()) {
+            position += target.write(source, position);
+        }
+    }
+
+    //Rebuilds the index from the log, stopping at the first incomplete or corrupted record
+    private void recover() {
+        int offset = 0;
+        while (offset + HEADER_BYTES <= capacity) {
+            int length = log.getInt(offset);
+            if (length < HEADER_BYTES || offset + length > capacity
+                    || log.getInt(offset + Integer.BYTES) != crc(offset)) {
+                break;
+            }
+            if (!isExpired(offset)) {
+                index(slotHash(offset), offset);
+            }
+            offset += length;
+        }
+        writePosition = offset;
+        if (writePosition + Integer.BYTES <= capacity) {
+            log.putInt(writePosition, 0);
+        }
+    }
+
+    private void append(int offset, byte[] key, byte[] value, long writeTime) {
+        ByteBuffer record = log.duplicate();
+        record.position(offset);
+        record.putInt(HEADER_BYTES + key.length + value.length);
+        record.putInt(0);
+        record.putLong(writeTime);
+        record.putInt(key.length);
+        record.put(key);
+        record.put(value);
+        log.putInt(offset + Integer.BYTES, crc(offset));
+    }
+
+    private int crc(int offset) {
+        int length = log.getInt(offset);
+        ByteBuffer covered = log.duplicate();
+        covered.position(offset + Integer.BYTES * 2).limit(offset + length);
+        CRC32 crc = new CRC32();
+        crc.update(covered);
+        return (int) crc.getValue();
+    }
+
+    private boolean isExpired(int offset) {
+        long writeTime = log.getLong(offset + Integer.BYTES * 2);
+        return ttlMillis > 0 && System.currentTimeMillis() - writeTime > ttlMillis;
+    }
+
+    private boolean matches(int offset, byte[] key) {
+        int keyLength = log.getInt(offset + Integer.BYTES * 2 + Long.BYTES);
+        if (keyLength != key.length) {
+            return false;
+        }
+        int keyOffset = offset + HEADER_BYTES;
+        for (int i = 0; i < keyLength; i++) {
+            if (log.get(keyOffset + i) != key[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    //A record is live when the index still points at it, rather than at a newer record for the same key
+    private boolean isLive(int offset) {
+        return find(slotHash(offset)) == offset;
+    }
+
+    private long slotHash(int offset) {
+        int keyLength = log.getInt(offset + Integer.BYTES * 2 + Long.BYTES);
+        byte[] key = new byte[keyLength];
+        ByteBuffer record = log.duplicate();
+        record.position(offset + HEADER_BYTES);
+        record.get(key);
+        return hash(key);
+    }
+
+    private void index(long hash, int offset) {
+        if ((liveEntries + 1) * 2 > index.capacity() / SLOT_BYTES) {
+            ByteBuffer grown = newIndex(index.capacity() / SLOT_BYTES * 2);
+            for (int slot = 0; slot < index.capacity(); slot += SLOT_BYTES) {
+                if (index.getLong(slot) != 0) {
+                    indexInto(grown, index.getLong(slot), (int) index.getLong(slot + Long.BYTES));
+                }
+            }
+            index = grown;
+        }
+        int previous = find(hash);
+        if (previous >= 0) {
+            liveBytes -= log.getInt(previous);
+        }
+        liveEntries += indexInto(index, hash, offset);
+        liveBytes += log.getInt(offset);
+    }
+
+    //Returns 1 if a new slot was used, 0 if an existing entry for the hash was replaced
+    private static int indexInto(ByteBuffer target, long hash, int offset) {
+        int mask = target.capacity() / SLOT_BYTES - 1;
+        for (int slot = (int) (hash & mask); ; slot = (slot + 1) & mask) {
+            long slotHash = target.getLong(slot * SLOT_BYTES);
+            if (slotHash == 0 || slotHash == hash) {
+                target.putLong(slot * SLOT_BYTES, hash);
+                target.putLong(slot * SLOT_BYTES + Long.BYTES, offset);
+                return slotHash == 0 ? 1 : 0;
+            }
+        }
+    }
+
+    private int find(long hash) {
+        int mask = index.capacity() / SLOT_BYTES - 1;
+        for (int slot = (int) (hash & mask); ; slot = (slot + 1) & mask) {
+            long slotHash = index.getLong(slot * SLOT_BYTES);
+            if (slotHash == 0) {
+                return -1;
+            } else if (slotHash == hash) {
+                return (int) index.getLong(slot * SLOT_BYTES + Long.BYTES);
+            }
+        }
+    }
+
+    private static ByteBuffer newIndex(int slots) {
+        return ByteBuffer.allocateDirect(slots * SLOT_BYTES);
+    }
+
+    private static int slotsFor(int entries) {
+        int slots = MIN_INDEX_SLOTS;
+        while (slots < entries * 2) {
+            slots <<= 1;
+        }
+        return slots;
+    }
+
+    private static long hash(byte[] key) {
+        long hash = MurmurHash3.hash128(key, 0, key.length, 0, new MurmurHash3.Hash128()).h1;
+        //0 marks an empty index slot
+        return hash == 0 ? 1 : hash;
+    }
+
+    private FileChannel openLog(long logGeneration) throws IOException {
+        return FileChannel.open(logPath(logGeneration), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+    }
+
+    private Path logPath(long logGeneration) {
+        return directory.resolve(LOG_PREFIX + logGeneration + LOG_SUFFIX);
+    }
+
+    private Path tempPath(long logGeneration) {
+        return directory.resolve(LOG_PREFIX + logGeneration + LOG_SUFFIX + TEMP_SUFFIX);
+    }
+
+    private static long generationOf(Path path) {
+        String name = path.getFileName().toString();
+        try {
+            return Long.parseLong(name.substring(LOG_PREFIX.length(), name.length() - LOG_SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,220 @@
+/*
+* Copyright 2022 Basis Technology Corp.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.rosette.elasticsearch;
+
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Queues the Rosette calls of all documents per endpoint and sends them with a bounded number of calls in flight
+ * per endpoint, over the client's pooled keep-alive connections. Rosette has no multi-document endpoint, so each
+ * call goes out on its own. The limit on calls in flight can adapt to how each endpoint copes, calls beyond it
+ * wait in a bounded queue.
+ */
+final class RequestBatcher {
+
+    private final int concurrency;
+    //Most the limit grows to when it adapts, 0 for a fixed limit
+    private final int maxConcurrency;
+    //Most calls waiting per endpoint, -1 for no bound
+    private final int maxQueued;
+    private final Consumer<Runnable> executor;
+    private final ConcurrentMap<String, EndpointQueue> queues = new ConcurrentHashMap<>();
+
+    /**
+     * @param concurrency most calls in flight per endpoint
+     * @param executor runs the calls
+     */
+    RequestBatcher(int concurrency, Consumer<Runnable> executor) {
+        this(concurrency, 0, -1, executor);
+    }
+
+    /**
+     * @param concurrency most calls in flight per endpoint, or where an adaptive limit starts from
+     * @param maxConcurrency most an adaptive limit grows to, 0 to keep the limit fixed
+     * @param maxQueued most calls waiting per endpoint before new ones are rejected, -1 for no bound
+     * @param executor runs the calls
+     */
+    RequestBatcher(int concurrency, int maxConcurrency, int maxQueued, Consumer<Runnable> executor) {
+        this.concurrency = concurrency;
+        this.maxConcurrency = maxConcurrency;
+        this.maxQueued = maxQueued;
+        this.executor = executor;
+    }
+
+    //Sends every call as soon as it comes, with no bound on the calls in flight
+    static RequestBatcher direct(Consumer<Runnable> executor) {
+        return new RequestBatcher(Integer.MAX_VALUE, executor);
+    }
+
+    //Most calls that can be in flight to one endpoint
+    int getConcurrency() {
+        return Math.max(concurrency, maxConcurrency);
+    }
+
+    //Current limit of calls in flight to an endpoint
+    int getLimit(String endpoint) {
+        EndpointQueue queue = queues.get(endpoint);
+        return queue == null ? concurrency : queue.limit.get();
+    }
+
+    //Limit of calls in flight and calls waiting for each endpoint, for the node stats
+    Map<String, Object> stats() {
+        Map<String, Object> stats = new TreeMap<>();
+        for (Map.Entry<String, EndpointQueue> endpoint : queues.entrySet()) {
+            EndpointQueue queue = endpoint.getValue();
+            Map<String, Object> queueStats = new LinkedHashMap<>();
+            synchronized (queue) {
+                queueStats.put("limit", queue.limit.get());
+                queueStats.put("queued", queue.ready.size());
+            }
+            stats.put(endpoint.getKey(), queueStats);
+        }
+        return new LinkedHashMap<>(stats);
+    }
+
+    /**
+     * Queues a call.
+     * @param endpoint service path of the endpoint the call goes to
+     * @param call the call, expected to notify the listener itself, and to return how the exchange with Rosette
+     *             went
+     * @param listener notified of a failure if the call can't be run
+     */
+    void submit(String endpoint, Supplier<Outcome> call, ActionListener<?> listener) {
+        EndpointQueue queue = queues.computeIfAbsent(endpoint, e -> new EndpointQueue(maxConcurrency > 0
+                ? ConcurrencyLimit.adaptive(concurrency, maxConcurrency) : ConcurrencyLimit.fixed(concurrency)));
+        boolean rejected = false;
+        synchronized (queue) {
+            if (maxQueued >= 0 && queue.ready.size() >= maxQueued) {
+                rejected = true;
+            } else {
+                queue.ready.add(new Call(call, listener));
+            }
+        }
+        //The listener may run a whole pipeline, so it's told outside of the lock
+        if (rejected) {
+            listener.onFailure(new EsRejectedExecutionException("rejected Rosette call to [" + endpoint
+                    + "], " + maxQueued + " calls are already waiting"));
+            return;
+        }
+        dispatch(queue);
+    }
+
+    //Starts as many workers as the endpoint still has room for, each runs ready calls until there are none left
+    private void dispatch(EndpointQueue queue) {
+        int workers;
+        synchronized (queue) {
+            workers = Math.max(0, Math.min(queue.limit.get() - queue.running, queue.ready.size()));
+            queue.running += workers;
+        }
+        for (int i = 0; i < workers; i++) {
+            try {
+                executor.accept(() -> work(queue));
+            } catch (Exception e) {
+                //Executor rejected the worker, fail a call in its place so the queue can't grow unbounded
+                Call rejected;
+                synchronized (queue) {
+                    queue.running--;
+                    rejected = queue.ready.poll();
+                }
+                if (rejected != null) {
+                    rejected.listener.onFailure(e);
+                }
+            }
+        }
+    }
+
+    private void work(EndpointQueue queue) {
+        while (true) {
+            Call call;
+            int inFlight;
+            synchronized (queue) {
+                //Workers beyond a limit that was cut stop
+                call = queue.running > queue.limit.get() ? null : queue.ready.poll();
+                if (call == null) {
+                    queue.running--;
+                    return;
+                }
+                inFlight = queue.running;
+            }
+            Outcome outcome;
+            try {
+                outcome = call.call.get();
+            } catch (Exception e) {
+                call.listener.onFailure(e);
+                continue;
+            }
+            //Only the exchanges with Rosette tell how it copes, calls that were never sent don't
+            if (outcome == Outcome.NOT_SENT) {
+                continue;
+            }
+            int limit = queue.limit.get();
+            queue.limit.onSample(outcome.startNanos, outcome.endNanos, outcome.pushback, inFlight);
+            if (queue.limit.get() > limit) {
+                dispatch(queue);
+            }
+        }
+    }
+
+    private static final class EndpointQueue {
+        private final ConcurrencyLimit limit;
+        private final Deque<Call> ready = new ArrayDeque<>();
+        private int running;
+
+        private EndpointQueue(ConcurrencyLimit limit) {
+            this.limit = limit;
+        }
+    }
+
+    /**
+     * How a call went: when the exchange with Rosette started and ended, and whether Rosette pushed back on it
+     * (i.e. it was throttled or timed out).
+     */
+    static final class Outcome {
+        //The call wasn't sent, i.e. the breaker rejected it or its hedge already went through
+        static final Outcome NOT_SENT = new Outcome(0, 0, false);
+
+        private final long startNanos;
+        private final long endNanos;
+        private final boolean pushback;
+
+        Outcome(long startNanos, long endNanos, boolean pushback) {
+            this.startNanos = startNanos;
+            this.endNanos = endNanos;
+            this.pushback = pushback;
+        }
+    }
+
+    private static final class Call {
+        private final Supplier<Outcome> call;
+        private final ActionListener<?> listener;
+
+        private Call(Supplier<Outcome> call, ActionListener<?> listener) {
+            this.call = call;
+            this.listener = listener;
+        }
+    }
+}
@@ -0,0 +1,67 @@
+/*
+* Copyright 2022 Basis Technology Corp.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.rosette.elasticsearch;
+
+import org.elasticsearch.common.Randomness;
+import org.elasticsearch.core.TimeValue;
+
+/**
+ * Decides whether, and after how long, a failed Rosette call is sent again. Only transient failures are retried:
+ * throttling (429), unavailable or unreachable backends (502, 503, 504, I/O errors). The delay is the Retry-After
+ * Rosette asked for if there is one, otherwise an exponential backoff with full jitter, so that calls failed
+ * together don't all come back at once.
+ */
+final class RetryPolicy {
+
+    private final int maxRetries;
+    private final long initialBackoffMillis;
+    private final long maxBackoffMillis;
+
+    /**
+     * @param maxRetries most times a call is retried
+     * @param initialBackoff upper bound of the delay before the first retry, doubled for each retry after that
+     * @param maxBackoff longest delay before a retry, calls Rosette asks to retry later than this aren't retried
+     */
+    RetryPolicy(int maxRetries, TimeValue initialBackoff, TimeValue maxBackoff) {
+        this.maxRetries = maxRetries;
+        this.initialBackoffMillis = initialBackoff.millis();
+        this.maxBackoffMillis = maxBackoff.millis();
+    }
+
+    static RetryPolicy none() {
+        return new RetryPolicy(0, TimeValue.ZERO, TimeValue.ZERO);
+    }
+
+    /**
+     * @param retries times the call was already retried
+     * @param retryAfterMillis delay Rosette asked for, or null
+     * @return milliseconds to wait before sending the call again, or -1 if it shouldn't be
+     */
+    long delayMillis(int retries, Long retryAfterMillis) {
+        if (retries >= maxRetries) {
+            return -1;
+        }
+        if (retryAfterMillis != null) {
+            return retryAfterMillis <= maxBackoffMillis ? Math.max(0, retryAfterMillis) : -1;
+        }
+        long bound = Math.min(maxBackoffMillis, initialBackoffMillis << Math.min(retries, 30));
+        return bound <= 0 ? 0 : (long) (Randomness.get().nextDouble() * bound);
+    }
+
+    static boolean isRetryableStatus(int status) {
+        return status == 429 || status == 502 || status == 503 || status == 504;
+    }
+}
@@ -15,21 +15,63 @@
 */
 package com.rosette.elasticsearch;
 
+import com.basistech.util.LanguageCode;
 import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.ExceptionsHelper;
 import org.elasticsearch.SpecialPermission;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.support.PlainActionFuture;
 import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.hash.MessageDigests;
 import org.elasticsearch.ingest.AbstractProcessor;
+import org.elasticsearch.ingest.ConfigurationUtils;
 import org.elasticsearch.ingest.IngestDocument;
 
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.function.BiConsumer;
+
 /**
  * Class that holds code shared by all Rosette ingest processors
  */
 public abstract class RosetteAbstractProcessor extends AbstractProcessor {
 
+    //Ingest metadata entry in which the language processor records the language it detected, for later processors
+    static final String LANGUAGE_HINT = "rosette_language";
+    //Field listing the processors a document skipped while Rosette was unavailable, see OnUnavailable.TAG
+    static final String PENDING_FIELD = "rosette_pending";
+    static final String ON_UNAVAILABLE = "on_unavailable";
+    static final String SKIP_UNCHANGED = "skip_unchanged";
+    static final String OVERWRITE = "overwrite";
+    //Suffix of the field next to the results holding the fingerprint of the input they were made from
+    static final String FINGERPRINT_SUFFIX = "_fingerprint";
+
+    /**
+     * What a processor does with a document while Rosette is unavailable.
+     */
+    enum OnUnavailable {
+        //Fail the document
+        FAIL,
+        //Leave the document as it is
+        SKIP,
+        //Leave the document as it is, but add the processor type to its PENDING_FIELD, so it can be enriched later
+        TAG
+    }
+
     protected String inputField;
     protected String targetField;
     protected RosetteApiWrapper rosAPI;
     protected final String processorType;
+    private OnUnavailable onUnavailable = OnUnavailable.FAIL;
+    //Whether results already in the document are kept when the input they were made from hasn't changed
+    private boolean skipUnchanged;
+    //Whether results already in the document are replaced, rather than failing the document
+    private boolean overwrite;
 
     RosetteAbstractProcessor(RosetteApiWrapper rosAPI, String tag, String description, String processorType,
                              String inputField, String targetField) {
@@ -42,20 +84,72 @@ public abstract class RosetteAbstractProcessor extends AbstractProcessor {
 
     @Override
     public IngestDocument execute(IngestDocument ingestDocument) throws Exception {
-        if (ingestDocument.hasField(targetField)) {
-            throw new ElasticsearchException("Document already contains data in target field for this ingest "
-                    + "processor: " + processorType);
+        PlainActionFuture<IngestDocument> future = PlainActionFuture.newFuture();
+        execute(ingestDocument, ActionListener.toBiConsumer(future));
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception) {
+                throw (Exception) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    @Override
+    public void execute(IngestDocument ingestDocument, BiConsumer<IngestDocument, Exception> handler) {
+        boolean enriched = false;
+        boolean fullyEnriched = true;
+        for (String field : getTargetFields()) {
+            if (ingestDocument.hasField(field)) {
+                enriched = true;
+            } else {
+                fullyEnriched = false;
+            }
+        }
+        if (enriched && !skipUnchanged && !overwrite) {
+            handler.accept(null, alreadyEnriched());
+            return;
         }
         if (!ingestDocument.hasField(inputField)) {
             //Do nothing
-            return ingestDocument;
+            handler.accept(ingestDocument, null);
+            return;
         }
 
-        String inputText = ingestDocument.getFieldValue(inputField, String.class);
+        String inputText;
+        try {
+            inputText = ingestDocument.getFieldValue(inputField, String.class);
+        } catch (Exception e) {
+            handler.accept(null, e);
+            return;
+        }
 
         if (Strings.isNullOrEmpty(inputText)) {
             //Do nothing
-            return ingestDocument;
+            handler.accept(ingestDocument, null);
+            return;
+        }
+
+        String fingerprint = skipUnchanged ? fingerprint(inputText) : null;
+        if (enriched && skipUnchanged) {
+            String fingerprintField = getFingerprintField();
+            if (fullyEnriched && ingestDocument.hasField(fingerprintField)
+                    && fingerprint.equals(ingestDocument.getFieldValue(fingerprintField, Object.class))) {
+                //Same input as the results were made from, so they are kept as they are
+                try {
+                    reuseTargetFields(ingestDocument);
+                } catch (Exception e) {
+                    handler.accept(null, e);
+                    return;
+                }
+                handler.accept(ingestDocument, null);
+                return;
+            }
+            if (!overwrite) {
+                handler.accept(null, alreadyEnriched());
+                return;
+            }
         }
 
         SecurityManager sm = System.getSecurityManager();
@@ -63,8 +157,176 @@ public abstract class RosetteAbstractProcessor extends AbstractProcessor {
             sm.checkPermission(new SpecialPermission());
         }
 
-        processDocument(inputText, ingestDocument);
-        return ingestDocument;
+        //The handler is completed from the Rosette response callback, so the ingest thread is free in the meantime
+        try {
+            processDocument(inputText, ingestDocument, targetListener(ingestDocument, handler, fingerprint,
+                    System.nanoTime()));
+        } catch (Exception e) {
+            handler.accept(null, e);
+        }
+    }
+
+    private ElasticsearchException alreadyEnriched() {
+        return new ElasticsearchException("Document already contains data in target field for this ingest processor: "
+                + processorType);
+    }
+
+    //SHA-256 of the input, the results are stored next to it when skip_unchanged is set
+    static String fingerprint(String inputText) {
+        return MessageDigests.toHexString(MessageDigests.sha256().digest(inputText.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    //Stores the processor result in the target field, with the fingerprint of the input if there is one, and hands
+    // the document on to the rest of the pipeline
+    private ActionListener<Object> targetListener(IngestDocument ingestDocument,
+                                                  BiConsumer<IngestDocument, Exception> handler, String fingerprint,
+                                                  long start) {
+        return new ActionListener<Object>() {
+            @Override
+            public void onResponse(Object result) {
+                rosAPI.getStats().onProcessed(processorType, System.nanoTime() - start, false);
+                try {
+                    setTargetFields(ingestDocument, result);
+                    if (fingerprint != null) {
+                        ingestDocument.setFieldValue(getFingerprintField(), fingerprint);
+                    } else if (overwrite && ingestDocument.hasField(getFingerprintField())) {
+                        //A fingerprint left by an earlier run no longer matches the overwritten results
+                        ingestDocument.removeField(getFingerprintField());
+                    }
+                } catch (Exception e) {
+                    handler.accept(null, e);
+                    return;
+                }
+                handler.accept(ingestDocument, null);
+            }
+
+            @Override
+            public void onFailure(Exception e) {
+                //Documents skipped while Rosette is unavailable count as failed too, they weren't enriched
+                rosAPI.getStats().onProcessed(processorType, System.nanoTime() - start, true);
+                if (onUnavailable != OnUnavailable.FAIL
+                        && ExceptionsHelper.unwrapCause(e) instanceof RosetteUnavailableException) {
+                    try {
+                        if (onUnavailable == OnUnavailable.TAG) {
+                            tagPending(ingestDocument);
+                        }
+                    } catch (Exception tagFailure) {
+                        handler.accept(null, tagFailure);
+                        return;
+                    }
+                    handler.accept(ingestDocument, null);
+                    return;
+                }
+                handler.accept(null, e);
+            }
+        };
+    }
+
+    private void tagPending(IngestDocument ingestDocument) {
+        List<Object> pending = new ArrayList<>();
+        if (ingestDocument.hasField(PENDING_FIELD)) {
+            List<?> existing = ingestDocument.getFieldValue(PENDING_FIELD, List.class);
+            pending.addAll(existing);
+        }
+        if (!pending.contains(processorType)) {
+            pending.add(processorType);
+        }
+        ingestDocument.setFieldValue(PENDING_FIELD, pending);
+    }
+
+    void setOnUnavailable(OnUnavailable onUnavailable) {
+        this.onUnavailable = onUnavailable;
+    }
+
+    void setSkipUnchanged(boolean skipUnchanged) {
+        this.skipUnchanged = skipUnchanged;
+    }
+
+    void setOverwrite(boolean overwrite) {
+        this.overwrite = overwrite;
+    }
+
+    /**
+     * Reads the "skip_unchanged" and "overwrite" options of a processor, which set what it does with documents that
+     * already hold its results, i.e. when they are reindexed or updated.
+     */
+    void readReprocessOptions(String processorTag, Map<String, Object> config) {
+        setSkipUnchanged(ConfigurationUtils.readBooleanProperty(processorType, processorTag, config, SKIP_UNCHANGED,
+                false));
+        setOverwrite(ConfigurationUtils.readBooleanProperty(processorType, processorTag, config, OVERWRITE, false));
+    }
+
+    /**
+     * Reads the "on_unavailable" option of a processor.
+     */
+    static OnUnavailable readOnUnavailable(String processorType, String processorTag, Map<String, Object> config) {
+        String value = ConfigurationUtils.readStringProperty(processorType, processorTag, config, ON_UNAVAILABLE,
+                "fail");
+        try {
+            return OnUnavailable.valueOf(value.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw ConfigurationUtils.newConfigurationException(processorType, processorTag, ON_UNAVAILABLE,
+                    "must be one of [fail, skip, tag]");
+        }
+    }
+
+    /**
+     * @return the fields this processor writes to, which must not exist in the document yet unless the processor
+     * skips unchanged input or overwrites
+     */
+    protected List<String> getTargetFields() {
+        return Collections.singletonList(targetField);
+    }
+
+    /**
+     * @return the field next to the results the fingerprint of the input they were made from is stored in
+     */
+    protected String getFingerprintField() {
+        return targetField + FINGERPRINT_SUFFIX;
+    }
+
+    /**
+     * Called instead of {@link #processDocument} when the results already in the document are kept, for the
+     * processor to pass on what it would have passed on to later processors.
+     * @param ingestDocument document to be ingested, with the results in its target fields
+     */
+    protected void reuseTargetFields(IngestDocument ingestDocument) {
+    }
+
+    /**
+     * Stores the result of {@link #processDocument} in the document.
+     * @param ingestDocument document to be ingested
+     * @param result value the listener of {@link #processDocument} was notified with
+     */
+    protected void setTargetFields(IngestDocument ingestDocument, Object result) {
+        ingestDocument.setFieldValue(targetField, result);
+    }
+
+    /**
+     * Looks up the language of the document, so requests can pass it on and Rosette doesn't detect it again.
+     * @param ingestDocument document to be ingested
+     * @param languageField field holding the ISO 639-3 code of the language of the document, if any
+     * @return the language from the language field, otherwise the one detected by an earlier language processor,
+     * or null if it isn't known
+     */
+    protected static LanguageCode documentLanguage(IngestDocument ingestDocument, String languageField) {
+        Object language = null;
+        if (languageField != null && ingestDocument.hasField(languageField)) {
+            language = ingestDocument.getFieldValue(languageField, Object.class);
+        }
+        if (language == null) {
+            language = ingestDocument.getIngestMetadata().get(LANGUAGE_HINT);
+        }
+        if (!(language instanceof String) || Strings.isNullOrEmpty((String) language)) {
+            return null;
+        }
+        try {
+            LanguageCode languageCode = LanguageCode.lookupByISO639((String) language);
+            return languageCode == LanguageCode.UNKNOWN ? null : languageCode;
+        } catch (IllegalArgumentException e) {
+            //Not a language Rosette knows, let it detect the language itself
+            return null;
+        }
     }
 
     @Override
@@ -73,10 +335,11 @@ public abstract class RosetteAbstractProcessor extends AbstractProcessor {
     }
 
     /**
-     * Performs processor specific modifications to the document.
+     * Performs the processor specific Rosette call(s) for the document.
      * @param inputText value of the field in the document that was specified as the input field to process
      * @param ingestDocument document to be ingested
-     * @throws Exception when something goes wrong
+     * @param listener notified with the value to store in the target field, or with the failure
      */
-    protected abstract void processDocument(String inputText, IngestDocument ingestDocument) throws Exception;
+    protected abstract void processDocument(String inputText, IngestDocument ingestDocument,
+                                            ActionListener<Object> listener);
 }
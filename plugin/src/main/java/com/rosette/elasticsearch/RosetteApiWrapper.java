@@ -17,13 +17,38 @@ package com.rosette.elasticsearch;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.security.AccessController;
+import java.security.PrivilegedAction;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.Function;
 
 import org.apache.logging.log4j.Logger;
+import org.apache.lucene.util.SetOnce;
+import org.apache.lucene.util.WeakIdentityMap;
 import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.ExceptionsHelper;
+import org.elasticsearch.action.ActionListener;
 import org.elasticsearch.common.Strings;
+import org.elasticsearch.core.TimeValue;
+import org.elasticsearch.ingest.IngestDocument;
+import org.elasticsearch.rest.RestStatus;
 
 import com.basistech.rosette.api.HttpRosetteAPI;
+import com.basistech.rosette.api.HttpRosetteAPIException;
+import com.basistech.rosette.apimodel.DocumentRequest;
+import com.basistech.rosette.apimodel.Request;
+import com.basistech.rosette.apimodel.Response;
+import com.basistech.rosette.dm.AnnotatedText;
 import org.elasticsearch.common.logging.Loggers;
 
 //Configures and holds on to the shared Rosette API client
@@ -51,13 +76,73 @@ public final class RosetteApiWrapper {
     }
 
     // TODO: revisit this when we use embedded client
-    private HttpRosetteAPI httpRosetteAPI;
+    //Api clients of the Rosette instances calls are spread over, one for each url
+    private final HostBalancer hosts;
+    //Runs the blocking client calls so that ingest threads are not held while a call is in flight
+    private final Consumer<Runnable> executor;
+    private final RosetteResponseCache cache;
+    //Groups and bounds the calls that do go out to Rosette
+    private final RequestBatcher batcher;
+    //HTTP client the api client sends its requests with, null when the api client uses its own
+    private final HttpClientPool httpClientPool;
+    //Fails calls right away while Rosette is unavailable
+    private final RosetteCircuitBreaker breaker;
+    private final RetryPolicy retryPolicy;
+    private final HedgePolicy hedgePolicy;
+    //Runs retries and hedges after a delay in milliseconds, null when there are none
+    private final BiFunction<Long, Runnable, ?> scheduler;
+    private final RosetteStats stats;
+    //Optional on-disk cache tier, only available once the node environment is
+    private final SetOnce<PersistentResponseCache> persistentCache = new SetOnce<>();
+    //Optional cluster wide cache tier, only available once the node client is
+    private final SetOnce<SharedResponseCache> sharedCache = new SetOnce<>();
+    //Runs what follows a call (cache writes and the listener), null to run it on the thread the call was made on
+    private final SetOnce<Consumer<Runnable>> completionExecutor = new SetOnce<>();
+    //Listeners waiting on calls that are in flight, by cache key
+    private final ConcurrentMap<String, List<ActionListener<Object>>> inFlight = new ConcurrentHashMap<>();
+    //ADM responses already fetched for each document being ingested, by cache key, so that processors of the
+    // same pipeline share them. Entries go away with their document.
+    private final WeakIdentityMap<IngestDocument, Map<String, Object>> documentResponses =
+            WeakIdentityMap.newConcurrentHashMap();
 
     RosetteApiWrapper() {
         this(null, null);
     }
 
     RosetteApiWrapper(String apiKey, String altUrl) {
+        this(apiKey, altUrl, Runnable::run, RosetteResponseCache.disabled(), RequestBatcher.direct(Runnable::run),
+                null, RosetteCircuitBreaker.disabled(), RetryPolicy.none(), HedgePolicy.none(), null,
+                new RosetteStats());
+    }
+
+    RosetteApiWrapper(String apiKey, String altUrl, Consumer<Runnable> executor, RosetteResponseCache cache,
+                      RequestBatcher batcher, HttpClientPool httpClientPool, RosetteCircuitBreaker breaker,
+                      RetryPolicy retryPolicy, HedgePolicy hedgePolicy, BiFunction<Long, Runnable, ?> scheduler,
+                      RosetteStats stats) {
+        this(apiKey, altUrl, executor, cache, batcher, httpClientPool, breaker, retryPolicy, hedgePolicy, scheduler,
+                stats, 3, TimeValue.timeValueSeconds(30), true);
+    }
+
+    /**
+     * @param altUrl url of the Rosette API, or a comma separated list of urls of several on-premise instances
+     * @param stats metrics the calls are recorded in
+     * @param ejectionFailures consecutive failed calls after which one of several instances is left out for a while
+     * @param ejectionTime how long an instance is left out
+     * @param sticky whether calls for the same content keep going to the same instance
+     */
+    RosetteApiWrapper(String apiKey, String altUrl, Consumer<Runnable> executor, RosetteResponseCache cache,
+                      RequestBatcher batcher, HttpClientPool httpClientPool, RosetteCircuitBreaker breaker,
+                      RetryPolicy retryPolicy, HedgePolicy hedgePolicy, BiFunction<Long, Runnable, ?> scheduler,
+                      RosetteStats stats, int ejectionFailures, TimeValue ejectionTime, boolean sticky) {
+        this.executor = executor;
+        this.cache = cache;
+        this.batcher = batcher;
+        this.httpClientPool = httpClientPool;
+        this.breaker = breaker;
+        this.retryPolicy = retryPolicy;
+        this.hedgePolicy = hedgePolicy;
+        this.scheduler = scheduler;
+        this.stats = stats;
         if (Strings.isNullOrEmpty(apiKey)) {
             apiKey = System.getenv("ROSETTE_API_KEY");
         }
@@ -66,23 +151,462 @@ public final class RosetteApiWrapper {
             altUrl = System.getenv("ROSETTE_API_URL");
         }
 
-        if ((HttpRosetteAPI.DEFAULT_URL_BASE.equalsIgnoreCase(altUrl) || Strings.isNullOrEmpty(altUrl))
+        List<String> urls = new ArrayList<>();
+        for (String url : Strings.commaDelimitedListToStringArray(altUrl)) {
+            if (!url.trim().isEmpty()) {
+                urls.add(url.trim());
+            }
+        }
+        if (urls.isEmpty()) {
+            //Default url of the api client
+            urls.add(null);
+        }
+
+        if ((urls.contains(null) || urls.stream().anyMatch(HttpRosetteAPI.DEFAULT_URL_BASE::equalsIgnoreCase))
                 && Strings.isNullOrEmpty(apiKey)) {
             throw new ElasticsearchException("Rosette plugin requires setting an API Key either via the '"
                     + RosetteTextAnalysisPlugin.ROSETTE_API_KEY.getKey()
                     + "' setting, or the 'ROSETTE_API_KEY' environment variable.");
         }
 
-        HttpRosetteAPI.Builder clientBuilder = new HttpRosetteAPI.Builder();
-        clientBuilder.key(apiKey).additionalHeader("X-RosetteAPI-App", APP_HEADER);
-        if (!Strings.isNullOrEmpty(altUrl)) {
-            LOGGER.info("Using alternative URL for Rosette API at : {} ", altUrl);
-            clientBuilder.url(altUrl);
-        }
-        httpRosetteAPI = clientBuilder.build();
+        String key = apiKey;
+        hosts = new HostBalancer(urls, url -> {
+            HttpRosetteAPI.Builder clientBuilder = new HttpRosetteAPI.Builder();
+            clientBuilder.key(key).additionalHeader("X-RosetteAPI-App", APP_HEADER);
+            //Instances share the pooled HTTP client, and so its connections
+            if (httpClientPool != null) {
+                clientBuilder.httpClient(httpClientPool.getClient());
+            } else if (batcher.getConcurrency() < Integer.MAX_VALUE) {
+                //Enough pooled connections for every call the batcher lets through
+                clientBuilder.connectionConcurrency(batcher.getConcurrency());
+            }
+            if (url != null) {
+                LOGGER.info("Using alternative URL for Rosette API at : {} ", url);
+                clientBuilder.url(url);
+            }
+            return clientBuilder.build();
+        }, ejectionFailures, ejectionTime, sticky, System::nanoTime);
     }
 
+    //Api client of the first Rosette instance
     public HttpRosetteAPI getHttpRosetteAPI() {
-        return httpRosetteAPI;
+        return hosts.hosts().get(0).api();
+    }
+
+    HostBalancer getHosts() {
+        return hosts;
+    }
+
+    public HttpClientPool getHttpClientPool() {
+        return httpClientPool;
+    }
+
+    public RosetteResponseCache getCache() {
+        return cache;
+    }
+
+    RosetteCircuitBreaker getBreaker() {
+        return breaker;
+    }
+
+    RequestBatcher getBatcher() {
+        return batcher;
+    }
+
+    RosetteStats getStats() {
+        return stats;
+    }
+
+    void setPersistentCache(PersistentResponseCache persistentCache) {
+        this.persistentCache.set(persistentCache);
+    }
+
+    void setSharedCache(SharedResponseCache sharedCache) {
+        this.sharedCache.set(sharedCache);
+    }
+
+    /**
+     * Hands what follows each call (cache writes, and with the listener the rest of the ingest pipeline) to
+     * another executor, so the thread that made the call and the concurrency slot of the endpoint are free for
+     * the next call as soon as the response is in.
+     */
+    void setCompletionExecutor(Consumer<Runnable> completionExecutor) {
+        this.completionExecutor.set(completionExecutor);
+    }
+
+    /**
+     * Calls a Rosette endpoint off the calling thread and hands the response to the listener.
+     * @param endpoint service path of the endpoint to call
+     * @param request request to send
+     * @param responseClass type of the response
+     * @param listener notified with the response, or with an {@link ElasticsearchException} if the call failed
+     */
+    public <Q extends Request, R extends Response> void perform(String endpoint, Q request, Class<R> responseClass,
+                                                                 ActionListener<R> listener) {
+        execute(endpoint, request, responseClass, api -> api.perform(endpoint, request, responseClass), listener);
+    }
+
+    /**
+     * Calls a Rosette endpoint for its annotated data model (ADM) result off the calling thread.
+     * @param endpoint service path of the endpoint to call
+     * @param request request to send
+     * @param listener notified with the ADM, or with an {@link ElasticsearchException} if the call failed
+     */
+    public void perform(String endpoint, DocumentRequest<?> request, ActionListener<AnnotatedText> listener) {
+        execute(endpoint, request, AnnotatedText.class, api -> api.perform(endpoint, request), listener);
+    }
+
+    /**
+     * Calls a Rosette endpoint for its ADM result on behalf of a document, reusing the result of an identical call
+     * made earlier for the same document (i.e. by another processor of its pipeline).
+     * @param ingestDocument document the call is made for
+     * @param endpoint service path of the endpoint to call
+     * @param request request to send
+     * @param listener notified with the ADM, or with an {@link ElasticsearchException} if the call failed
+     */
+    public void perform(IngestDocument ingestDocument, String endpoint, DocumentRequest<?> request,
+                        ActionListener<AnnotatedText> listener) {
+        String cacheKey = RosetteResponseCache.key(endpoint, request, AnnotatedText.class);
+        if (cacheKey == null) {
+            perform(endpoint, request, listener);
+            return;
+        }
+        AnnotatedText response = documentResponse(ingestDocument, cacheKey);
+        if (response != null) {
+            listener.onResponse(response);
+            return;
+        }
+        perform(endpoint, request, listener.map(adm -> {
+            documentResponses(ingestDocument).put(cacheKey, adm);
+            return adm;
+        }));
+    }
+
+    /**
+     * @param ingestDocument document the call would be made for
+     * @param endpoint service path of the endpoint
+     * @param request request that would be sent
+     * @return the ADM result of an identical call made earlier for the document, or null if there was none
+     */
+    AnnotatedText documentResponse(IngestDocument ingestDocument, String endpoint, DocumentRequest<?> request) {
+        String cacheKey = RosetteResponseCache.key(endpoint, request, AnnotatedText.class);
+        return cacheKey == null ? null : documentResponse(ingestDocument, cacheKey);
+    }
+
+    private AnnotatedText documentResponse(IngestDocument ingestDocument, String cacheKey) {
+        Map<String, Object> responses = documentResponses.get(ingestDocument);
+        return responses == null ? null : (AnnotatedText) responses.get(cacheKey);
+    }
+
+    private Map<String, Object> documentResponses(IngestDocument ingestDocument) {
+        synchronized (documentResponses) {
+            Map<String, Object> responses = documentResponses.get(ingestDocument);
+            if (responses == null) {
+                responses = new ConcurrentHashMap<>();
+                documentResponses.put(ingestDocument, responses);
+            }
+            return responses;
+        }
+    }
+
+    private <R> void execute(String endpoint, Request request, Class<R> resultType, Function<HttpRosetteAPI, R> call,
+                             ActionListener<R> listener) {
+        String cacheKey = RosetteResponseCache.key(endpoint, request, resultType);
+        Object cached = cache.get(cacheKey);
+        if (cached != null) {
+            stats.onCacheHit(RosetteStats.CacheTier.MEMORY);
+            listener.onResponse(resultType.cast(cached));
+            return;
+        }
+        //Identical calls that are already in flight (i.e. the same text in several documents of one bulk)
+        // share the response of the first one
+        ActionListener<R> sharedListener = joinInFlight(cacheKey, resultType, listener);
+        if (sharedListener != null) {
+            lookUp(endpoint, cacheKey, resultType, call, sharedListener);
+        }
+    }
+
+    private <R> void lookUp(String endpoint, String cacheKey, Class<R> resultType, Function<HttpRosetteAPI, R> call,
+                            ActionListener<R> listener) {
+        PersistentResponseCache diskCache = persistentCache.get();
+        SharedResponseCache indexCache = sharedCache.get();
+        Runnable callRosette = () -> {
+            if (cacheKey != null) {
+                stats.onCacheMiss();
+            }
+            send(new Attempt<>(endpoint, cacheKey, call, listener, 0, null));
+        };
+        if (cacheKey == null || (diskCache == null && indexCache == null)) {
+            callRosette.run();
+            return;
+        }
+        fork(() -> {
+            //The disk tier is read off the ingest thread, as it may have to page the entry in
+            if (diskCache != null) {
+                R response = diskCache.get(cacheKey, resultType);
+                if (response != null) {
+                    stats.onCacheHit(RosetteStats.CacheTier.DISK);
+                    cache.put(cacheKey, response);
+                    listener.onResponse(response);
+                    return;
+                }
+            }
+            if (indexCache == null) {
+                callRosette.run();
+                return;
+            }
+            //The index answers on a transport thread, which mustn't run the rest of the pipeline
+            indexCache.get(cacheKey, resultType, ActionListener.wrap(response -> fork(() -> {
+                if (response == null) {
+                    callRosette.run();
+                    return;
+                }
+                stats.onCacheHit(RosetteStats.CacheTier.INDEX);
+                cache.put(cacheKey, response);
+                if (diskCache != null) {
+                    diskCache.put(cacheKey, response);
+                }
+                listener.onResponse(response);
+            }, listener), e -> fork(callRosette, listener)));
+        }, listener);
+    }
+
+    //Queues a call to Rosette, unless it is known to be unavailable
+    private <R> void send(Attempt<R> attempt) {
+        if (breaker.isOpen()) {
+            attempt.onFailure(new RosetteUnavailableException(attempt.endpoint));
+            return;
+        }
+        batcher.submit(attempt.endpoint, () -> call(attempt), attempt);
+    }
+
+    /**
+     * Registers a caller of a call.
+     * @return the listener the first caller should complete the call with, which notifies all of them, or null
+     * if the same call is already in flight and the listener will be notified when it completes
+     */
+    private <R> ActionListener<R> joinInFlight(String cacheKey, Class<R> resultType, ActionListener<R> listener) {
+        if (cacheKey == null) {
+            return listener;
+        }
+        List<ActionListener<Object>> first = new ArrayList<>();
+        first.add(listener.map(resultType::cast));
+        List<ActionListener<Object>> waiting = inFlight.compute(cacheKey, (key, current) -> {
+            if (current == null) {
+                return first;
+            }
+            current.add(listener.map(resultType::cast));
+            return current;
+        });
+        if (waiting != first) {
+            return null;
+        }
+        return new ActionListener<R>() {
+            @Override
+            public void onResponse(R response) {
+                ActionListener.onResponse(inFlight.remove(cacheKey), response);
+            }
+
+            @Override
+            public void onFailure(Exception e) {
+                ActionListener.onFailure(inFlight.remove(cacheKey), e);
+            }
+        };
+    }
+
+    //Returns how the exchange with Rosette went, so the batcher can ease off the endpoint when it pushes back
+    private <R> RequestBatcher.Outcome call(Attempt<R> attempt) {
+        //A hedge whose call went through (or the call whose hedge did) while it waited in the queue isn't sent, and
+        // takes neither a trial call of the breaker nor a host. Returning frees its slot of the endpoint's limit.
+        if (attempt.done.get()) {
+            return RequestBatcher.Outcome.NOT_SENT;
+        }
+        //Checked again as the call may have waited in the queue while the breaker opened
+        if (!breaker.tryAcquire()) {
+            complete(() -> attempt.onFailure(new RosetteUnavailableException(attempt.endpoint)));
+            return RequestBatcher.Outcome.NOT_SENT;
+        }
+        scheduleHedge(attempt);
+        //Hedges and retries go to another instance than the call before them, when there are several
+        HostBalancer.Host host = hosts.acquire(attempt.cacheKey, attempt.host);
+        attempt.host = host;
+        stats.onCallStart(attempt.endpoint);
+        long start = System.nanoTime();
+        R response;
+        try {
+            // RosApi client binding's Jackson needs elevated privilege
+            response = AccessController.doPrivileged((PrivilegedAction<R>) () -> attempt.call.apply(host.api()));
+        } catch (HttpRosetteAPIException ex) {
+            long end = System.nanoTime();
+            Integer status = ex.getHttpStatusCode();
+            stats.onCallEnd(attempt.endpoint, end - start,
+                    status == null ? RosetteStats.UNREACHABLE : String.valueOf(status));
+            report(host, status != null && status >= RestStatus.INTERNAL_SERVER_ERROR.getStatus());
+            LOGGER.error(ex.getErrorResponse().getMessage());
+            //Taken on this thread, it's where the call was made
+            Long retryAfter = HttpClientPool.takeRetryAfter();
+            complete(() -> attempt.onFailure(new ElasticsearchException(ex.getErrorResponse().getMessage(), ex),
+                    status != null && RetryPolicy.isRetryableStatus(status), retryAfter));
+            return new RequestBatcher.Outcome(start, end, isThrottled(ex));
+        } catch (Exception ex) {
+            long end = System.nanoTime();
+            //Rosette couldn't be reached
+            boolean unreachable = ExceptionsHelper.unwrap(ex, IOException.class) != null;
+            stats.onCallEnd(attempt.endpoint, end - start,
+                    unreachable ? RosetteStats.UNREACHABLE : RosetteStats.OTHER);
+            report(host, unreachable);
+            complete(() -> attempt.onFailure(ex, unreachable, null));
+            //Read, connect and pool timeouts
+            return new RequestBatcher.Outcome(start, end,
+                    ExceptionsHelper.unwrap(ex, InterruptedIOException.class) != null);
+        }
+        long end = System.nanoTime();
+        long nanos = end - start;
+        stats.onCallEnd(attempt.endpoint, nanos, null);
+        report(host, false);
+        hedgePolicy.onSample(attempt.endpoint, nanos);
+        R result = response;
+        complete(() -> {
+            String cacheKey = attempt.cacheKey;
+            if (cacheKey != null) {
+                cache.put(cacheKey, result);
+                PersistentResponseCache diskCache = persistentCache.get();
+                if (diskCache != null) {
+                    diskCache.put(cacheKey, result);
+                }
+                SharedResponseCache indexCache = sharedCache.get();
+                if (indexCache != null) {
+                    indexCache.put(cacheKey, result);
+                }
+            }
+            attempt.onResponse(result);
+        });
+        return new RequestBatcher.Outcome(start, end, false);
+    }
+
+    private void complete(Runnable completion) {
+        Consumer<Runnable> completions = completionExecutor.get();
+        if (completions == null) {
+            completion.run();
+            return;
+        }
+        try {
+            completions.accept(completion);
+        } catch (Exception e) {
+            //Executor is shutting down, the call is done with all the same
+            completion.run();
+        }
+    }
+
+    //Reports the outcome of a call, failed if Rosette couldn't be reached or answered with a server error
+    private void report(HostBalancer.Host host, boolean failed) {
+        if (failed) {
+            breaker.onFailure();
+            hosts.onFailure(host);
+        } else {
+            breaker.onSuccess();
+            hosts.onSuccess(host);
+        }
+    }
+
+    //Sends a second, identical call if this one is still in flight after the hedge delay of its endpoint
+    private void scheduleHedge(Attempt<?> attempt) {
+        if (scheduler == null || !hedgePolicy.isEnabled() || !attempt.hedgeScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        long delay = hedgePolicy.onCall(attempt.endpoint);
+        if (delay < 0) {
+            return;
+        }
+        try {
+            scheduler.apply(delay, attempt::hedge);
+        } catch (Exception e) {
+            //Scheduler is shutting down, the call just isn't hedged
+        }
+    }
+
+    private static boolean isThrottled(HttpRosetteAPIException ex) {
+        Integer status = ex.getHttpStatusCode();
+        return status != null && (status == RestStatus.TOO_MANY_REQUESTS.getStatus()
+                || status == RestStatus.SERVICE_UNAVAILABLE.getStatus());
+    }
+
+    private void fork(Runnable task, ActionListener<?> listener) {
+        try {
+            executor.accept(task);
+        } catch (Exception ex) {
+            //Executor rejected the task
+            listener.onFailure(ex);
+        }
+    }
+
+    /**
+     * A call to Rosette, along with its hedge if it gets one. The first of the two to go through notifies the
+     * listener; a failure is only passed on (or retried) once neither of them can go through anymore.
+     */
+    private final class Attempt<R> implements ActionListener<R> {
+        private final String endpoint;
+        private final String cacheKey;
+        private final Function<HttpRosetteAPI, R> call;
+        private final ActionListener<R> listener;
+        //Times the call was retried before this attempt
+        private final int retries;
+        private final AtomicBoolean done = new AtomicBoolean();
+        private final AtomicInteger pending = new AtomicInteger(1);
+        private final AtomicBoolean hedgeScheduled = new AtomicBoolean();
+        //Instance the call was last sent to
+        private volatile HostBalancer.Host host;
+
+        private Attempt(String endpoint, String cacheKey, Function<HttpRosetteAPI, R> call,
+                        ActionListener<R> listener, int retries, HostBalancer.Host host) {
+            this.endpoint = endpoint;
+            this.cacheKey = cacheKey;
+            this.call = call;
+            this.listener = listener;
+            this.retries = retries;
+            this.host = host;
+        }
+
+        @Override
+        public void onResponse(R response) {
+            if (done.compareAndSet(false, true)) {
+                listener.onResponse(response);
+            }
+        }
+
+        @Override
+        public void onFailure(Exception e) {
+            onFailure(e, false, null);
+        }
+
+        /**
+         * @param retryable whether the failure is transient, and the call may be retried
+         * @param retryAfterMillis delay before a retry Rosette asked for, or null
+         */
+        private void onFailure(Exception e, boolean retryable, Long retryAfterMillis) {
+            if (pending.decrementAndGet() > 0 || !done.compareAndSet(false, true)) {
+                //The other call may still go through
+                return;
+            }
+            long delay = retryable && scheduler != null ? retryPolicy.delayMillis(retries, retryAfterMillis) : -1;
+            if (delay < 0) {
+                listener.onFailure(e);
+                return;
+            }
+            Attempt<R> retry = new Attempt<>(endpoint, cacheKey, call, listener, retries + 1, host);
+            try {
+                scheduler.apply(delay, () -> send(retry));
+            } catch (Exception scheduleFailure) {
+                listener.onFailure(e);
+            }
+        }
+
+        private void hedge() {
+            if (done.get() || !hedgePolicy.tryHedge()) {
+                return;
+            }
+            pending.incrementAndGet();
+            send(this);
+        }
     }
 }
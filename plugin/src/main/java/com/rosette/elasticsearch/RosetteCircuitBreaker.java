@@ -0,0 +1,126 @@
+/*
+* Copyright 2022 Basis Technology Corp.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.rosette.elasticsearch;
+
+import org.apache.logging.log4j.Logger;
+import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.core.TimeValue;
+
+import java.util.function.LongSupplier;
+
+/**
+ * Stops calls to Rosette while it is unavailable, so documents fail (or skip their Rosette processors) right away
+ * instead of each waiting for a timeout. After enough consecutive failed calls the breaker opens and rejects all
+ * calls. Once it has been open for a while it lets a single trial call through (half-open): if that call goes
+ * through the breaker closes again, otherwise it stays open for another while.
+ */
+final class RosetteCircuitBreaker {
+
+    private static final Logger LOGGER = Loggers.getLogger(RosetteCircuitBreaker.class,
+            RosetteCircuitBreaker.class.getName());
+
+    enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    //Consecutive failures that open the breaker, 0 never opens it
+    private final int failureThreshold;
+    private final long openNanos;
+    private final LongSupplier nanoTime;
+
+    private State state = State.CLOSED;
+    private int failures;
+    private long openedAt;
+    private boolean trialInFlight;
+
+    /**
+     * @param failureThreshold consecutive failed calls that open the breaker, 0 to never open it
+     * @param openDuration how long the breaker stays open before a trial call is let through
+     * @param nanoTime source of {@link System#nanoTime()}
+     */
+    RosetteCircuitBreaker(int failureThreshold, TimeValue openDuration, LongSupplier nanoTime) {
+        this.failureThreshold = failureThreshold;
+        this.openNanos = openDuration.nanos();
+        this.nanoTime = nanoTime;
+    }
+
+    static RosetteCircuitBreaker disabled() {
+        return new RosetteCircuitBreaker(0, TimeValue.ZERO, System::nanoTime);
+    }
+
+    synchronized State state() {
+        return state;
+    }
+
+    //Whether calls are rejected for now, without taking the trial call
+    synchronized boolean isOpen() {
+        return state == State.OPEN && nanoTime.getAsLong() - openedAt < openNanos
+                || state == State.HALF_OPEN && trialInFlight;
+    }
+
+    /**
+     * @return whether a call may go out, which must then be reported with {@link #onSuccess} or {@link #onFailure}
+     */
+    synchronized boolean tryAcquire() {
+        switch (state) {
+            case OPEN:
+                if (nanoTime.getAsLong() - openedAt < openNanos) {
+                    return false;
+                }
+                state = State.HALF_OPEN;
+                trialInFlight = true;
+                return true;
+            case HALF_OPEN:
+                if (trialInFlight) {
+                    return false;
+                }
+                trialInFlight = true;
+                return true;
+            case CLOSED:
+            default:
+                return true;
+        }
+    }
+
+    //Rosette answered the call, even if with an error of the request
+    synchronized void onSuccess() {
+        failures = 0;
+        if (state != State.CLOSED) {
+            LOGGER.info("Rosette is available again, closing the circuit breaker");
+            state = State.CLOSED;
+            trialInFlight = false;
+        }
+    }
+
+    //Rosette couldn't be reached, or answered with a server error
+    synchronized void onFailure() {
+        if (failureThreshold <= 0) {
+            return;
+        }
+        if (state == State.HALF_OPEN || (state == State.CLOSED && ++failures >= failureThreshold)) {
+            if (state == State.CLOSED) {
+                LOGGER.warn("Rosette is unavailable after {} failed calls, rejecting calls for [{}]", failures,
+                        TimeValue.timeValueNanos(openNanos));
+            }
+            state = State.OPEN;
+            openedAt = nanoTime.getAsLong();
+            failures = 0;
+            trialInFlight = false;
+        }
+    }
+}
@@ -0,0 +1,119 @@
+/*
+* Copyright 2022 Basis Technology Corp.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.rosette.elasticsearch;
+
+import com.basistech.rosette.apimodel.DocumentRequest;
+import com.basistech.rosette.apimodel.Request;
+import com.basistech.rosette.apimodel.jackson.ApiModelMixinModule;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.elasticsearch.common.cache.Cache;
+import org.elasticsearch.common.cache.CacheBuilder;
+import org.elasticsearch.common.hash.MessageDigests;
+import org.elasticsearch.core.TimeValue;
+
+import java.nio.charset.StandardCharsets;
+import java.security.AccessController;
+import java.security.PrivilegedActionException;
+import java.security.PrivilegedExceptionAction;
+
+/**
+ * Node level cache of Rosette responses, shared by every processor through {@link RosetteApiWrapper}.
+ * Entries are keyed by endpoint, result type, request options and a hash of the content, evicted least
+ * recently used first once the cache is full, and expire after the configured time to live.
+ */
+public final class RosetteResponseCache {
+
+    //Same Jackson setup as the binding, so cached responses read back exactly as they came from Rosette
+    private static final ObjectMapper MAPPER = ApiModelMixinModule.setupObjectMapper(new ObjectMapper());
+
+    private static final RosetteResponseCache DISABLED = new RosetteResponseCache(0, TimeValue.ZERO);
+
+    private final Cache<String, Object> cache;
+
+    RosetteResponseCache(int size, TimeValue ttl) {
+        if (size <= 0) {
+            cache = null;
+            return;
+        }
+        CacheBuilder<String, Object> builder = CacheBuilder.<String, Object>builder().setMaximumWeight(size);
+        if (ttl.nanos() > 0) {
+            builder.setExpireAfterWrite(ttl);
+        }
+        cache = builder.build();
+    }
+
+    static RosetteResponseCache disabled() {
+        return DISABLED;
+    }
+
+    boolean isEnabled() {
+        return cache != null;
+    }
+
+    Object get(String key) {
+        return cache == null || key == null ? null : cache.get(key);
+    }
+
+    void put(String key, Object response) {
+        if (cache != null && key != null && response != null) {
+            cache.put(key, response);
+        }
+    }
+
+    public Cache.CacheStats stats() {
+        return cache == null ? new Cache.CacheStats(0, 0, 0) : cache.stats();
+    }
+
+    public int count() {
+        return cache == null ? 0 : cache.count();
+    }
+
+    /**
+     * Builds the cache key of a call.
+     * @param endpoint service path of the endpoint
+     * @param request request sent to the endpoint
+     * @param resultType type the response is read as, as one endpoint can answer with different types
+     * @return the key, or null when the request can't be cached (i.e. streamed content)
+     */
+    static String key(String endpoint, Request request, Class<?> resultType) {
+        StringBuilder key = new StringBuilder(endpoint).append('|').append(resultType.getName()).append('|');
+        if (request instanceof DocumentRequest) {
+            DocumentRequest<?> documentRequest = (DocumentRequest<?>) request;
+            if (!(documentRequest.getContent() instanceof String)) {
+                return null;
+            }
+            byte[] content = ((String) documentRequest.getContent()).getBytes(StandardCharsets.UTF_8);
+            key.append(documentRequest.getLanguage()).append('|')
+                    .append(documentRequest.getOptions()).append('|')
+                    .append(MessageDigests.toHexString(MessageDigests.sha256().digest(content)));
+        } else {
+            //Other requests (i.e. name translation) are small enough to be used as they are
+            key.append(request);
+        }
+        return key.toString();
+    }
+
+    //Serialized form of a response, for the cache tiers that don't live on the heap
+    static byte[] serialize(Object response) throws PrivilegedActionException {
+        // Jackson needs elevated privilege
+        return AccessController.doPrivileged((PrivilegedExceptionAction<byte[]>) () ->
+                MAPPER.writeValueAsBytes(response));
+    }
+
+    static <R> R deserialize(byte[] value, Class<R> resultType) throws PrivilegedActionException {
+        return AccessController.doPrivileged((PrivilegedExceptionAction<R>) () -> MAPPER.readValue(value, resultType));
+    }
+}
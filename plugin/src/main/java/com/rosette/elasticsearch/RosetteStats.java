@@ -0,0 +1,211 @@
+/*
+* Copyright 2022 Basis Technology Corp.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.rosette.elasticsearch;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Node level metrics of the plugin: latency histograms and counts of each processor type and each Rosette
+ * endpoint, along with cache hits and gauges (i.e. calls in flight) other parts of the plugin register. Counters
+ * are striped ({@link LongAdder}) and histograms are recorded without locks, so ingest threads hardly pay for them.
+ */
+public final class RosetteStats {
+
+    //Error of a call that didn't get an HTTP status back, i.e. Rosette couldn't be reached or timed out
+    static final String UNREACHABLE = "unreachable";
+    //Error of a call that failed for another reason, i.e. its response couldn't be read
+    static final String OTHER = "other";
+
+    enum CacheTier {
+        MEMORY,
+        DISK,
+        INDEX
+    }
+
+    private final ConcurrentMap<String, ProcessorStats> processors = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, EndpointStats> endpoints = new ConcurrentHashMap<>();
+    private final LongAdder[] cacheHits = new LongAdder[CacheTier.values().length];
+    private final LongAdder cacheMisses = new LongAdder();
+    //Values read when stats are taken, by name
+    private final Map<String, Supplier<Object>> gauges = new ConcurrentHashMap<>();
+
+    RosetteStats() {
+        for (int i = 0; i < cacheHits.length; i++) {
+            cacheHits[i] = new LongAdder();
+        }
+    }
+
+    //A processor of the type went through a document, or failed it
+    void onProcessed(String processorType, long nanos, boolean failed) {
+        ProcessorStats stats = processors.computeIfAbsent(processorType, type -> new ProcessorStats());
+        stats.latency.record(nanos);
+        if (failed) {
+            stats.failed.increment();
+        }
+    }
+
+    //A call is sent to the endpoint, it must then be reported with onCallEnd
+    void onCallStart(String endpoint) {
+        endpoint(endpoint).inFlight.increment();
+    }
+
+    /**
+     * @param error HTTP status of a failed call, {@link #UNREACHABLE} if it got none, or null if it went through
+     */
+    void onCallEnd(String endpoint, long nanos, String error) {
+        EndpointStats stats = endpoint(endpoint);
+        stats.inFlight.decrement();
+        stats.latency.record(nanos);
+        if (error != null) {
+            stats.errors.computeIfAbsent(error, e -> new LongAdder()).increment();
+        }
+    }
+
+    void onBytesSent(String endpoint, long bytes) {
+        endpoint(endpoint).bytesSent.add(bytes);
+    }
+
+    void onBytesReceived(String endpoint, long bytes) {
+        endpoint(endpoint).bytesReceived.add(bytes);
+    }
+
+    void onCacheHit(CacheTier tier) {
+        cacheHits[tier.ordinal()].increment();
+    }
+
+    //None of the cache tiers had the response, it has to be fetched from Rosette
+    void onCacheMiss() {
+        cacheMisses.increment();
+    }
+
+    /**
+     * Registers a value to report along with the counters.
+     * @param gauge reads the value, which must be a string, number, boolean, or a list or map of those
+     */
+    void addGauge(String name, Supplier<Object> gauge) {
+        gauges.put(name, gauge);
+    }
+
+    private EndpointStats endpoint(String endpoint) {
+        return endpoints.computeIfAbsent(endpoint, e -> new EndpointStats());
+    }
+
+    /**
+     * @return the current stats, as maps of strings, numbers and lists that can be sent over the wire
+     */
+    Map<String, Object> snapshot() {
+        Map<String, Object> snapshot = new LinkedHashMap<>();
+        Map<String, Object> processorsSnapshot = new LinkedHashMap<>();
+        for (Map.Entry<String, ProcessorStats> processor : new TreeMap<>(processors).entrySet()) {
+            Map<String, Object> stats = processor.getValue().latency.snapshot();
+            stats.put("failed", processor.getValue().failed.sum());
+            processorsSnapshot.put(processor.getKey(), stats);
+        }
+        snapshot.put("processors", processorsSnapshot);
+
+        Map<String, Object> endpointsSnapshot = new LinkedHashMap<>();
+        for (Map.Entry<String, EndpointStats> endpoint : new TreeMap<>(endpoints).entrySet()) {
+            EndpointStats endpointStats = endpoint.getValue();
+            Map<String, Object> stats = endpointStats.latency.snapshot();
+            Map<String, Object> errors = new LinkedHashMap<>();
+            long failed = 0;
+            for (Map.Entry<String, LongAdder> error : new TreeMap<>(endpointStats.errors).entrySet()) {
+                errors.put(error.getKey(), error.getValue().sum());
+                failed += error.getValue().sum();
+            }
+            stats.put("failed", failed);
+            stats.put("errors", errors);
+            stats.put("in_flight", endpointStats.inFlight.sum());
+            stats.put("bytes_sent", endpointStats.bytesSent.sum());
+            stats.put("bytes_received", endpointStats.bytesReceived.sum());
+            endpointsSnapshot.put(endpoint.getKey(), stats);
+        }
+        snapshot.put("endpoints", endpointsSnapshot);
+
+        Map<String, Object> cache = new LinkedHashMap<>();
+        long hits = 0;
+        for (CacheTier tier : CacheTier.values()) {
+            long tierHits = cacheHits[tier.ordinal()].sum();
+            cache.put(tier.name().toLowerCase(Locale.ROOT) + "_hits", tierHits);
+            hits += tierHits;
+        }
+        long misses = cacheMisses.sum();
+        cache.put("misses", misses);
+        cache.put("hit_rate", hits + misses == 0 ? 0.0 : (double) hits / (hits + misses));
+        snapshot.put("cache", cache);
+
+        for (Map.Entry<String, Supplier<Object>> gauge : new TreeMap<>(gauges).entrySet()) {
+            snapshot.put(gauge.getKey(), gauge.getValue().get());
+        }
+        return snapshot;
+    }
+
+    private static final class ProcessorStats {
+        private final Latency latency = new Latency();
+        private final LongAdder failed = new LongAdder();
+    }
+
+    private static final class EndpointStats {
+        private final Latency latency = new Latency();
+        private final ConcurrentMap<String, LongAdder> errors = new ConcurrentHashMap<>();
+        private final LongAdder inFlight = new LongAdder();
+        private final LongAdder bytesSent = new LongAdder();
+        private final LongAdder bytesReceived = new LongAdder();
+    }
+
+    //Histogram of latencies in microseconds, to 3 significant digits
+    static final class Latency {
+        private static final int DIGITS = 3;
+        private static final double[] PERCENTILES = {50, 90, 99, 99.9};
+        private static final String[] NAMES = {"p50", "p90", "p99", "p999"};
+
+        //Records without locking, and hands over what it recorded since the last time it was asked
+        private final Recorder recorder = new Recorder(DIGITS);
+        private final Histogram total = new Histogram(DIGITS);
+
+        void record(long nanos) {
+            recorder.recordValue(Math.max(0, TimeUnit.NANOSECONDS.toMicros(nanos)));
+        }
+
+        synchronized Map<String, Object> snapshot() {
+            total.add(recorder.getIntervalHistogram());
+            Map<String, Object> snapshot = new LinkedHashMap<>();
+            snapshot.put("count", total.getTotalCount());
+            Map<String, Object> latency = new LinkedHashMap<>();
+            for (int i = 0; i < PERCENTILES.length; i++) {
+                latency.put(NAMES[i], millis(total.getValueAtPercentile(PERCENTILES[i])));
+            }
+            latency.put("max", millis(total.getMaxValue()));
+            snapshot.put("latency_in_millis", latency);
+            return snapshot;
+        }
+
+        private static double millis(long micros) {
+            return micros / 1000.0;
+        }
+    }
+}
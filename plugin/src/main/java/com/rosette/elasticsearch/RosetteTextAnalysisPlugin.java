@@ -15,42 +15,395 @@
 */
 package com.rosette.elasticsearch;
 
+import java.io.IOException;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 
+import org.apache.http.pool.PoolStats;
+import org.apache.lucene.util.SetOnce;
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.ActionResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.cluster.metadata.IndexNameExpressionResolver;
+import org.elasticsearch.cluster.node.DiscoveryNodes;
+import org.elasticsearch.cluster.service.ClusterService;
+import org.elasticsearch.common.io.stream.NamedWriteableRegistry;
+import org.elasticsearch.common.settings.ClusterSettings;
+import org.elasticsearch.common.settings.IndexScopedSettings;
 import org.elasticsearch.common.settings.Setting;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.settings.SettingsFilter;
+import org.elasticsearch.common.unit.ByteSizeUnit;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.core.internal.io.IOUtils;
+import org.elasticsearch.core.TimeValue;
+import org.elasticsearch.env.Environment;
+import org.elasticsearch.env.NodeEnvironment;
+import org.elasticsearch.indices.SystemIndexDescriptor;
 import org.elasticsearch.ingest.Processor;
+import org.elasticsearch.plugins.ActionPlugin;
 import org.elasticsearch.plugins.IngestPlugin;
 import org.elasticsearch.plugins.MapperPlugin;
 import org.elasticsearch.plugins.Plugin;
+import org.elasticsearch.plugins.SystemIndexPlugin;
+import org.elasticsearch.repositories.RepositoriesService;
+import org.elasticsearch.rest.RestController;
+import org.elasticsearch.rest.RestHandler;
+import org.elasticsearch.script.ScriptService;
+import org.elasticsearch.threadpool.ExecutorBuilder;
+import org.elasticsearch.threadpool.FixedExecutorBuilder;
+import org.elasticsearch.threadpool.Scheduler;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.watcher.ResourceWatcherService;
+import org.elasticsearch.xcontent.NamedXContentRegistry;
 
-public class RosetteTextAnalysisPlugin extends Plugin implements MapperPlugin, IngestPlugin {
+public class RosetteTextAnalysisPlugin extends Plugin implements MapperPlugin, IngestPlugin, SystemIndexPlugin,
+        ActionPlugin {
+
+    //Thread pool the blocking Rosette calls run on, sized with thread_pool.rosette.size and .queue_size
+    public static final String EXECUTOR = "rosette";
+    //Only holds workers of the request batcher (which queues calls itself) and cache reads
+    private static final int EXECUTOR_QUEUE_SIZE = 1000;
+    //Runs Rosette calls on virtual threads instead of the pool above, on JDK 21+
+    public static final Setting<Boolean> ROSETTE_VIRTUAL_THREADS =
+            Setting.boolSetting("ingest.rosette.virtual_threads", false, Setting.Property.NodeScope);
+    //How much the default limits on calls in flight and connections are raised on virtual threads
+    static final int VIRTUAL_THREADS_LIMIT_SCALE = 8;
 
     public static final Setting<String> ROSETTE_API_KEY =
             Setting.simpleString("ingest.rosette.api_key", Setting.Property.NodeScope, Setting.Property.Filtered);
+    //Url of the Rosette API, or a comma separated list of the urls of several on-premise instances
     public static final Setting<String> ROSETTE_API_URL =
             Setting.simpleString("ingest.rosette.api_url", Setting.Property.NodeScope, Setting.Property.Filtered);
+    //Balancing of calls between several instances
+    public static final Setting<Integer> ROSETTE_EJECTION_FAILURES =
+            Setting.intSetting("ingest.rosette.ejection.failures", 3, 0, Setting.Property.NodeScope);
+    public static final Setting<TimeValue> ROSETTE_EJECTION_DURATION =
+            Setting.timeSetting("ingest.rosette.ejection.duration", TimeValue.timeValueSeconds(30),
+                    TimeValue.timeValueMillis(1), Setting.Property.NodeScope);
+    public static final Setting<Boolean> ROSETTE_STICKY_ROUTING =
+            Setting.boolSetting("ingest.rosette.sticky_routing", true, Setting.Property.NodeScope);
+    //Maximum number of responses kept in the node level response cache, 0 disables the cache
+    public static final Setting<Integer> ROSETTE_CACHE_SIZE =
+            Setting.intSetting("ingest.rosette.cache.size", 10000, 0, Setting.Property.NodeScope);
+    public static final Setting<TimeValue> ROSETTE_CACHE_TTL =
+            Setting.timeSetting("ingest.rosette.cache.ttl", TimeValue.timeValueHours(1), TimeValue.ZERO,
+                    Setting.Property.NodeScope);
+    //Optional on-disk tier of the response cache, kept under the node's data path across restarts
+    public static final Setting<Boolean> ROSETTE_CACHE_DISK_ENABLED =
+            Setting.boolSetting("ingest.rosette.cache.disk.enabled", false, Setting.Property.NodeScope);
+    public static final Setting<ByteSizeValue> ROSETTE_CACHE_DISK_SIZE =
+            Setting.byteSizeSetting("ingest.rosette.cache.disk.size", new ByteSizeValue(256, ByteSizeUnit.MB),
+                    new ByteSizeValue(1, ByteSizeUnit.MB), new ByteSizeValue(1, ByteSizeUnit.GB),
+                    Setting.Property.NodeScope);
+    public static final Setting<TimeValue> ROSETTE_CACHE_DISK_TTL =
+            Setting.timeSetting("ingest.rosette.cache.disk.ttl", TimeValue.timeValueDays(7), TimeValue.ZERO,
+                    Setting.Property.NodeScope);
+
+    //Optional cluster wide tier of the response cache, kept in a system index shared by all ingest nodes
+    public static final Setting<Boolean> ROSETTE_CACHE_INDEX_ENABLED =
+            Setting.boolSetting("ingest.rosette.cache.index.enabled", false, Setting.Property.NodeScope);
+    public static final Setting<TimeValue> ROSETTE_CACHE_INDEX_TTL =
+            Setting.timeSetting("ingest.rosette.cache.index.ttl", TimeValue.timeValueDays(7), TimeValue.ZERO,
+                    Setting.Property.NodeScope);
+    public static final Setting<TimeValue> ROSETTE_CACHE_INDEX_CLEANUP_INTERVAL =
+            Setting.timeSetting("ingest.rosette.cache.index.cleanup_interval", TimeValue.timeValueHours(1),
+                    TimeValue.timeValueMinutes(1), Setting.Property.NodeScope);
+
+    //Name translations used by the entities processors get a cache of their own, so they aren't pushed out by
+    // the larger responses of the other endpoints
+    public static final Setting<Integer> ROSETTE_TRANSLATION_CACHE_SIZE =
+            Setting.intSetting("ingest.rosette.cache.translation.size", 10000, 0, Setting.Property.NodeScope);
+    public static final Setting<Integer> ROSETTE_CONCURRENCY =
+            Setting.intSetting("ingest.rosette.concurrency", 8, 1, Setting.Property.NodeScope);
+    //When set, the limit on calls in flight adapts to each endpoint, starting from the concurrency above
+    public static final Setting<Integer> ROSETTE_MAX_CONCURRENCY =
+            Setting.intSetting("ingest.rosette.max_concurrency", 0, 0, Setting.Property.NodeScope);
+    public static final Setting<Integer> ROSETTE_QUEUE_SIZE =
+            Setting.intSetting("ingest.rosette.queue_size", 10000, -1, Setting.Property.NodeScope);
+
+    //Circuit breaker that stops calls to Rosette while it is unavailable
+    public static final Setting<Integer> ROSETTE_BREAKER_FAILURES =
+            Setting.intSetting("ingest.rosette.breaker.failures", 5, 0, Setting.Property.NodeScope);
+    public static final Setting<TimeValue> ROSETTE_BREAKER_OPEN_DURATION =
+            Setting.timeSetting("ingest.rosette.breaker.open_duration", TimeValue.timeValueSeconds(30),
+                    TimeValue.timeValueMillis(1), Setting.Property.NodeScope);
+
+    //Retries of calls that failed for a transient reason, such as throttling
+    public static final Setting<Integer> ROSETTE_RETRY_MAX_RETRIES =
+            Setting.intSetting("ingest.rosette.retry.max_retries", 3, 0, Setting.Property.NodeScope);
+    public static final Setting<TimeValue> ROSETTE_RETRY_INITIAL_BACKOFF =
+            Setting.timeSetting("ingest.rosette.retry.initial_backoff", TimeValue.timeValueMillis(100),
+                    TimeValue.ZERO, Setting.Property.NodeScope);
+    public static final Setting<TimeValue> ROSETTE_RETRY_MAX_BACKOFF =
+            Setting.timeSetting("ingest.rosette.retry.max_backoff", TimeValue.timeValueSeconds(10),
+                    TimeValue.ZERO, Setting.Property.NodeScope);
+    //Hedging of slow calls, off unless a percentile is set
+    public static final Setting<Double> ROSETTE_HEDGE_PERCENTILE =
+            Setting.doubleSetting("ingest.rosette.hedge.percentile", 0, 0, 100, Setting.Property.NodeScope);
+    public static final Setting<Double> ROSETTE_HEDGE_BUDGET =
+            Setting.doubleSetting("ingest.rosette.hedge.budget", 0.05, 0, 1, Setting.Property.NodeScope);
+
+    //Transport of the HTTP client used to call Rosette
+    public static final Setting<Integer> ROSETTE_HTTP_MAX_CONNECTIONS =
+            Setting.intSetting("ingest.rosette.http.max_connections", 64, 1, Setting.Property.NodeScope);
+    public static final Setting<Integer> ROSETTE_HTTP_MAX_CONNECTIONS_PER_ROUTE =
+            Setting.intSetting("ingest.rosette.http.max_connections_per_route", 64, 1, Setting.Property.NodeScope);
+    public static final Setting<TimeValue> ROSETTE_HTTP_KEEP_ALIVE =
+            Setting.timeSetting("ingest.rosette.http.keep_alive", TimeValue.timeValueSeconds(30),
+                    TimeValue.timeValueMillis(1), Setting.Property.NodeScope);
+    public static final Setting<TimeValue> ROSETTE_HTTP_CONNECT_TIMEOUT =
+            Setting.timeSetting("ingest.rosette.http.connect_timeout", TimeValue.timeValueSeconds(10),
+                    TimeValue.ZERO, Setting.Property.NodeScope);
+    public static final Setting<TimeValue> ROSETTE_HTTP_READ_TIMEOUT =
+            Setting.timeSetting("ingest.rosette.http.read_timeout", TimeValue.timeValueSeconds(60),
+                    TimeValue.ZERO, Setting.Property.NodeScope);
+    public static final Setting<TimeValue> ROSETTE_HTTP_POOL_TIMEOUT =
+            Setting.timeSetting("ingest.rosette.http.pool_timeout", TimeValue.timeValueSeconds(30),
+                    TimeValue.ZERO, Setting.Property.NodeScope);
+    public static final Setting<ByteSizeValue> ROSETTE_HTTP_SEND_BUFFER_SIZE =
+            Setting.byteSizeSetting("ingest.rosette.http.send_buffer_size", new ByteSizeValue(0),
+                    new ByteSizeValue(0), new ByteSizeValue(16, ByteSizeUnit.MB), Setting.Property.NodeScope);
+    public static final Setting<ByteSizeValue> ROSETTE_HTTP_RECEIVE_BUFFER_SIZE =
+            Setting.byteSizeSetting("ingest.rosette.http.receive_buffer_size", new ByteSizeValue(0),
+                    new ByteSizeValue(0), new ByteSizeValue(16, ByteSizeUnit.MB), Setting.Property.NodeScope);
+    //Opt-in gzip of request bodies (and responses), for Rosette deployments that accept compressed requests
+    public static final Setting<Boolean> ROSETTE_HTTP_COMPRESSION =
+            Setting.boolSetting("ingest.rosette.http.compression", false, Setting.Property.NodeScope);
+    public static final Setting<ByteSizeValue> ROSETTE_HTTP_COMPRESSION_THRESHOLD =
+            Setting.byteSizeSetting("ingest.rosette.http.compression_threshold", new ByteSizeValue(8, ByteSizeUnit.KB),
+                    new ByteSizeValue(0), new ByteSizeValue(Integer.MAX_VALUE), Setting.Property.NodeScope);
+
+    private final SetOnce<RosetteApiWrapper> rosAPI = new SetOnce<>();
+    private final SetOnce<ThreadPool> threadPool = new SetOnce<>();
+    private final SetOnce<ExecutorService> virtualThreads = new SetOnce<>();
+    private final SetOnce<PersistentResponseCache> persistentCache = new SetOnce<>();
+    //Periodic deletion of the expired entries of the shared cache index
+    private final SetOnce<Scheduler.Cancellable> sharedCacheCleanup = new SetOnce<>();
+    private final LocalLanguageIdentifier localLanguageIdentifier = new LocalLanguageIdentifier();
+    //Served by the _nodes/_rosette/stats endpoint
+    private final RosetteStats stats = new RosetteStats();
 
     @Override
     public List<Setting<?>> getSettings() {
-        return Arrays.asList(ROSETTE_API_KEY, ROSETTE_API_URL);
+        return Arrays.asList(ROSETTE_API_KEY, ROSETTE_API_URL, ROSETTE_EJECTION_FAILURES, ROSETTE_EJECTION_DURATION,
+                ROSETTE_STICKY_ROUTING, ROSETTE_CACHE_SIZE, ROSETTE_CACHE_TTL,
+                ROSETTE_CACHE_DISK_ENABLED, ROSETTE_CACHE_DISK_SIZE, ROSETTE_CACHE_DISK_TTL,
+                ROSETTE_CACHE_INDEX_ENABLED, ROSETTE_CACHE_INDEX_TTL, ROSETTE_CACHE_INDEX_CLEANUP_INTERVAL,
+                ROSETTE_CONCURRENCY, ROSETTE_MAX_CONCURRENCY, ROSETTE_QUEUE_SIZE,
+                ROSETTE_TRANSLATION_CACHE_SIZE, ROSETTE_BREAKER_FAILURES, ROSETTE_BREAKER_OPEN_DURATION,
+                ROSETTE_RETRY_MAX_RETRIES, ROSETTE_RETRY_INITIAL_BACKOFF, ROSETTE_RETRY_MAX_BACKOFF,
+                ROSETTE_HEDGE_PERCENTILE, ROSETTE_HEDGE_BUDGET,
+                ROSETTE_HTTP_MAX_CONNECTIONS, ROSETTE_HTTP_MAX_CONNECTIONS_PER_ROUTE, ROSETTE_HTTP_KEEP_ALIVE,
+                ROSETTE_HTTP_CONNECT_TIMEOUT, ROSETTE_HTTP_READ_TIMEOUT, ROSETTE_HTTP_POOL_TIMEOUT,
+                ROSETTE_HTTP_SEND_BUFFER_SIZE, ROSETTE_HTTP_RECEIVE_BUFFER_SIZE, ROSETTE_HTTP_COMPRESSION,
+                ROSETTE_HTTP_COMPRESSION_THRESHOLD, ROSETTE_VIRTUAL_THREADS);
+    }
+
+    @Override
+    public List<ExecutorBuilder<?>> getExecutorBuilders(Settings settings) {
+        //Enough threads for the calls in flight to a few endpoints at once
+        int size = 4 * Math.max(ROSETTE_CONCURRENCY.get(settings), ROSETTE_MAX_CONCURRENCY.get(settings));
+        return Collections.singletonList(new FixedExecutorBuilder(settings, EXECUTOR, size, EXECUTOR_QUEUE_SIZE,
+                "thread_pool." + EXECUTOR));
+    }
+
+    @Override
+    public List<ActionHandler<? extends ActionRequest, ? extends ActionResponse>> getActions() {
+        return Collections.singletonList(new ActionHandler<>(RosetteStatsAction.INSTANCE,
+                TransportRosetteStatsAction.class));
+    }
+
+    @Override
+    public List<RestHandler> getRestHandlers(Settings settings, RestController restController,
+                                             ClusterSettings clusterSettings, IndexScopedSettings indexScopedSettings,
+                                             SettingsFilter settingsFilter,
+                                             IndexNameExpressionResolver indexNameExpressionResolver,
+                                             Supplier<DiscoveryNodes> nodesInCluster) {
+        return Collections.singletonList(new RestRosetteStatsAction());
+    }
+
+    @Override
+    public Collection<SystemIndexDescriptor> getSystemIndexDescriptors(Settings settings) {
+        return Collections.singletonList(SharedResponseCache.descriptor());
+    }
+
+    @Override
+    public String getFeatureName() {
+        return "rosette";
+    }
+
+    @Override
+    public String getFeatureDescription() {
+        return "Caches Rosette responses for the Rosette ingest processors";
+    }
+
+    @Override
+    public Collection<Object> createComponents(Client client, ClusterService clusterService, ThreadPool threadPool,
+                                               ResourceWatcherService resourceWatcherService,
+                                               ScriptService scriptService, NamedXContentRegistry xContentRegistry,
+                                               Environment environment, NodeEnvironment nodeEnvironment,
+                                               NamedWriteableRegistry namedWriteableRegistry,
+                                               IndexNameExpressionResolver indexNameExpressionResolver,
+                                               Supplier<RepositoriesService> repositoriesServiceSupplier) {
+        Settings settings = environment.settings();
+        this.threadPool.set(threadPool);
+        //The processors (and the api client) are set up before components are created
+        if (ROSETTE_CACHE_DISK_ENABLED.get(settings) && rosAPI.get() != null
+                && nodeEnvironment.nodeDataPaths().length > 0) {
+            try {
+                persistentCache.set(new PersistentResponseCache(
+                        nodeEnvironment.nodeDataPaths()[0].resolve(PersistentResponseCache.DIRECTORY),
+                        ROSETTE_CACHE_DISK_SIZE.get(settings), ROSETTE_CACHE_DISK_TTL.get(settings),
+                        threadPool.generic()::execute));
+            } catch (IOException e) {
+                throw new ElasticsearchException("Failed to open the persistent Rosette response cache", e);
+            }
+            rosAPI.get().setPersistentCache(persistentCache.get());
+        }
+        if (ROSETTE_CACHE_INDEX_ENABLED.get(settings) && rosAPI.get() != null) {
+            SharedResponseCache sharedCache = new SharedResponseCache(client, ROSETTE_CACHE_INDEX_TTL.get(settings));
+            rosAPI.get().setSharedCache(sharedCache);
+            //Every node could clean up the index, only the elected master does so it isn't done several times over
+            sharedCacheCleanup.set(threadPool.scheduleWithFixedDelay(() -> {
+                if (clusterService.state().nodes().isLocalNodeElectedMaster()) {
+                    sharedCache.deleteExpired();
+                }
+            }, ROSETTE_CACHE_INDEX_CLEANUP_INTERVAL.get(settings), ThreadPool.Names.GENERIC));
+        }
+        //Injected into the stats transport action
+        return Collections.singletonList(stats);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (sharedCacheCleanup.get() != null) {
+            sharedCacheCleanup.get().cancel();
+        }
+        if (virtualThreads.get() != null) {
+            virtualThreads.get().shutdown();
+        }
+        IOUtils.close(persistentCache.get(), rosAPI.get() == null ? null : rosAPI.get().getHttpClientPool());
+    }
+
+    /**
+     * Calls waiting on Rosette hold on to no thread on virtual threads, so the limits that would otherwise keep
+     * them to what the thread pool can take are raised, unless they were set.
+     * @param settings node settings
+     * @return the settings with the default limits on calls in flight and connections scaled up
+     */
+    static Settings virtualThreadLimits(Settings settings) {
+        Settings.Builder limits = Settings.builder().put(settings);
+        for (Setting<Integer> limit : Arrays.asList(ROSETTE_CONCURRENCY, ROSETTE_HTTP_MAX_CONNECTIONS,
+                ROSETTE_HTTP_MAX_CONNECTIONS_PER_ROUTE)) {
+            if (!limit.exists(settings)) {
+                limits.put(limit.getKey(), limit.get(settings) * VIRTUAL_THREADS_LIMIT_SCALE);
+            }
+        }
+        return limits.build();
     }
 
     @Override
     public Map<String, Processor.Factory> getProcessors(Processor.Parameters parameters) {
-        String key = ROSETTE_API_KEY.get(parameters.env.settings());
-        String altURL = ROSETTE_API_URL.get(parameters.env.settings());
+        Settings settings = parameters.env.settings();
+        String key = ROSETTE_API_KEY.get(settings);
+        String altURL = ROSETTE_API_URL.get(settings);
+        //One cache per node, shared by all processor factories through the api client
+        RosetteResponseCache cache = new RosetteResponseCache(ROSETTE_CACHE_SIZE.get(settings),
+                ROSETTE_CACHE_TTL.get(settings));
         //As this method is called at Node startup, this should ensure only one instance of the api client
-        RosetteApiWrapper rosAPI = new RosetteApiWrapper(key, altURL);
+        //Rosette calls are handed off to a pool of their own so they neither hold on to ingest threads nor
+        // take the threads other work of the node needs. The pool is only known once components are created,
+        // before that (i.e. in tests) calls go to the generic pool.
+        if (ROSETTE_VIRTUAL_THREADS.get(settings)) {
+            ExecutorService virtualExecutor = VirtualThreads.newExecutor(EXECUTOR + "-");
+            if (virtualExecutor != null) {
+                virtualThreads.set(virtualExecutor);
+            }
+        }
+        Consumer<Runnable> executor = task -> {
+            ThreadPool pool = threadPool.get();
+            if (pool == null) {
+                parameters.genericExecutor.accept(task);
+            } else {
+                pool.executor(EXECUTOR).execute(task);
+            }
+        };
+        //Only the calls themselves go to virtual threads, those have no permissions under the SecurityManager
+        Consumer<Runnable> callExecutor = executor;
+        ExecutorService virtualExecutor = virtualThreads.get();
+        Settings limits = settings;
+        if (virtualExecutor != null) {
+            //Unlike the node's pools, a plain executor doesn't carry the thread context over
+            callExecutor = task -> virtualExecutor.execute(parameters.threadContext.preserveContext(task));
+            limits = virtualThreadLimits(settings);
+        }
+        RequestBatcher batcher = new RequestBatcher(ROSETTE_CONCURRENCY.get(limits),
+                ROSETTE_MAX_CONCURRENCY.get(limits), ROSETTE_QUEUE_SIZE.get(limits), callExecutor);
+        RosetteCircuitBreaker breaker = new RosetteCircuitBreaker(ROSETTE_BREAKER_FAILURES.get(settings),
+                ROSETTE_BREAKER_OPEN_DURATION.get(settings), System::nanoTime);
+        HttpClientPool httpClientPool = new HttpClientPool(limits, stats);
+        RosetteApiWrapper rosAPI = new RosetteApiWrapper(key, altURL, executor, cache, batcher, httpClientPool, breaker,
+                new RetryPolicy(ROSETTE_RETRY_MAX_RETRIES.get(settings), ROSETTE_RETRY_INITIAL_BACKOFF.get(settings),
+                        ROSETTE_RETRY_MAX_BACKOFF.get(settings)),
+                new HedgePolicy(ROSETTE_HEDGE_PERCENTILE.get(settings), ROSETTE_HEDGE_BUDGET.get(settings)),
+                parameters.scheduler, stats, ROSETTE_EJECTION_FAILURES.get(settings),
+                ROSETTE_EJECTION_DURATION.get(settings), ROSETTE_STICKY_ROUTING.get(settings));
+        //What follows a call (the rest of the pipeline, cache writes) is handed to the generic pool, which doesn't
+        // reject tasks, so the thread that made the call and its slot of the endpoint's limit are free right away
+        rosAPI.setCompletionExecutor(task -> {
+            ThreadPool pool = threadPool.get();
+            if (pool == null) {
+                parameters.genericExecutor.accept(task);
+            } else {
+                pool.generic().execute(task);
+            }
+        });
+        this.rosAPI.set(rosAPI);
+        stats.addGauge("queues", batcher::stats);
+        stats.addGauge("hosts", rosAPI.getHosts()::stats);
+        stats.addGauge("breaker", () -> breaker.state().name().toLowerCase(Locale.ROOT));
+        stats.addGauge("http_pool", () -> {
+            PoolStats poolStats = httpClientPool.stats();
+            Map<String, Object> pool = new LinkedHashMap<>();
+            pool.put("leased", poolStats.getLeased());
+            pool.put("available", poolStats.getAvailable());
+            pool.put("pending", poolStats.getPending());
+            pool.put("max", poolStats.getMax());
+            return pool;
+        });
+        stats.addGauge("language_identification", () -> {
+            Map<String, Object> counts = new LinkedHashMap<>();
+            counts.put("local", localLanguageIdentifier.localCount());
+            counts.put("remote", localLanguageIdentifier.remoteCount());
+            return counts;
+        });
 
         Map<String, Processor.Factory> processors = new HashMap<>();
-        processors.put(LanguageProcessor.TYPE, new LanguageProcessor.Factory(rosAPI));
+        processors.put(LanguageProcessor.TYPE, new LanguageProcessor.Factory(rosAPI, localLanguageIdentifier));
         processors.put(CategoriesProcessor.TYPE, new CategoriesProcessor.Factory(rosAPI));
         processors.put(SentimentProcessor.TYPE, new SentimentProcessor.Factory(rosAPI));
         processors.put(NameTranslationProcessor.TYPE, new NameTranslationProcessor.Factory(rosAPI));
-        processors.put(EntitiesProcessor.TYPE, new EntitiesProcessor.Factory(rosAPI));
+        processors.put(EntitiesProcessor.TYPE, new EntitiesProcessor.Factory(rosAPI,
+                new RosetteResponseCache(ROSETTE_TRANSLATION_CACHE_SIZE.get(settings),
+                        ROSETTE_CACHE_TTL.get(settings))));
+
+        //Each of the processors above can also run as an analysis of the enrich processor, i.e. "entities"
+        Map<String, Processor.Factory> analyses = new HashMap<>();
+        for (Map.Entry<String, Processor.Factory> processor : processors.entrySet()) {
+            analyses.put(processor.getKey().substring("ros_".length()), processor.getValue());
+        }
+        processors.put(EnrichProcessor.TYPE, new EnrichProcessor.Factory(rosAPI, analyses));
         return processors;
     }
 }
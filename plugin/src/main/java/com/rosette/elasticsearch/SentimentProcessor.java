@@ -15,20 +15,19 @@
 */
 package com.rosette.elasticsearch;
 
-import com.basistech.rosette.api.HttpRosetteAPIException;
 import com.basistech.rosette.apimodel.DocumentRequest;
 import com.basistech.rosette.apimodel.SentimentOptions;
 import com.basistech.rosette.apimodel.SentimentResponse;
-import org.apache.logging.log4j.Logger;
+import com.basistech.rosette.dm.AnnotatedText;
+import com.basistech.rosette.dm.CategorizerResult;
 import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.action.ActionListener;
 import org.elasticsearch.common.Strings;
-import org.elasticsearch.common.logging.Loggers;
 import org.elasticsearch.ingest.ConfigurationUtils;
 import org.elasticsearch.ingest.IngestDocument;
 import org.elasticsearch.ingest.Processor;
 
-import java.security.AccessController;
-import java.security.PrivilegedAction;
+import java.util.List;
 import java.util.Map;
 
 import static com.basistech.rosette.api.common.AbstractRosetteAPI.SENTIMENT_SERVICE_PATH;
@@ -37,39 +36,51 @@ public class SentimentProcessor extends RosetteAbstractProcessor {
 
     public static final String TYPE = "ros_sentiment";
 
-    private static final Logger LOGGER = Loggers.getLogger(SentimentProcessor.class,
-            SentimentProcessor.class.getName());
+    private String languageField;
 
     SentimentProcessor(RosetteApiWrapper rosAPI, String tag, String description, String inputField,
-                       String targetField) {
+                       String targetField, String languageField) {
         super(rosAPI, tag, description, TYPE, inputField, targetField);
+        this.languageField = languageField;
     }
 
     @Override
-    public void processDocument(String inputText, IngestDocument ingestDocument) throws Exception {
+    public void processDocument(String inputText, IngestDocument ingestDocument, ActionListener<Object> listener) {
         // call /sentiment endpoint and set the top result in the field
         DocumentRequest<SentimentOptions> request = DocumentRequest.<SentimentOptions>builder()
-                .content(inputText).build();
-        SentimentResponse response;
-        try {
-            // RosApi client binding's Jackson needs elevated privilege
-            response = AccessController.doPrivileged((PrivilegedAction<SentimentResponse>) () ->
-                    rosAPI.getHttpRosetteAPI().perform(SENTIMENT_SERVICE_PATH, request,
-                            SentimentResponse.class)
-            );
-        } catch (HttpRosetteAPIException ex) {
-            LOGGER.error(ex.getErrorResponse().getMessage());
-            throw new ElasticsearchException(ex.getErrorResponse().getMessage(), ex);
+                .content(inputText).language(documentLanguage(ingestDocument, languageField)).build();
+        //Entity level sentiment makes the same call for the ADM, which is reused when it already ran. The ADM is
+        // much larger than the plain response though, so it isn't asked for otherwise.
+        AnnotatedText adm = rosAPI.documentResponse(ingestDocument, SENTIMENT_SERVICE_PATH, request);
+        if (adm != null) {
+            ActionListener.completeWith(listener, () -> label(adm.getSentimentResults()));
+            return;
         }
+        rosAPI.perform(SENTIMENT_SERVICE_PATH, request, SentimentResponse.class, listener.map(response -> {
+            if (response.getDocument() != null
+                    && !Strings.isNullOrEmpty(response.getDocument().getLabel())) {
+                return response.getDocument().getLabel();
+            } else {
+                throw failure();
+            }
+        }));
+    }
 
-        if (response.getDocument() != null
-                && !Strings.isNullOrEmpty(response.getDocument().getLabel())) {
-            ingestDocument.setFieldValue(targetField, response.getDocument().getLabel());
+    private static String label(List<CategorizerResult> sentiment) {
+        if (sentiment != null
+                && !sentiment.isEmpty()
+                && sentiment.get(0) != null
+                && !Strings.isNullOrEmpty(sentiment.get(0).getLabel())) {
+            return sentiment.get(0).getLabel();
         } else {
-            throw new ElasticsearchException(TYPE + " ingest processor failed to determine sentiment of document.");
+            throw failure();
         }
     }
 
+    private static ElasticsearchException failure() {
+        return new ElasticsearchException(TYPE + " ingest processor failed to determine sentiment of document.");
+    }
+
     public static final class Factory implements Processor.Factory {
         private RosetteApiWrapper rosAPI;
 
@@ -83,12 +94,19 @@ public class SentimentProcessor extends RosetteAbstractProcessor {
             String inputField = ConfigurationUtils.readStringProperty(TYPE, processorTag, config, "field");
             String targetField = ConfigurationUtils.readStringProperty(TYPE, processorTag, config,
                     Parameters.TARGET_FIELD.name, Parameters.TARGET_FIELD.defaultValue);
-            return new SentimentProcessor(rosAPI, processorTag, processorDescription, inputField, targetField);
+            String languageField = ConfigurationUtils.readOptionalStringProperty(TYPE, processorTag, config,
+                    Parameters.LANGUAGE_FIELD.name);
+            SentimentProcessor processor = new SentimentProcessor(rosAPI, processorTag, processorDescription,
+                    inputField, targetField, languageField);
+            processor.setOnUnavailable(readOnUnavailable(TYPE, processorTag, config));
+            processor.readReprocessOptions(processorTag, config);
+            return processor;
         }
     }
 
     enum Parameters {
-        TARGET_FIELD("target_field", "ros_sentiment");
+        TARGET_FIELD("target_field", "ros_sentiment"),
+        LANGUAGE_FIELD("language_field", null);
 
         String name;
         String defaultValue;
@@ -0,0 +1,357 @@
+/*
+* Copyright 2022 Basis Technology Corp.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.rosette.elasticsearch;
+
+import org.apache.logging.log4j.Logger;
+import org.elasticsearch.Version;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.action.get.MultiGetItemResponse;
+import org.elasticsearch.action.get.MultiGetRequest;
+import org.elasticsearch.action.get.MultiGetResponse;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.support.ContextPreservingActionListener;
+import org.elasticsearch.action.support.IndicesOptions;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.cluster.metadata.IndexMetadata;
+import org.elasticsearch.common.hash.MessageDigests;
+import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.util.concurrent.ThreadContext;
+import org.elasticsearch.core.TimeValue;
+import org.elasticsearch.index.mapper.MapperService;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.index.reindex.BulkByScrollResponse;
+import org.elasticsearch.index.reindex.DeleteByQueryAction;
+import org.elasticsearch.index.reindex.DeleteByQueryRequest;
+import org.elasticsearch.indices.SystemIndexDescriptor;
+import org.elasticsearch.xcontent.XContentBuilder;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+import static org.elasticsearch.xcontent.XContentFactory.jsonBuilder;
+
+/**
+ * Cluster wide tier of the response cache, kept in a hidden system index so that every ingest node can reuse
+ * a response any of them got from Rosette. Lookups and writes are batched: once a few multi-gets (or a bulk)
+ * are in flight, new requests queue up and go out together in the next one.
+ */
+public final class SharedResponseCache {
+
+    private static final Logger LOGGER = Loggers.getLogger(SharedResponseCache.class,
+            SharedResponseCache.class.getName());
+
+    static final String INDEX = ".rosette-cache";
+    static final String ORIGIN = "rosette";
+    static final int INDEX_FORMAT = 1;
+    private static final String VERSION_META_KEY = "version";
+    private static final String RESPONSE_FIELD = "response";
+    static final String CREATED_FIELD = "created";
+    //Most requests in one multi-get or bulk
+    private static final int MAX_BATCH = 256;
+    //Most multi-gets in flight at once, so a slow one doesn't hold up every lookup queued behind it
+    static final int MAX_LOOKUPS_IN_FLIGHT = 4;
+    //Writes beyond this are dropped while the index can't keep up
+    private static final int MAX_PENDING_WRITES = 10000;
+
+    private final Client client;
+    private final long ttlMillis;
+
+    private final Object mutex = new Object();
+    private List<Lookup> pendingLookups = new ArrayList<>();
+    private int lookupsInFlight;
+    private List<IndexRequest> pendingWrites = new ArrayList<>();
+    private boolean writeInFlight;
+
+    SharedResponseCache(Client client, TimeValue ttl) {
+        this.client = client;
+        this.ttlMillis = ttl.millis();
+    }
+
+    static SystemIndexDescriptor descriptor() {
+        return SystemIndexDescriptor.builder()
+                .setIndexPattern(INDEX + "*")
+                .setPrimaryIndex(INDEX)
+                .setDescription("Rosette responses shared by all ingest nodes")
+                .setMappings(mappings())
+                .setSettings(Settings.builder()
+                        .put(IndexMetadata.SETTING_NUMBER_OF_SHARDS, 1)
+                        .put(IndexMetadata.SETTING_AUTO_EXPAND_REPLICAS, "0-1")
+                        .put(IndexMetadata.INDEX_FORMAT_SETTING.getKey(), INDEX_FORMAT)
+                        .build())
+                .setIndexFormat(INDEX_FORMAT)
+                .setVersionMetaKey(VERSION_META_KEY)
+                .setOrigin(ORIGIN)
+                .setType(SystemIndexDescriptor.Type.INTERNAL_MANAGED)
+                .build();
+    }
+
+    private static XContentBuilder mappings() {
+        try {
+            return jsonBuilder().startObject()
+                    .startObject(MapperService.SINGLE_MAPPING_NAME)
+                        //Read back by the descriptor as the node version the mappings were written by
+                        .startObject("_meta").field(VERSION_META_KEY, Version.CURRENT.toString()).endObject()
+                        .field("dynamic", "strict")
+                        .startObject("properties")
+                            .startObject(RESPONSE_FIELD).field("type", "binary").endObject()
+                            .startObject(CREATED_FIELD).field("type", "date").field("format", "epoch_millis")
+                            .endObject()
+                        .endObject()
+                    .endObject()
+                    .endObject();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to build the Rosette cache index mappings", e);
+        }
+    }
+
+    //Cache keys can be long (they include the request options), so documents are stored under their hash
+    static String id(String key) {
+        return MessageDigests.toHexString(MessageDigests.sha256().digest(key.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * Looks up a response. The listener is called from whichever thread completes the lookup, with null
+     * when there is no usable entry or the index couldn't be read.
+     * @param key cache key, as built by {@link RosetteResponseCache#key}
+     * @param resultType type to read the response as
+     * @param listener notified with the response, or null
+     */
+    <R> void get(String key, Class<R> resultType, ActionListener<R> listener) {
+        List<Lookup> batch;
+        synchronized (mutex) {
+            pendingLookups.add(new Lookup(id(key), value -> listener.onResponse(read(value, resultType))));
+            if (lookupsInFlight >= MAX_LOOKUPS_IN_FLIGHT) {
+                return;
+            }
+            lookupsInFlight++;
+            batch = takeLookups();
+        }
+        sendLookups(batch);
+    }
+
+    /**
+     * Stores a response in the background. Failures are only logged, as the cache is best effort.
+     * @param key cache key, as built by {@link RosetteResponseCache#key}
+     * @param response response to store
+     */
+    void put(String key, Object response) {
+        byte[] value;
+        try {
+            value = RosetteResponseCache.serialize(response);
+        } catch (Exception e) {
+            LOGGER.debug("Failed to serialize Rosette response for the cache", e);
+            return;
+        }
+        Map<String, Object> source = new HashMap<>();
+        source.put(RESPONSE_FIELD, value);
+        source.put(CREATED_FIELD, System.currentTimeMillis());
+        IndexRequest request = new IndexRequest(INDEX).id(id(key)).source(source);
+        List<IndexRequest> batch;
+        synchronized (mutex) {
+            if (pendingWrites.size() >= MAX_PENDING_WRITES) {
+                return;
+            }
+            pendingWrites.add(request);
+            if (writeInFlight) {
+                return;
+            }
+            writeInFlight = true;
+            batch = takeWrites();
+        }
+        sendWrites(batch);
+    }
+
+    /**
+     * Deletes the entries that expired, in the background, so the index doesn't keep growing with responses that
+     * won't be used anymore. Failures are only logged, the next run deletes what this one didn't.
+     */
+    void deleteExpired() {
+        if (ttlMillis <= 0) {
+            return;
+        }
+        DeleteByQueryRequest request = expiredEntries(System.currentTimeMillis());
+        executeAsSystem(listener -> client.execute(DeleteByQueryAction.INSTANCE, request, listener),
+                new ActionListener<BulkByScrollResponse>() {
+                    @Override
+                    public void onResponse(BulkByScrollResponse response) {
+                        LOGGER.debug("Deleted {} expired entries from the Rosette cache index", response.getDeleted());
+                    }
+
+                    @Override
+                    public void onFailure(Exception e) {
+                        LOGGER.debug("Failed to delete expired entries from the Rosette cache index", e);
+                    }
+                });
+    }
+
+    //Entries written longer than the ttl ago, the index may not have been created yet
+    DeleteByQueryRequest expiredEntries(long now) {
+        return new DeleteByQueryRequest(INDEX)
+                .setQuery(QueryBuilders.rangeQuery(CREATED_FIELD).lt(now - ttlMillis))
+                .setIndicesOptions(IndicesOptions.lenientExpandOpen())
+                //Entries rewritten in the meantime are fresh again
+                .setAbortOnVersionConflict(false);
+    }
+
+    private List<Lookup> takeLookups() {
+        List<Lookup> batch = pendingLookups;
+        if (batch.size() > MAX_BATCH) {
+            pendingLookups = new ArrayList<>(batch.subList(MAX_BATCH, batch.size()));
+            return new ArrayList<>(batch.subList(0, MAX_BATCH));
+        }
+        pendingLookups = new ArrayList<>();
+        return batch;
+    }
+
+    private List<IndexRequest> takeWrites() {
+        List<IndexRequest> batch = pendingWrites;
+        if (batch.size() > MAX_BATCH) {
+            pendingWrites = new ArrayList<>(batch.subList(MAX_BATCH, batch.size()));
+            return new ArrayList<>(batch.subList(0, MAX_BATCH));
+        }
+        pendingWrites = new ArrayList<>();
+        return batch;
+    }
+
+    private void sendLookups(List<Lookup> batch) {
+        MultiGetRequest request = new MultiGetRequest();
+        for (Lookup lookup : batch) {
+            request.add(INDEX, lookup.id);
+        }
+        executeAsSystem(listener -> client.multiGet(request, listener), new ActionListener<MultiGetResponse>() {
+            @Override
+            public void onResponse(MultiGetResponse response) {
+                MultiGetItemResponse[] items = response.getResponses();
+                for (int i = 0; i < batch.size(); i++) {
+                    GetResponse item = items[i].isFailed() ? null : items[i].getResponse();
+                    batch.get(i).callback.accept(item == null || !item.isExists() ? null : item.getSourceAsMap());
+                }
+                nextLookups();
+            }
+
+            @Override
+            public void onFailure(Exception e) {
+                LOGGER.debug("Failed to read from the Rosette cache index", e);
+                for (Lookup lookup : batch) {
+                    lookup.callback.accept(null);
+                }
+                nextLookups();
+            }
+        });
+    }
+
+    private void nextLookups() {
+        List<Lookup> batch;
+        synchronized (mutex) {
+            if (pendingLookups.isEmpty()) {
+                lookupsInFlight--;
+                return;
+            }
+            batch = takeLookups();
+        }
+        sendLookups(batch);
+    }
+
+    private void sendWrites(List<IndexRequest> batch) {
+        BulkRequest request = new BulkRequest();
+        for (IndexRequest write : batch) {
+            request.add(write);
+        }
+        executeAsSystem(listener -> client.bulk(request, listener), new ActionListener<BulkResponse>() {
+            @Override
+            public void onResponse(BulkResponse response) {
+                if (response.hasFailures()) {
+                    LOGGER.debug("Failed to write to the Rosette cache index: {}", response.buildFailureMessage());
+                }
+                nextWrites();
+            }
+
+            @Override
+            public void onFailure(Exception e) {
+                LOGGER.debug("Failed to write to the Rosette cache index", e);
+                nextWrites();
+            }
+        });
+    }
+
+    private void nextWrites() {
+        List<IndexRequest> batch;
+        synchronized (mutex) {
+            if (pendingWrites.isEmpty()) {
+                writeInFlight = false;
+                return;
+            }
+            batch = takeWrites();
+        }
+        sendWrites(batch);
+    }
+
+    //The cache index is a system index, so it's accessed from a system context rather than the one of whichever
+    // pipeline triggered the call. The caller's context is restored before the listener is called.
+    private <T> void executeAsSystem(Consumer<ActionListener<T>> action, ActionListener<T> listener) {
+        ThreadContext threadContext = client.threadPool().getThreadContext();
+        Supplier<ThreadContext.StoredContext> restore = threadContext.newRestorableContext(false);
+        try (ThreadContext.StoredContext ignore = threadContext.stashContext()) {
+            threadContext.markAsSystemContext();
+            action.accept(new ContextPreservingActionListener<>(restore, listener));
+        } catch (Exception e) {
+            listener.onFailure(e);
+        }
+    }
+
+    private <R> R read(Map<String, Object> source, Class<R> resultType) {
+        if (source == null) {
+            return null;
+        }
+        Object created = source.get(CREATED_FIELD);
+        if (ttlMillis > 0 && (!(created instanceof Number)
+                || ((Number) created).longValue() + ttlMillis < System.currentTimeMillis())) {
+            return null;
+        }
+        Object value = source.get(RESPONSE_FIELD);
+        if (!(value instanceof String)) {
+            return null;
+        }
+        try {
+            return RosetteResponseCache.deserialize(Base64.getDecoder().decode((String) value), resultType);
+        } catch (Exception e) {
+            LOGGER.debug("Failed to read cached Rosette response", e);
+            return null;
+        }
+    }
+
+    private static final class Lookup {
+        private final String id;
+        private final Consumer<Map<String, Object>> callback;
+
+        private Lookup(String id, Consumer<Map<String, Object>> callback) {
+            this.id = id;
+            this.callback = callback;
+        }
+    }
+}
@@ -0,0 +1,71 @@
+/*
+* Copyright 2022 Basis Technology Corp.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.rosette.elasticsearch;
+
+import java.text.BreakIterator;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Splits long input into chunks that can be analyzed separately. Chunks are cut at the last paragraph break
+ * that leaves them at least half full, failing that at the last sentence boundary, and never in the middle of
+ * a code point.
+ */
+final class TextChunker {
+
+    private TextChunker() {
+    }
+
+    /**
+     * @param text text to split
+     * @param chunkSize most characters in a chunk
+     * @return offsets of the chunks in the text: the start of each chunk, followed by the end of the last one
+     */
+    static int[] split(String text, int chunkSize) {
+        List<Integer> bounds = new ArrayList<>();
+        bounds.add(0);
+        BreakIterator sentences = BreakIterator.getSentenceInstance(Locale.ROOT);
+        sentences.setText(text);
+        int start = 0;
+        while (text.length() - start > chunkSize) {
+            int end = paragraphEnd(text, start, start + chunkSize);
+            if (end < 0) {
+                end = sentences.preceding(start + chunkSize + 1);
+            }
+            if (end == BreakIterator.DONE || end <= start) {
+                end = start + chunkSize;
+                if (Character.isHighSurrogate(text.charAt(end - 1)) && end - 1 > start) {
+                    end--;
+                }
+            }
+            bounds.add(end);
+            start = end;
+        }
+        bounds.add(text.length());
+        int[] offsets = new int[bounds.size()];
+        for (int i = 0; i < offsets.length; i++) {
+            offsets[i] = bounds.get(i);
+        }
+        return offsets;
+    }
+
+    //End of the last line break in the second half of the window, -1 when there is none
+    private static int paragraphEnd(String text, int start, int end) {
+        int lineBreak = text.lastIndexOf('\n', end - 1);
+        return lineBreak >= start + (end - start) / 2 ? lineBreak + 1 : -1;
+    }
+}
@@ -0,0 +1,123 @@
+/*
+* Copyright 2022 Basis Technology Corp.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.rosette.elasticsearch;
+
+import org.elasticsearch.ingest.ConfigurationUtils;
+
+import java.text.BreakIterator;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Trims long input down to a sample for analyses that don't need the whole text (i.e. language identification).
+ * Samples are cut on sentence boundaries where there are some, and never in the middle of a code point.
+ */
+final class TextSampler {
+
+    static final TextSampler WHOLE_TEXT = new TextSampler(0, Strategy.HEAD);
+
+    //Number of windows taken by the spread strategy
+    private static final int SPREAD_WINDOWS = 4;
+    //Fewest characters a sample can be limited to, shorter samples (or the windows of one) say too little to
+    // go on
+    static final int MIN_MAX_CHARS = 100;
+
+    enum Strategy {
+        //Start of the text
+        HEAD,
+        //Start and end of the text
+        HEAD_TAIL,
+        //Windows evenly spread over the text
+        SPREAD
+    }
+
+    private final int maxChars;
+    private final Strategy strategy;
+
+    TextSampler(int maxChars, Strategy strategy) {
+        this.maxChars = maxChars;
+        this.strategy = strategy;
+    }
+
+    /**
+     * Reads the sampling options of a processor, "max_chars" (0 for the whole text, otherwise at least
+     * {@link #MIN_MAX_CHARS}) and "sample_strategy".
+     */
+    static TextSampler readConfig(String processorType, String processorTag, Map<String, Object> config) {
+        int maxChars = ConfigurationUtils.readIntProperty(processorType, processorTag, config, "max_chars", 0);
+        if (maxChars != 0 && maxChars < MIN_MAX_CHARS) {
+            throw ConfigurationUtils.newConfigurationException(processorType, processorTag, "max_chars",
+                    "must be 0 or at least " + MIN_MAX_CHARS);
+        }
+        String strategy = ConfigurationUtils.readStringProperty(processorType, processorTag, config,
+                "sample_strategy", "head");
+        try {
+            return new TextSampler(maxChars, Strategy.valueOf(strategy.toUpperCase(Locale.ROOT)));
+        } catch (IllegalArgumentException e) {
+            throw ConfigurationUtils.newConfigurationException(processorType, processorTag, "sample_strategy",
+                    "must be one of [head, head_tail, spread]");
+        }
+    }
+
+    String sample(String text) {
+        if (maxChars <= 0 || text.length() <= maxChars) {
+            return text;
+        }
+        BreakIterator sentences = BreakIterator.getSentenceInstance(Locale.ROOT);
+        sentences.setText(text);
+        switch (strategy) {
+            case HEAD_TAIL:
+                int headChars = maxChars / 2;
+                return window(text, sentences, 0, headChars) + "\n"
+                        + window(text, sentences, text.length() - (maxChars - headChars), text.length());
+            case SPREAD:
+                int windowChars = maxChars / SPREAD_WINDOWS;
+                StringBuilder sample = new StringBuilder(maxChars + SPREAD_WINDOWS);
+                for (int i = 0; i < SPREAD_WINDOWS; i++) {
+                    int start = (int) ((long) (text.length() - windowChars) * i / (SPREAD_WINDOWS - 1));
+                    if (i > 0) {
+                        sample.append('\n');
+                    }
+                    sample.append(window(text, sentences, start, start + windowChars));
+                }
+                return sample.toString();
+            case HEAD:
+            default:
+                return window(text, sentences, 0, maxChars);
+        }
+    }
+
+    //Text between start and end, narrowed to whole sentences when the window holds at least one
+    private static String window(String text, BreakIterator sentences, int start, int end) {
+        int windowStart = start <= 0 ? 0 : sentences.isBoundary(start) ? start : sentences.following(start);
+        if (windowStart == BreakIterator.DONE || windowStart >= end) {
+            windowStart = codePointStart(text, start);
+        }
+        int windowEnd = end >= text.length() ? text.length() : sentences.preceding(end + 1);
+        if (windowEnd == BreakIterator.DONE || windowEnd <= windowStart) {
+            windowEnd = codePointEnd(text, end);
+        }
+        return text.substring(windowStart, Math.max(windowStart, windowEnd));
+    }
+
+    private static int codePointStart(String text, int offset) {
+        return offset < text.length() && Character.isLowSurrogate(text.charAt(offset)) ? offset + 1 : offset;
+    }
+
+    private static int codePointEnd(String text, int offset) {
+        return offset > 0 && Character.isHighSurrogate(text.charAt(offset - 1)) ? offset - 1 : offset;
+    }
+}
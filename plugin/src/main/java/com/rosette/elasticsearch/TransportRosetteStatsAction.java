@@ -0,0 +1,68 @@
+/*
+* Copyright 2022 Basis Technology Corp.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.rosette.elasticsearch;
+
+import org.elasticsearch.action.FailedNodeException;
+import org.elasticsearch.action.support.ActionFilters;
+import org.elasticsearch.action.support.nodes.TransportNodesAction;
+import org.elasticsearch.cluster.node.DiscoveryNode;
+import org.elasticsearch.cluster.service.ClusterService;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.transport.TransportService;
+
+import java.io.IOException;
+import java.util.List;
+
+public class TransportRosetteStatsAction extends TransportNodesAction<RosetteStatsAction.Request,
+        RosetteStatsAction.Response, RosetteStatsAction.NodeRequest, RosetteStatsAction.NodeResponse> {
+
+    private final RosetteStats stats;
+
+    @Inject
+    public TransportRosetteStatsAction(ThreadPool threadPool, ClusterService clusterService,
+                                       TransportService transportService, ActionFilters actionFilters,
+                                       RosetteStats stats) {
+        super(RosetteStatsAction.NAME, threadPool, clusterService, transportService, actionFilters,
+                RosetteStatsAction.Request::new, RosetteStatsAction.NodeRequest::new, ThreadPool.Names.MANAGEMENT,
+                RosetteStatsAction.NodeResponse.class);
+        this.stats = stats;
+    }
+
+    @Override
+    protected RosetteStatsAction.Response newResponse(RosetteStatsAction.Request request,
+                                                      List<RosetteStatsAction.NodeResponse> nodes,
+                                                      List<FailedNodeException> failures) {
+        return new RosetteStatsAction.Response(clusterService.getClusterName(), nodes, failures);
+    }
+
+    @Override
+    protected RosetteStatsAction.NodeRequest newNodeRequest(RosetteStatsAction.Request request) {
+        return new RosetteStatsAction.NodeRequest();
+    }
+
+    @Override
+    protected RosetteStatsAction.NodeResponse newNodeResponse(StreamInput in, DiscoveryNode node)
+            throws IOException {
+        return new RosetteStatsAction.NodeResponse(in);
+    }
+
+    @Override
+    protected RosetteStatsAction.NodeResponse nodeOperation(RosetteStatsAction.NodeRequest request) {
+        return new RosetteStatsAction.NodeResponse(clusterService.localNode(), stats.snapshot());
+    }
+}
@@ -0,0 +1,60 @@
+/*
+* Copyright 2022 Basis Technology Corp.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.rosette.elasticsearch;
+
+import org.apache.logging.log4j.Logger;
+import org.elasticsearch.common.logging.Loggers;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Virtual threads of JDK 21+, looked up reflectively as the plugin is built for Java 8. A blocking Rosette call
+ * on a virtual thread holds on to no platform thread while it waits for the response, so many more of them can
+ * be in flight than there are threads in a pool.
+ */
+final class VirtualThreads {
+
+    private static final Logger LOGGER = Loggers.getLogger(VirtualThreads.class, VirtualThreads.class.getName());
+
+    private VirtualThreads() {
+    }
+
+    /**
+     * @param namePrefix prefix of the names of the threads, followed by a counter
+     * @return an executor that runs each task on a new virtual thread, or null if the JVM has none
+     */
+    static ExecutorService newExecutor(String namePrefix) {
+        try {
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, namePrefix, 0L);
+            ThreadFactory factory = (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+            return (ExecutorService) Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class)
+                    .invoke(null, factory);
+        } catch (ClassNotFoundException | NoSuchMethodException e) {
+            LOGGER.warn("Virtual threads need JDK 21 or later, Rosette calls run on the [{}] thread pool instead",
+                    RosetteTextAnalysisPlugin.EXECUTOR);
+        } catch (IllegalAccessException | InvocationTargetException | RuntimeException e) {
+            //i.e. a preview JDK that wasn't started with --enable-preview
+            LOGGER.warn("Virtual threads are not available, Rosette calls run on the [{}] thread pool instead",
+                    RosetteTextAnalysisPlugin.EXECUTOR, e);
+        }
+        return null;
+    }
+}
@@ -30,7 +30,7 @@ public class CategoriesProcessorTest extends ESSingleNodeTestCase {
     @Test
     public void testCategories() throws Exception {
         CategoriesProcessor processor = new CategoriesProcessor(new RosetteApiWrapper(), randomUnicodeOfLength(10),
-                "description", "text", "category");
+                "description", "text", "category", null, TextSampler.WHOLE_TEXT);
 
         String inputText = "The people played lots of sports like soccer and hockey. The score was very high. "
                 + "Touchdown!";
@@ -0,0 +1,91 @@
+/*
+* Copyright 2022 Basis Technology Corp.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.rosette.elasticsearch;
+
+import org.elasticsearch.test.ESTestCase;
+import org.hamcrest.MatcherAssert;
+import org.hamcrest.Matchers;
+import org.junit.Test;
+
+public class ConcurrencyLimitTest extends ESTestCase {
+
+    private static final long LATENCY = 1_000_000;
+
+    @Test
+    public void testFixed() {
+        ConcurrencyLimit limit = ConcurrencyLimit.fixed(8);
+        limit.onSample(0, LATENCY, true, 8);
+        MatcherAssert.assertThat(limit.get(), Matchers.equalTo(8));
+    }
+
+    @Test
+    public void testIncrease() {
+        ConcurrencyLimit limit = ConcurrencyLimit.adaptive(4, 6);
+        long now = 0;
+        for (int i = 0; i < 100; i++) {
+            limit.onSample(now, now + LATENCY, false, limit.get());
+            now += LATENCY;
+        }
+        //Grows up to the max
+        MatcherAssert.assertThat(limit.get(), Matchers.equalTo(6));
+    }
+
+    @Test
+    public void testNoIncreaseWhenIdle() {
+        ConcurrencyLimit limit = ConcurrencyLimit.adaptive(8, 16);
+        long now = 0;
+        for (int i = 0; i < 100; i++) {
+            limit.onSample(now, now + LATENCY, false, 1);
+            now += LATENCY;
+        }
+        MatcherAssert.assertThat(limit.get(), Matchers.equalTo(8));
+    }
+
+    @Test
+    public void testPushback() {
+        ConcurrencyLimit limit = ConcurrencyLimit.adaptive(8, 16);
+        limit.onSample(0, LATENCY, true, 8);
+        MatcherAssert.assertThat(limit.get(), Matchers.equalTo(6));
+        //Calls sent before the cut don't cut it again
+        limit.onSample(LATENCY / 2, 2 * LATENCY, true, 8);
+        MatcherAssert.assertThat(limit.get(), Matchers.equalTo(6));
+        limit.onSample(2 * LATENCY, 3 * LATENCY, true, 8);
+        MatcherAssert.assertThat(limit.get(), Matchers.equalTo(4));
+        for (long now = 3 * LATENCY; limit.get() > 1; now += 2 * LATENCY) {
+            limit.onSample(now + LATENCY, now + 2 * LATENCY, true, 8);
+        }
+        //Never below one
+        limit.onSample(100 * LATENCY, 101 * LATENCY, true, 8);
+        MatcherAssert.assertThat(limit.get(), Matchers.equalTo(1));
+    }
+
+    @Test
+    public void testLatency() {
+        ConcurrencyLimit limit = ConcurrencyLimit.adaptive(8, 8);
+        long now = 0;
+        for (int i = 0; i < 100; i++) {
+            limit.onSample(now, now + LATENCY, false, 8);
+            now += LATENCY;
+        }
+        MatcherAssert.assertThat(limit.get(), Matchers.equalTo(8));
+        //Markedly slower calls count as pushback
+        for (int i = 0; i < 20; i++) {
+            limit.onSample(now, now + 10 * LATENCY, false, 8);
+            now += 10 * LATENCY;
+        }
+        MatcherAssert.assertThat(limit.get(), Matchers.lessThan(8));
+    }
+}
@@ -0,0 +1,121 @@
+/*
+* Copyright 2022 Basis Technology Corp.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.rosette.elasticsearch;
+
+import com.basistech.util.LanguageCode;
+import org.elasticsearch.ElasticsearchParseException;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.ingest.IngestDocument;
+import org.elasticsearch.ingest.Processor;
+import org.elasticsearch.ingest.RandomDocumentPicks;
+import org.elasticsearch.test.ESTestCase;
+import org.hamcrest.MatcherAssert;
+import org.hamcrest.Matchers;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class EnrichProcessorTest extends ESTestCase {
+
+    private static EnrichProcessor.Factory factory() {
+        Map<String, Processor.Factory> analyses = new HashMap<>();
+        analyses.put("language", new LanguageProcessor.Factory(null, new LocalLanguageIdentifier()));
+        analyses.put("sentiment", new SentimentProcessor.Factory(null));
+        analyses.put("entities", new EntitiesProcessor.Factory(null, RosetteResponseCache.disabled()));
+        return new EnrichProcessor.Factory(null, analyses);
+    }
+
+    private static Map<String, Object> config(Object analyses) {
+        Map<String, Object> config = new HashMap<>();
+        config.put("field", "text");
+        config.put("analyses", analyses);
+        return config;
+    }
+
+    @Test
+    public void testTargetFields() throws Exception {
+        Map<String, Object> entities = new HashMap<>();
+        entities.put("target_field", "people");
+        Map<String, Object> analyses = new HashMap<>();
+        analyses.put("language", null);
+        analyses.put("entities", entities);
+
+        EnrichProcessor processor = (EnrichProcessor) factory().create(null, "tag", null, config(analyses));
+        MatcherAssert.assertThat(processor.getTargetFields(), Matchers.containsInAnyOrder("ros_language", "people"));
+
+        processor = (EnrichProcessor) factory().create(null, "tag", null,
+                config(Arrays.asList("language", "sentiment")));
+        MatcherAssert.assertThat(processor.getTargetFields(),
+                Matchers.contains("ros_language", "ros_sentiment"));
+    }
+
+    @Test
+    public void testInvalidAnalyses() {
+        expectThrows(ElasticsearchParseException.class, () -> factory().create(null, "tag", null,
+                config(Collections.singletonList("unknown"))));
+        expectThrows(ElasticsearchParseException.class, () -> factory().create(null, "tag", null,
+                config(Collections.emptyList())));
+        expectThrows(ElasticsearchParseException.class, () -> factory().create(null, "tag", null,
+                config(Collections.singletonMap("language", Collections.singletonMap("unknown_option", true)))));
+
+        Map<String, Object> sentiment = new HashMap<>();
+        sentiment.put("target_field", "ros_language");
+        Map<String, Object> analyses = new HashMap<>();
+        analyses.put("language", null);
+        analyses.put("sentiment", sentiment);
+        expectThrows(ElasticsearchParseException.class, () -> factory().create(null, "tag", null,
+                config(analyses)));
+    }
+
+    @Test
+    public void testLanguageFirst() {
+        //Detected locally, so no call is made
+        LanguageProcessor language = new LanguageProcessor(null, "tag", null, "text", "ros_language",
+                TextSampler.WHOLE_TEXT, new LocalLanguageIdentifier(), 0.9);
+        AtomicReference<LanguageCode> hint = new AtomicReference<>();
+        RosetteAbstractProcessor sentiment = new RosetteAbstractProcessor(null, "tag", null, "ros_sentiment", "text",
+                "ros_sentiment") {
+            @Override
+            protected void processDocument(String inputText, IngestDocument ingestDocument,
+                                           ActionListener<Object> listener) {
+                hint.set(documentLanguage(ingestDocument, null));
+                listener.onResponse("pos");
+            }
+        };
+        EnrichProcessor processor = new EnrichProcessor(null, "tag", null, "text", Arrays.asList(sentiment, language));
+        Map<String, Object> document = new HashMap<>();
+        document.put("text", "안녕하세요, 반갑습니다!");
+        IngestDocument ingestDocument = RandomDocumentPicks.randomIngestDocument(random(), document);
+
+        //Analyses leave the document alone, only the enrich processor passes the language on
+        language.processDocument("안녕하세요, 반갑습니다!", ingestDocument, ActionListener.wrap(result -> { }, e -> { }));
+        MatcherAssert.assertThat(ingestDocument.getIngestMetadata().get(RosetteAbstractProcessor.LANGUAGE_HINT),
+                Matchers.nullValue());
+
+        AtomicReference<Object> results = new AtomicReference<>();
+        processor.processDocument("안녕하세요, 반갑습니다!", ingestDocument, ActionListener.wrap(results::set, e -> {
+            throw new AssertionError(e);
+        }));
+        MatcherAssert.assertThat(hint.get(), Matchers.equalTo(LanguageCode.KOREAN));
+        processor.setTargetFields(ingestDocument, results.get());
+        MatcherAssert.assertThat(ingestDocument.getFieldValue("ros_language", String.class), Matchers.equalTo("kor"));
+        MatcherAssert.assertThat(ingestDocument.getFieldValue("ros_sentiment", String.class), Matchers.equalTo("pos"));
+    }
+}
@@ -15,6 +15,7 @@
 */
 package com.rosette.elasticsearch;
 
+import com.basistech.rosette.dm.AnnotatedText;
 import com.basistech.util.LanguageCode;
 import org.elasticsearch.ingest.IngestDocument;
 import org.elasticsearch.ingest.RandomDocumentPicks;
@@ -23,9 +24,12 @@ import org.hamcrest.Matchers;
 import org.hamcrest.MatcherAssert;
 import org.junit.Test;
 
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 public class EntitiesProcessorTest extends ESSingleNodeTestCase {
 
@@ -116,4 +120,56 @@ public class EntitiesProcessorTest extends ESSingleNodeTestCase {
         MatcherAssert.assertThat(entity.get("sentiment"), Matchers.nullValue());
         MatcherAssert.assertThat(entity.get("offsets"), Matchers.nullValue());
     }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testMergeChunks() throws Exception {
+        EntitiesProcessor processor = new EntitiesProcessor(new RosetteApiWrapper(), randomUnicodeOfLength(10),
+                "description", "text", "entities", true, false,
+                LanguageCode.ENGLISH, false, 4, RosetteResponseCache.disabled(), null, 100);
+        int[] offsets = TextChunker.split(INPUTTEXT, 100);
+        AtomicReferenceArray<AnnotatedText> adms = new AtomicReferenceArray<>(offsets.length - 1);
+        for (int i = 0; i < adms.length(); i++) {
+            adms.set(i, chunkAdm(INPUTTEXT.substring(offsets[i], offsets[i + 1])));
+        }
+
+        List<Map<String, Object>> entities = processor.mergeChunks(adms, offsets);
+
+        //Found in several chunks, reported once
+        MatcherAssert.assertThat(entities.size(), Matchers.equalTo(2));
+        Map<String, Object> aykroyd = entities.get(0);
+        MatcherAssert.assertThat(aykroyd.get("entityId"), Matchers.equalTo("Q105221"));
+        MatcherAssert.assertThat(aykroyd.get("count"), Matchers.equalTo(2));
+        Map<String, Object> ghostbusters = entities.get(1);
+        MatcherAssert.assertThat(ghostbusters.get("entityId"), Matchers.equalTo("T0"));
+        MatcherAssert.assertThat(ghostbusters.get("count"), Matchers.equalTo(3));
+        //Offsets of mentions found in later chunks point into the whole text
+        for (Map<String, Object> entity : entities) {
+            for (Map<String, Object> offset : (List<Map<String, Object>>) entity.get("offsets")) {
+                String mention = INPUTTEXT.substring((Integer) offset.get("start"), (Integer) offset.get("end"));
+                MatcherAssert.assertThat(mention, Matchers.equalTo(entity.get("mention")));
+            }
+        }
+    }
+
+    //ADM Rosette returns for a chunk: mentions of Aykroyd, linked to the same entity whichever chunk they're in,
+    // and of Ghostbusters, which isn't linked so its id is only unique within the chunk
+    private static AnnotatedText chunkAdm(String chunk) throws Exception {
+        List<String> items = new ArrayList<>();
+        String[][] entities = {{"Aykroyd", "PERSON", "Q105221"}, {"Ghostbusters", "PRODUCT", "T1"}};
+        for (String[] entity : entities) {
+            List<String> mentions = new ArrayList<>();
+            for (int start = chunk.indexOf(entity[0]); start >= 0; start = chunk.indexOf(entity[0], start + 1)) {
+                mentions.add("{\"startOffset\":" + start + ",\"endOffset\":" + (start + entity[0].length())
+                        + ",\"normalized\":\"" + entity[0] + "\"}");
+            }
+            if (!mentions.isEmpty()) {
+                items.add("{\"mentions\":[" + String.join(",", mentions) + "],\"headMentionIndex\":0,"
+                        + "\"type\":\"" + entity[1] + "\",\"entityId\":\"" + entity[2] + "\"}");
+            }
+        }
+        String adm = "{\"version\":\"1.1.0\",\"data\":\"" + chunk + "\",\"attributes\":{\"entities\":"
+                + "{\"type\":\"list\",\"itemType\":\"entities\",\"items\":[" + String.join(",", items) + "]}}}";
+        return RosetteResponseCache.deserialize(adm.getBytes(StandardCharsets.UTF_8), AnnotatedText.class);
+    }
 }
@@ -0,0 +1,60 @@
+/*
+* Copyright 2022 Basis Technology Corp.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.rosette.elasticsearch;
+
+import org.elasticsearch.test.ESTestCase;
+import org.hamcrest.MatcherAssert;
+import org.hamcrest.Matchers;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+public class HedgePolicyTest extends ESTestCase {
+
+    @Test
+    public void testDelay() {
+        HedgePolicy policy = new HedgePolicy(90, 0.1);
+        //Not enough samples yet
+        MatcherAssert.assertThat(policy.onCall("/entities"), Matchers.equalTo(-1L));
+        for (int i = 1; i <= 100; i++) {
+            policy.onSample("/entities", TimeUnit.MILLISECONDS.toNanos(i));
+        }
+        MatcherAssert.assertThat(policy.onCall("/entities"), Matchers.equalTo(90L));
+        MatcherAssert.assertThat(policy.onCall("/language"), Matchers.equalTo(-1L));
+    }
+
+    @Test
+    public void testBudget() {
+        HedgePolicy policy = new HedgePolicy(90, 0.1);
+        assertFalse(policy.tryHedge());
+        for (int i = 0; i < 10; i++) {
+            policy.onCall("/entities");
+        }
+        //One hedge per ten calls
+        assertTrue(policy.tryHedge());
+        assertFalse(policy.tryHedge());
+    }
+
+    @Test
+    public void testDisabled() {
+        HedgePolicy policy = HedgePolicy.none();
+        for (int i = 1; i <= 100; i++) {
+            policy.onSample("/entities", i);
+        }
+        MatcherAssert.assertThat(policy.onCall("/entities"), Matchers.equalTo(-1L));
+        assertFalse(policy.tryHedge());
+    }
+}
@@ -0,0 +1,146 @@
+/*
+* Copyright 2022 Basis Technology Corp.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.rosette.elasticsearch;
+
+import org.elasticsearch.core.TimeValue;
+import org.elasticsearch.test.ESTestCase;
+import org.hamcrest.MatcherAssert;
+import org.hamcrest.Matchers;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class HostBalancerTest extends ESTestCase {
+
+    private final AtomicLong now = new AtomicLong();
+
+    private HostBalancer balancer(boolean sticky) {
+        return new HostBalancer(Arrays.asList("http://a", "http://b", "http://c"), url -> null, 3,
+                TimeValue.timeValueSeconds(30), sticky, now::get);
+    }
+
+    private String urlFor(HostBalancer balancer, String key) {
+        HostBalancer.Host host = balancer.acquire(key, null);
+        balancer.onSuccess(host);
+        return host.url();
+    }
+
+    @Test
+    public void testSticky() {
+        HostBalancer balancer = balancer(true);
+        Set<String> used = new HashSet<>();
+        for (int i = 0; i < 100; i++) {
+            String key = "key" + i;
+            String url = urlFor(balancer, key);
+            MatcherAssert.assertThat(urlFor(balancer, key), Matchers.equalTo(url));
+            used.add(url);
+        }
+        //Keys are spread over all instances
+        MatcherAssert.assertThat(used.size(), Matchers.equalTo(3));
+    }
+
+    @Test
+    public void testBoundedLoad() {
+        HostBalancer balancer = balancer(true);
+        String url = urlFor(balancer, "key");
+        HostBalancer.Host first = balancer.acquire("key", null);
+        MatcherAssert.assertThat(first.url(), Matchers.equalTo(url));
+        //Over its share of the calls in flight, the calls for the key go to another instance
+        HostBalancer.Host second = balancer.acquire("key", null);
+        MatcherAssert.assertThat(second, Matchers.not(Matchers.sameInstance(first)));
+        MatcherAssert.assertThat(first.outstanding(), Matchers.equalTo(1));
+        MatcherAssert.assertThat(second.outstanding(), Matchers.equalTo(1));
+    }
+
+    @Test
+    public void testLeastOutstanding() {
+        HostBalancer balancer = balancer(false);
+        HostBalancer.Host busy = balancer.acquire(null, null);
+        for (int i = 0; i < 20; i++) {
+            //The busy instance loses against either of the others
+            HostBalancer.Host host = balancer.acquire(null, null);
+            MatcherAssert.assertThat(host, Matchers.not(Matchers.sameInstance(busy)));
+            balancer.onSuccess(host);
+        }
+    }
+
+    @Test
+    public void testAvoid() {
+        HostBalancer balancer = balancer(true);
+        HostBalancer.Host first = balancer.acquire("key", null);
+        HostBalancer.Host hedge = balancer.acquire("key", first);
+        MatcherAssert.assertThat(hedge, Matchers.not(Matchers.sameInstance(first)));
+    }
+
+    @Test
+    public void testEjection() {
+        HostBalancer balancer = balancer(true);
+        String key = "key";
+        HostBalancer.Host failing = balancer.acquire(key, null);
+        balancer.onFailure(failing);
+        for (int i = 0; i < 2; i++) {
+            balancer.onFailure(balancer.acquire(key, null));
+        }
+        //Left out after three failures in a row
+        for (int i = 0; i < 20; i++) {
+            MatcherAssert.assertThat(urlFor(balancer, key), Matchers.not(Matchers.equalTo(failing.url())));
+        }
+
+        //Back once the ejection is over, and out again after a single failure
+        now.addAndGet(TimeValue.timeValueSeconds(30).nanos());
+        HostBalancer.Host back = balancer.acquire(key, null);
+        MatcherAssert.assertThat(back, Matchers.sameInstance(failing));
+        balancer.onFailure(back);
+        MatcherAssert.assertThat(urlFor(balancer, key), Matchers.not(Matchers.equalTo(failing.url())));
+
+        //Until a call to it goes through
+        now.addAndGet(TimeValue.timeValueSeconds(30).nanos());
+        MatcherAssert.assertThat(urlFor(balancer, key), Matchers.equalTo(failing.url()));
+        balancer.onFailure(balancer.acquire(key, null));
+        MatcherAssert.assertThat(urlFor(balancer, key), Matchers.equalTo(failing.url()));
+    }
+
+    @Test
+    public void testAllEjected() {
+        HostBalancer balancer = balancer(false);
+        for (int i = 0; i < 9; i++) {
+            balancer.onFailure(balancer.acquire(null, null));
+        }
+        //Calls still go out, to any of them
+        Set<String> used = new HashSet<>();
+        for (int i = 0; i < 100; i++) {
+            HostBalancer.Host host = balancer.acquire(null, null);
+            balancer.onFailure(host);
+            used.add(host.url());
+        }
+        MatcherAssert.assertThat(used.size(), Matchers.equalTo(3));
+    }
+
+    @Test
+    public void testSingleHost() {
+        HostBalancer balancer = new HostBalancer(Arrays.asList((String) null), url -> null, 3,
+                TimeValue.timeValueSeconds(30), true, now::get);
+        HostBalancer.Host host = balancer.acquire("key", null);
+        for (int i = 0; i < 10; i++) {
+            balancer.onFailure(balancer.acquire("key", host));
+        }
+        //The only instance is never left out, the circuit breaker takes care of it being unavailable
+        MatcherAssert.assertThat(balancer.acquire("key", host), Matchers.sameInstance(host));
+    }
+}
@@ -0,0 +1,84 @@
+/*
+* Copyright 2022 Basis Technology Corp.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.rosette.elasticsearch;
+
+import org.apache.http.HttpVersion;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.message.BasicHttpEntityEnclosingRequest;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.protocol.HttpCoreContext;
+import org.apache.http.util.EntityUtils;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.test.ESTestCase;
+import org.hamcrest.MatcherAssert;
+import org.hamcrest.Matchers;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Map;
+
+public class HttpClientPoolTest extends ESTestCase {
+
+    private static BasicHttpEntityEnclosingRequest request(int length) {
+        BasicHttpEntityEnclosingRequest request = new BasicHttpEntityEnclosingRequest("POST", "/rest/v1/entities");
+        request.setEntity(new StringEntity(randomAlphaOfLength(length), "UTF-8"));
+        return request;
+    }
+
+    @Test
+    public void testCompression() {
+        HttpClientPool.GzipRequestInterceptor interceptor = new HttpClientPool.GzipRequestInterceptor(1024);
+
+        BasicHttpEntityEnclosingRequest small = request(100);
+        interceptor.process(small, null);
+        MatcherAssert.assertThat(small.getEntity().getContentEncoding(), Matchers.nullValue());
+
+        BasicHttpEntityEnclosingRequest large = request(4096);
+        interceptor.process(large, null);
+        MatcherAssert.assertThat(large.getEntity().getContentEncoding().getValue(), Matchers.equalTo("gzip"));
+    }
+
+    @Test
+    public void testStats() throws Exception {
+        try (HttpClientPool pool = new HttpClientPool(Settings.builder()
+                .put(RosetteTextAnalysisPlugin.ROSETTE_HTTP_MAX_CONNECTIONS.getKey(), 12).build())) {
+            MatcherAssert.assertThat(pool.stats().getMax(), Matchers.equalTo(12));
+            MatcherAssert.assertThat(pool.stats().getLeased(), Matchers.equalTo(0));
+        }
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testByteCounting() throws Exception {
+        RosetteStats stats = new RosetteStats();
+        HttpClientPool.ByteCountingInterceptor interceptor = new HttpClientPool.ByteCountingInterceptor(stats);
+        BasicHttpEntityEnclosingRequest request = request(100);
+        interceptor.process(request, null);
+        request.getEntity().writeTo(new ByteArrayOutputStream());
+
+        BasicHttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+        response.setEntity(new StringEntity(randomAlphaOfLength(250), "UTF-8"));
+        HttpCoreContext context = HttpCoreContext.create();
+        context.setAttribute(HttpCoreContext.HTTP_REQUEST, request);
+        interceptor.process(response, context);
+        EntityUtils.toString(response.getEntity());
+
+        Map<String, Object> endpoints = (Map<String, Object>) stats.snapshot().get("endpoints");
+        Map<String, Object> entities = (Map<String, Object>) endpoints.get("/entities");
+        MatcherAssert.assertThat(entities.get("bytes_sent"), Matchers.equalTo(100L));
+        MatcherAssert.assertThat(entities.get("bytes_received"), Matchers.equalTo(250L));
+    }
+}
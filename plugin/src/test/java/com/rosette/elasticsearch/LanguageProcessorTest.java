@@ -30,7 +30,7 @@ public class LanguageProcessorTest extends ESSingleNodeTestCase {
     @Test
     public void testLangId() throws Exception {
         LanguageProcessor processor = new LanguageProcessor(new RosetteApiWrapper(), randomUnicodeOfLength(10),
-                "description", "text", "language");
+                "description", "text", "language", TextSampler.WHOLE_TEXT, new LocalLanguageIdentifier(), 0);
 
         String inputText = "This is a very English document. It should be identified as English.";
 
@@ -42,4 +42,20 @@ public class LanguageProcessorTest extends ESSingleNodeTestCase {
         MatcherAssert.assertThat(ingestDocument.getSourceAndMetadata().get("text"), Matchers.equalTo(inputText));
         MatcherAssert.assertThat(ingestDocument.getSourceAndMetadata().get("language"), Matchers.equalTo("eng"));
     }
+
+    @Test
+    public void testLocalLangId() throws Exception {
+        //Identified without calling Rosette
+        LocalLanguageIdentifier identifier = new LocalLanguageIdentifier();
+        LanguageProcessor processor = new LanguageProcessor(new RosetteApiWrapper(), randomUnicodeOfLength(10),
+                "description", "text", "language", TextSampler.WHOLE_TEXT, identifier, 0.9);
+
+        Map<String, Object> document = new HashMap<>();
+        document.put("text", "안녕하세요, 반갑습니다!");
+        IngestDocument ingestDocument = RandomDocumentPicks.randomIngestDocument(random(), document);
+        processor.execute(ingestDocument);
+
+        MatcherAssert.assertThat(ingestDocument.getSourceAndMetadata().get("language"), Matchers.equalTo("kor"));
+        MatcherAssert.assertThat(identifier.localCount(), Matchers.equalTo(1L));
+    }
 }
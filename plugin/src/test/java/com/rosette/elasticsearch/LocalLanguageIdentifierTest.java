@@ -0,0 +1,67 @@
+/*
+* Copyright 2022 Basis Technology Corp.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.rosette.elasticsearch;
+
+import org.elasticsearch.test.ESTestCase;
+import org.hamcrest.MatcherAssert;
+import org.hamcrest.Matchers;
+import org.junit.Test;
+
+public class LocalLanguageIdentifierTest extends ESTestCase {
+
+    @Test
+    public void testSingleScript() {
+        LocalLanguageIdentifier identifier = new LocalLanguageIdentifier();
+        MatcherAssert.assertThat(identifier.identify("안녕하세요, 반갑습니다!", 0.9), Matchers.equalTo("kor"));
+        MatcherAssert.assertThat(identifier.identify("สวัสดีครับ", 0.9), Matchers.equalTo("tha"));
+        MatcherAssert.assertThat(identifier.identify("Γεια σου κόσμε 2022", 0.9), Matchers.equalTo("ell"));
+        MatcherAssert.assertThat(identifier.identify("東京は日本の首都です。", 0.9), Matchers.equalTo("jpn"));
+        MatcherAssert.assertThat(identifier.localCount(), Matchers.equalTo(4L));
+        MatcherAssert.assertThat(identifier.remoteCount(), Matchers.equalTo(0L));
+    }
+
+    @Test
+    public void testSharedScript() {
+        //Latin, Cyrillic, Chinese and Hebrew characters alone are used by too many languages
+        LocalLanguageIdentifier identifier = new LocalLanguageIdentifier();
+        MatcherAssert.assertThat(identifier.identify("This is a very English document.", 0.5), Matchers.nullValue());
+        MatcherAssert.assertThat(identifier.identify("Привет, мир", 0.5), Matchers.nullValue());
+        MatcherAssert.assertThat(identifier.identify("北京是中国的首都", 0.5), Matchers.nullValue());
+        MatcherAssert.assertThat(identifier.identify("12345 !?", 0.5), Matchers.nullValue());
+        //Hebrew, but could as well be Yiddish
+        MatcherAssert.assertThat(identifier.identify("שלום עולם 2022", 0.5), Matchers.nullValue());
+        //Georgian, but could as well be Mingrelian
+        MatcherAssert.assertThat(identifier.identify("გამარჯობა მსოფლიო", 0.5), Matchers.nullValue());
+        MatcherAssert.assertThat(identifier.localCount(), Matchers.equalTo(0L));
+        MatcherAssert.assertThat(identifier.remoteCount(), Matchers.equalTo(6L));
+    }
+
+    @Test
+    public void testChineseWithKana() {
+        //A single katakana name doesn't make Chinese text Japanese
+        LocalLanguageIdentifier identifier = new LocalLanguageIdentifier();
+        MatcherAssert.assertThat(identifier.identify("北京是中国的首都，也是全国的政治和文化中心。他叫トム。", 0.5),
+                Matchers.nullValue());
+    }
+
+    @Test
+    public void testThreshold() {
+        //Half the letters are Latin
+        LocalLanguageIdentifier identifier = new LocalLanguageIdentifier();
+        MatcherAssert.assertThat(identifier.identify("Samsung 삼성전자", 0.9), Matchers.nullValue());
+        MatcherAssert.assertThat(identifier.identify("Samsung 삼성전자", 0.3), Matchers.equalTo("kor"));
+    }
+}
@@ -0,0 +1,121 @@
+/*
+* Copyright 2022 Basis Technology Corp.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.rosette.elasticsearch;
+
+import org.elasticsearch.common.unit.ByteSizeUnit;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.core.TimeValue;
+import org.elasticsearch.test.ESTestCase;
+import org.hamcrest.MatcherAssert;
+import org.hamcrest.Matchers;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+public class PersistentResponseCacheTest extends ESTestCase {
+
+    private static PersistentResponseCache open(Path directory) throws Exception {
+        //Compaction runs inline so the tests don't have to wait for it
+        return new PersistentResponseCache(directory, new ByteSizeValue(1, ByteSizeUnit.MB),
+                TimeValue.timeValueMinutes(1), Runnable::run);
+    }
+
+    @Test
+    public void testSurvivesRestart() throws Exception {
+        Path directory = createTempDir();
+        try (PersistentResponseCache cache = open(directory)) {
+            cache.put("a", "response a");
+            cache.put("b", "response b");
+            MatcherAssert.assertThat(cache.get("a", String.class), Matchers.equalTo("response a"));
+            MatcherAssert.assertThat(cache.get("c", String.class), Matchers.nullValue());
+        }
+
+        try (PersistentResponseCache cache = open(directory)) {
+            MatcherAssert.assertThat(cache.count(), Matchers.equalTo(2));
+            MatcherAssert.assertThat(cache.get("a", String.class), Matchers.equalTo("response a"));
+            MatcherAssert.assertThat(cache.get("b", String.class), Matchers.equalTo("response b"));
+        }
+    }
+
+    @Test
+    public void testLatestWriteWins() throws Exception {
+        try (PersistentResponseCache cache = open(createTempDir())) {
+            cache.put("a", "first");
+            cache.put("a", "second");
+
+            MatcherAssert.assertThat(cache.count(), Matchers.equalTo(1));
+            MatcherAssert.assertThat(cache.get("a", String.class), Matchers.equalTo("second"));
+        }
+    }
+
+    @Test
+    public void testCompaction() throws Exception {
+        String response = randomAlphaOfLength(1024);
+        try (PersistentResponseCache cache = open(createTempDir())) {
+            //Write well past the size of the log, the oldest entries get dropped to make room
+            for (int i = 0; i < 4096; i++) {
+                cache.put("key" + i, response);
+            }
+
+            MatcherAssert.assertThat(cache.count(), Matchers.lessThan(1024));
+            MatcherAssert.assertThat(cache.get("key0", String.class), Matchers.nullValue());
+            MatcherAssert.assertThat(cache.get("key4095", String.class), Matchers.equalTo(response));
+        }
+    }
+
+    @Test
+    public void testIncompleteCompactionIgnored() throws Exception {
+        Path directory = createTempDir();
+        try (PersistentResponseCache cache = open(directory)) {
+            cache.put("a", "response a");
+        }
+        //What a compaction leaves behind when the node stops before it's done
+        Path temp = directory.resolve("responses-1.log.tmp");
+        Files.write(temp, "partial".getBytes(StandardCharsets.UTF_8));
+
+        try (PersistentResponseCache cache = open(directory)) {
+            MatcherAssert.assertThat(cache.get("a", String.class), Matchers.equalTo("response a"));
+        }
+        MatcherAssert.assertThat(Files.exists(temp), Matchers.equalTo(false));
+    }
+
+    @Test
+    public void testCompactionAfterClose() throws Exception {
+        Path directory = createTempDir();
+        List<Runnable> compactions = new ArrayList<>();
+        String response = randomAlphaOfLength(1024);
+        PersistentResponseCache cache = new PersistentResponseCache(directory, new ByteSizeValue(1, ByteSizeUnit.MB),
+                TimeValue.timeValueMinutes(1), compactions::add);
+        for (int i = 0; compactions.isEmpty(); i++) {
+            cache.put("key" + i, response);
+        }
+        cache.close();
+        compactions.get(0).run();
+
+        //The compaction is dropped, the closed log is still the one a restart picks up
+        try (Stream<Path> files = Files.list(directory)) {
+            MatcherAssert.assertThat(files.count(), Matchers.equalTo(1L));
+        }
+        try (PersistentResponseCache reopened = open(directory)) {
+            MatcherAssert.assertThat(reopened.get("key0", String.class), Matchers.equalTo(response));
+        }
+    }
+}
@@ -0,0 +1,114 @@
+/*
+* Copyright 2022 Basis Technology Corp.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.rosette.elasticsearch;
+
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
+import org.elasticsearch.test.ESTestCase;
+import org.hamcrest.MatcherAssert;
+import org.hamcrest.Matchers;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class RequestBatcherTest extends ESTestCase {
+
+    private final List<Runnable> workers = new ArrayList<>();
+    private final AtomicInteger calls = new AtomicInteger();
+
+    private void submit(RequestBatcher batcher, String endpoint) {
+        batcher.submit(endpoint, () -> {
+            calls.incrementAndGet();
+            return new RequestBatcher.Outcome(0, 1, false);
+        }, ActionListener.wrap(() -> { }));
+    }
+
+    @Test
+    public void testBoundedConcurrency() {
+        RequestBatcher batcher = new RequestBatcher(2, workers::add);
+        for (int i = 0; i < 5; i++) {
+            submit(batcher, "/language");
+        }
+        submit(batcher, "/categories");
+
+        //Two workers for the first endpoint, one for the other, they run everything that was queued
+        MatcherAssert.assertThat(workers.size(), Matchers.equalTo(3));
+        workers.forEach(Runnable::run);
+        MatcherAssert.assertThat(calls.get(), Matchers.equalTo(6));
+    }
+
+    @Test
+    public void testQueueBound() {
+        RequestBatcher batcher = new RequestBatcher(1, 0, 2, workers::add);
+        AtomicReference<Exception> rejection = new AtomicReference<>();
+        for (int i = 0; i < 2; i++) {
+            batcher.submit("/language", () -> RequestBatcher.Outcome.NOT_SENT, ActionListener.wrap(() -> { }));
+        }
+        batcher.submit("/language", () -> RequestBatcher.Outcome.NOT_SENT, ActionListener.wrap(r -> { }, rejection::set));
+
+        //The worker hasn't taken a call yet, so the first two fill the queue
+        MatcherAssert.assertThat(rejection.get(), Matchers.instanceOf(EsRejectedExecutionException.class));
+    }
+
+    @Test
+    public void testRejectionOutsideLock() throws InterruptedException {
+        RequestBatcher batcher = new RequestBatcher(1, 0, 0, workers::add);
+        AtomicReference<Thread> reader = new AtomicReference<>();
+        batcher.submit("/language", () -> RequestBatcher.Outcome.NOT_SENT, ActionListener.wrap(r -> { }, e -> {
+            //Another thread reading the queue would block if the rejection were told under its lock
+            Thread thread = new Thread(batcher::stats);
+            thread.start();
+            reader.set(thread);
+            try {
+                thread.join(10000);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+        }));
+
+        MatcherAssert.assertThat(reader.get().isAlive(), Matchers.equalTo(false));
+    }
+
+    @Test
+    public void testAdaptiveLimit() {
+        RequestBatcher batcher = new RequestBatcher(4, 16, -1, workers::add);
+        for (int i = 0; i < 8; i++) {
+            batcher.submit("/entities", () -> new RequestBatcher.Outcome(0, 1, true), ActionListener.wrap(() -> { }));
+        }
+        MatcherAssert.assertThat(workers.size(), Matchers.equalTo(4));
+        MatcherAssert.assertThat(batcher.getLimit("/entities"), Matchers.equalTo(4));
+
+        //Pushed back on, the limit is cut
+        workers.get(0).run();
+        MatcherAssert.assertThat(batcher.getLimit("/entities"), Matchers.lessThan(4));
+        MatcherAssert.assertThat(batcher.getConcurrency(), Matchers.equalTo(16));
+    }
+
+    @Test
+    public void testUnsentCallsNotSampled() {
+        RequestBatcher batcher = new RequestBatcher(4, 16, -1, workers::add);
+        for (int i = 0; i < 8; i++) {
+            batcher.submit("/entities", () -> RequestBatcher.Outcome.NOT_SENT, ActionListener.wrap(() -> { }));
+        }
+        workers.forEach(Runnable::run);
+
+        //Rejected by the breaker or dropped, none of them tells how Rosette copes, so the limit doesn't grow
+        MatcherAssert.assertThat(batcher.getLimit("/entities"), Matchers.equalTo(4));
+    }
+}
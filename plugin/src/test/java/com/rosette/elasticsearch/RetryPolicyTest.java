@@ -0,0 +1,74 @@
+/*
+* Copyright 2022 Basis Technology Corp.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.rosette.elasticsearch;
+
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpVersion;
+import org.apache.http.message.BasicHttpResponse;
+import org.elasticsearch.core.TimeValue;
+import org.elasticsearch.test.ESTestCase;
+import org.hamcrest.MatcherAssert;
+import org.hamcrest.Matchers;
+import org.junit.Test;
+
+public class RetryPolicyTest extends ESTestCase {
+
+    private final RetryPolicy policy = new RetryPolicy(3, TimeValue.timeValueMillis(100),
+            TimeValue.timeValueSeconds(1));
+
+    @Test
+    public void testBackoff() {
+        for (int i = 0; i < 100; i++) {
+            MatcherAssert.assertThat(policy.delayMillis(0, null), Matchers.lessThan(100L));
+            MatcherAssert.assertThat(policy.delayMillis(2, null), Matchers.lessThan(400L));
+            MatcherAssert.assertThat(policy.delayMillis(2, null), Matchers.greaterThanOrEqualTo(0L));
+        }
+        //Out of retries
+        MatcherAssert.assertThat(policy.delayMillis(3, null), Matchers.equalTo(-1L));
+        MatcherAssert.assertThat(RetryPolicy.none().delayMillis(0, null), Matchers.equalTo(-1L));
+    }
+
+    @Test
+    public void testRetryAfter() {
+        MatcherAssert.assertThat(policy.delayMillis(0, 500L), Matchers.equalTo(500L));
+        //Longer than the longest backoff, not worth waiting for
+        MatcherAssert.assertThat(policy.delayMillis(0, 5000L), Matchers.equalTo(-1L));
+    }
+
+    @Test
+    public void testRetryableStatus() {
+        assertTrue(RetryPolicy.isRetryableStatus(429));
+        assertTrue(RetryPolicy.isRetryableStatus(503));
+        assertFalse(RetryPolicy.isRetryableStatus(400));
+        assertFalse(RetryPolicy.isRetryableStatus(500));
+    }
+
+    @Test
+    public void testRetryAfterHeader() {
+        HttpClientPool.RetryAfterInterceptor interceptor = new HttpClientPool.RetryAfterInterceptor();
+        BasicHttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 429, "Too Many Requests");
+        response.addHeader(HttpHeaders.RETRY_AFTER, "2");
+        interceptor.process(response, null);
+        MatcherAssert.assertThat(HttpClientPool.takeRetryAfter(), Matchers.equalTo(2000L));
+        MatcherAssert.assertThat(HttpClientPool.takeRetryAfter(), Matchers.nullValue());
+
+        //Only throttled responses count
+        response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+        response.addHeader(HttpHeaders.RETRY_AFTER, "2");
+        interceptor.process(response, null);
+        MatcherAssert.assertThat(HttpClientPool.takeRetryAfter(), Matchers.nullValue());
+    }
+}
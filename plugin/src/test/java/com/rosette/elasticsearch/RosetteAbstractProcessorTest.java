@@ -16,6 +16,7 @@
 package com.rosette.elasticsearch;
 
 import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.action.ActionListener;
 import org.elasticsearch.ingest.IngestDocument;
 import org.elasticsearch.ingest.RandomDocumentPicks;
 import org.elasticsearch.test.ESSingleNodeTestCase;
@@ -25,6 +26,10 @@ import org.junit.Test;
 
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class RosetteAbstractProcessorTest extends ESSingleNodeTestCase {
 
@@ -34,8 +39,9 @@ public class RosetteAbstractProcessorTest extends ESSingleNodeTestCase {
         }
 
         @Override
-        public void processDocument(String inputText, IngestDocument ingestDocument) throws Exception {
-            ingestDocument.setFieldValue(targetField, "Processed!");
+        public void processDocument(String inputText, IngestDocument ingestDocument,
+                                    ActionListener<Object> listener) {
+            listener.onResponse("Processed!");
         }
     }
 
@@ -68,4 +74,122 @@ public class RosetteAbstractProcessorTest extends ESSingleNodeTestCase {
         //We expect an exception to be thrown
         processor.execute(ingestDocument);
     }
+
+    @Test
+    public void testAsyncExecute() throws Exception {
+        CountDownLatch responded = new CountDownLatch(1);
+        //Completes the listener from another thread, as a Rosette response callback would
+        RosetteAbstractProcessor processor = new MockProcessor(new RosetteApiWrapper(), randomUnicodeOfLength(10),
+                "description", "text", "target") {
+            @Override
+            public void processDocument(String inputText, IngestDocument ingestDocument,
+                                        ActionListener<Object> listener) {
+                new Thread(() -> {
+                    listener.onResponse("Processed!");
+                    responded.countDown();
+                }).start();
+            }
+        };
+
+        Map<String, Object> document = new HashMap<>();
+        document.put("text", "input text");
+        IngestDocument ingestDocument = RandomDocumentPicks.randomIngestDocument(random(), document);
+        AtomicReference<IngestDocument> result = new AtomicReference<>();
+        CountDownLatch handled = new CountDownLatch(1);
+        processor.execute(ingestDocument, (doc, e) -> {
+            result.set(doc);
+            handled.countDown();
+        });
+
+        assertTrue("Handler was not completed", handled.await(10, TimeUnit.SECONDS));
+        responded.await(10, TimeUnit.SECONDS);
+        MatcherAssert.assertThat(result.get().getSourceAndMetadata().get("target"), Matchers.equalTo("Processed!"));
+    }
+
+    @Test
+    public void testSkipUnchanged() throws Exception {
+        AtomicInteger processed = new AtomicInteger();
+        RosetteAbstractProcessor processor = countingProcessor(processed);
+        processor.setSkipUnchanged(true);
+
+        Map<String, Object> document = new HashMap<>();
+        document.put("text", "input text");
+        IngestDocument ingestDocument = RandomDocumentPicks.randomIngestDocument(random(), document);
+        processor.execute(ingestDocument);
+        MatcherAssert.assertThat(ingestDocument.getFieldValue("target_fingerprint", String.class),
+                Matchers.equalTo(RosetteAbstractProcessor.fingerprint("input text")));
+
+        //Reindexed as it is, the results are kept without processing the document again
+        processor.execute(ingestDocument);
+        MatcherAssert.assertThat(processed.get(), Matchers.equalTo(1));
+        MatcherAssert.assertThat(ingestDocument.getFieldValue("target", String.class), Matchers.equalTo("Processed 1"));
+    }
+
+    @Test(expected = ElasticsearchException.class)
+    public void testSkipUnchangedWithChangedInput() throws Exception {
+        RosetteAbstractProcessor processor = countingProcessor(new AtomicInteger());
+        processor.setSkipUnchanged(true);
+
+        Map<String, Object> document = new HashMap<>();
+        document.put("text", "input text");
+        IngestDocument ingestDocument = RandomDocumentPicks.randomIngestDocument(random(), document);
+        processor.execute(ingestDocument);
+
+        //The results were made from other input, and aren't overwritten
+        ingestDocument.setFieldValue("text", "changed text");
+        processor.execute(ingestDocument);
+    }
+
+    @Test
+    public void testOverwriteChangedInput() throws Exception {
+        AtomicInteger processed = new AtomicInteger();
+        RosetteAbstractProcessor processor = countingProcessor(processed);
+        processor.setSkipUnchanged(true);
+        processor.setOverwrite(true);
+
+        Map<String, Object> document = new HashMap<>();
+        document.put("text", "input text");
+        IngestDocument ingestDocument = RandomDocumentPicks.randomIngestDocument(random(), document);
+        processor.execute(ingestDocument);
+        processor.execute(ingestDocument);
+        MatcherAssert.assertThat(processed.get(), Matchers.equalTo(1));
+
+        ingestDocument.setFieldValue("text", "changed text");
+        processor.execute(ingestDocument);
+        MatcherAssert.assertThat(processed.get(), Matchers.equalTo(2));
+        MatcherAssert.assertThat(ingestDocument.getFieldValue("target", String.class), Matchers.equalTo("Processed 2"));
+        MatcherAssert.assertThat(ingestDocument.getFieldValue("target_fingerprint", String.class),
+                Matchers.equalTo(RosetteAbstractProcessor.fingerprint("changed text")));
+    }
+
+    @Test
+    public void testOverwriteWithoutFingerprint() throws Exception {
+        AtomicInteger processed = new AtomicInteger();
+        RosetteAbstractProcessor processor = countingProcessor(processed);
+        processor.setOverwrite(true);
+
+        Map<String, Object> document = new HashMap<>();
+        document.put("text", "input text");
+        document.put("target", "overwrite me!");
+        document.put("target_fingerprint", RosetteAbstractProcessor.fingerprint("input text"));
+        IngestDocument ingestDocument = RandomDocumentPicks.randomIngestDocument(random(), document);
+        processor.execute(ingestDocument);
+
+        //Without skip_unchanged the fingerprint isn't looked at, and a stale one is dropped
+        MatcherAssert.assertThat(processed.get(), Matchers.equalTo(1));
+        MatcherAssert.assertThat(ingestDocument.getFieldValue("target", String.class), Matchers.equalTo("Processed 1"));
+        assertFalse(ingestDocument.hasField("target_fingerprint"));
+    }
+
+    //Answers with how many documents it processed so far
+    private RosetteAbstractProcessor countingProcessor(AtomicInteger processed) {
+        return new MockProcessor(new RosetteApiWrapper(), randomUnicodeOfLength(10), "description", "text",
+                "target") {
+            @Override
+            public void processDocument(String inputText, IngestDocument ingestDocument,
+                                        ActionListener<Object> listener) {
+                listener.onResponse("Processed " + processed.incrementAndGet());
+            }
+        };
+    }
 }
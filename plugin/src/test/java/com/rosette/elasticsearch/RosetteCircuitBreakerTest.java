@@ -0,0 +1,133 @@
+/*
+* Copyright 2022 Basis Technology Corp.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.rosette.elasticsearch;
+
+import org.elasticsearch.core.TimeValue;
+import org.elasticsearch.ingest.IngestDocument;
+import org.elasticsearch.ingest.RandomDocumentPicks;
+import org.elasticsearch.test.ESTestCase;
+import org.hamcrest.MatcherAssert;
+import org.hamcrest.Matchers;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class RosetteCircuitBreakerTest extends ESTestCase {
+
+    private final AtomicLong now = new AtomicLong();
+
+    private RosetteCircuitBreaker breaker() {
+        return new RosetteCircuitBreaker(3, TimeValue.timeValueSeconds(30), now::get);
+    }
+
+    @Test
+    public void testOpens() {
+        RosetteCircuitBreaker breaker = breaker();
+        breaker.onFailure();
+        breaker.onFailure();
+        breaker.onSuccess();
+        breaker.onFailure();
+        breaker.onFailure();
+        //Only consecutive failures count
+        MatcherAssert.assertThat(breaker.state(), Matchers.equalTo(RosetteCircuitBreaker.State.CLOSED));
+        breaker.onFailure();
+        MatcherAssert.assertThat(breaker.state(), Matchers.equalTo(RosetteCircuitBreaker.State.OPEN));
+        assertTrue(breaker.isOpen());
+        assertFalse(breaker.tryAcquire());
+    }
+
+    @Test
+    public void testHalfOpen() {
+        RosetteCircuitBreaker breaker = breaker();
+        for (int i = 0; i < 3; i++) {
+            breaker.onFailure();
+        }
+        now.addAndGet(TimeValue.timeValueSeconds(30).nanos());
+        assertFalse(breaker.isOpen());
+
+        //A single trial call goes through
+        assertTrue(breaker.tryAcquire());
+        MatcherAssert.assertThat(breaker.state(), Matchers.equalTo(RosetteCircuitBreaker.State.HALF_OPEN));
+        assertFalse(breaker.tryAcquire());
+        assertTrue(breaker.isOpen());
+
+        //It failed, so the breaker stays open for another while
+        breaker.onFailure();
+        MatcherAssert.assertThat(breaker.state(), Matchers.equalTo(RosetteCircuitBreaker.State.OPEN));
+        assertFalse(breaker.tryAcquire());
+
+        now.addAndGet(TimeValue.timeValueSeconds(30).nanos());
+        assertTrue(breaker.tryAcquire());
+        breaker.onSuccess();
+        MatcherAssert.assertThat(breaker.state(), Matchers.equalTo(RosetteCircuitBreaker.State.CLOSED));
+        assertTrue(breaker.tryAcquire());
+    }
+
+    @Test
+    public void testDisabled() {
+        RosetteCircuitBreaker breaker = RosetteCircuitBreaker.disabled();
+        for (int i = 0; i < 100; i++) {
+            breaker.onFailure();
+        }
+        MatcherAssert.assertThat(breaker.state(), Matchers.equalTo(RosetteCircuitBreaker.State.CLOSED));
+    }
+
+    private CategoriesProcessor openProcessor(RosetteAbstractProcessor.OnUnavailable onUnavailable) {
+        RosetteCircuitBreaker breaker = breaker();
+        for (int i = 0; i < 3; i++) {
+            breaker.onFailure();
+        }
+        RosetteApiWrapper rosAPI = new RosetteApiWrapper(null, "http://localhost:1/rest/v1", Runnable::run,
+                RosetteResponseCache.disabled(), RequestBatcher.direct(Runnable::run), null, breaker,
+                RetryPolicy.none(), HedgePolicy.none(), null, new RosetteStats());
+        CategoriesProcessor processor = new CategoriesProcessor(rosAPI, randomAlphaOfLength(10), "description",
+                "text", "category", null, TextSampler.WHOLE_TEXT);
+        processor.setOnUnavailable(onUnavailable);
+        return processor;
+    }
+
+    private IngestDocument document() {
+        Map<String, Object> document = new HashMap<>();
+        document.put("text", "Some text that can't be categorized while Rosette is down.");
+        return RandomDocumentPicks.randomIngestDocument(random(), document);
+    }
+
+    @Test
+    public void testFail() {
+        CategoriesProcessor processor = openProcessor(RosetteAbstractProcessor.OnUnavailable.FAIL);
+        expectThrows(RosetteUnavailableException.class, () -> processor.execute(document()));
+    }
+
+    @Test
+    public void testSkip() throws Exception {
+        CategoriesProcessor processor = openProcessor(RosetteAbstractProcessor.OnUnavailable.SKIP);
+        IngestDocument ingestDocument = processor.execute(document());
+        assertFalse(ingestDocument.hasField("category"));
+        assertFalse(ingestDocument.hasField(RosetteAbstractProcessor.PENDING_FIELD));
+    }
+
+    @Test
+    public void testTag() throws Exception {
+        CategoriesProcessor processor = openProcessor(RosetteAbstractProcessor.OnUnavailable.TAG);
+        IngestDocument ingestDocument = processor.execute(document());
+        assertFalse(ingestDocument.hasField("category"));
+        MatcherAssert.assertThat(ingestDocument.getFieldValue(RosetteAbstractProcessor.PENDING_FIELD, Object.class),
+                Matchers.equalTo(Collections.singletonList(CategoriesProcessor.TYPE)));
+    }
+}
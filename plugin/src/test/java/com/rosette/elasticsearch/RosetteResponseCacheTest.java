@@ -0,0 +1,78 @@
+/*
+* Copyright 2022 Basis Technology Corp.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.rosette.elasticsearch;
+
+import com.basistech.rosette.apimodel.CategoriesResponse;
+import com.basistech.rosette.apimodel.DocumentRequest;
+import com.basistech.rosette.apimodel.LanguageOptions;
+import com.basistech.rosette.apimodel.LanguageResponse;
+import com.basistech.rosette.dm.AnnotatedText;
+import org.elasticsearch.core.TimeValue;
+import org.elasticsearch.test.ESTestCase;
+import org.hamcrest.MatcherAssert;
+import org.hamcrest.Matchers;
+import org.junit.Test;
+
+import static com.basistech.rosette.api.common.AbstractRosetteAPI.CATEGORIES_SERVICE_PATH;
+import static com.basistech.rosette.api.common.AbstractRosetteAPI.LANGUAGE_SERVICE_PATH;
+
+public class RosetteResponseCacheTest extends ESTestCase {
+
+    private static DocumentRequest<LanguageOptions> request(String content) {
+        return DocumentRequest.<LanguageOptions>builder().content(content).build();
+    }
+
+    @Test
+    public void testKey() {
+        String key = RosetteResponseCache.key(LANGUAGE_SERVICE_PATH, request("some text"), LanguageResponse.class);
+
+        //Same call gets the same key, anything else that changes the response gets a different one
+        MatcherAssert.assertThat(RosetteResponseCache.key(LANGUAGE_SERVICE_PATH, request("some text"),
+                LanguageResponse.class), Matchers.equalTo(key));
+        MatcherAssert.assertThat(RosetteResponseCache.key(LANGUAGE_SERVICE_PATH, request("other text"),
+                LanguageResponse.class), Matchers.not(Matchers.equalTo(key)));
+        MatcherAssert.assertThat(RosetteResponseCache.key(CATEGORIES_SERVICE_PATH, request("some text"),
+                CategoriesResponse.class), Matchers.not(Matchers.equalTo(key)));
+        MatcherAssert.assertThat(RosetteResponseCache.key(LANGUAGE_SERVICE_PATH, request("some text"),
+                AnnotatedText.class), Matchers.not(Matchers.equalTo(key)));
+        //The content itself isn't part of the key, only its hash
+        MatcherAssert.assertThat(key, Matchers.not(Matchers.containsString("some text")));
+    }
+
+    @Test
+    public void testBounded() {
+        RosetteResponseCache cache = new RosetteResponseCache(2, TimeValue.timeValueMinutes(1));
+        cache.put("a", "response a");
+        cache.put("b", "response b");
+        cache.get("a");
+        cache.put("c", "response c");
+
+        //Least recently used entry goes first
+        MatcherAssert.assertThat(cache.count(), Matchers.equalTo(2));
+        MatcherAssert.assertThat(cache.get("a"), Matchers.equalTo("response a"));
+        MatcherAssert.assertThat(cache.get("b"), Matchers.nullValue());
+        MatcherAssert.assertThat(cache.get("c"), Matchers.equalTo("response c"));
+    }
+
+    @Test
+    public void testDisabled() {
+        RosetteResponseCache cache = new RosetteResponseCache(0, TimeValue.timeValueMinutes(1));
+        cache.put("a", "response a");
+
+        assertFalse(cache.isEnabled());
+        MatcherAssert.assertThat(cache.get("a"), Matchers.nullValue());
+    }
+}
@@ -0,0 +1,118 @@
+/*
+* Copyright 2022 Basis Technology Corp.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.rosette.elasticsearch;
+
+import org.elasticsearch.Version;
+import org.elasticsearch.cluster.node.DiscoveryNode;
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
+import org.elasticsearch.common.transport.TransportAddress;
+import org.elasticsearch.core.TimeValue;
+import org.elasticsearch.test.ESTestCase;
+import org.hamcrest.MatcherAssert;
+import org.hamcrest.Matchers;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.util.Collections;
+import java.util.Map;
+
+public class RosetteStatsTest extends ESTestCase {
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testProcessors() {
+        RosetteStats stats = new RosetteStats();
+        for (int i = 1; i <= 100; i++) {
+            stats.onProcessed("ros_entities", TimeValue.timeValueMillis(i).nanos(), i % 10 == 0);
+        }
+        Map<String, Object> processors = (Map<String, Object>) stats.snapshot().get("processors");
+        Map<String, Object> entities = (Map<String, Object>) processors.get("ros_entities");
+        MatcherAssert.assertThat(entities.get("count"), Matchers.equalTo(100L));
+        MatcherAssert.assertThat(entities.get("failed"), Matchers.equalTo(10L));
+        Map<String, Object> latency = (Map<String, Object>) entities.get("latency_in_millis");
+        //Histograms keep 3 significant digits
+        MatcherAssert.assertThat((Double) latency.get("p50"), Matchers.closeTo(50, 0.1));
+        MatcherAssert.assertThat((Double) latency.get("p90"), Matchers.closeTo(90, 0.1));
+        MatcherAssert.assertThat((Double) latency.get("max"), Matchers.closeTo(100, 0.1));
+
+        //Counts go on from one snapshot to the next
+        stats.onProcessed("ros_entities", 0, false);
+        processors = (Map<String, Object>) stats.snapshot().get("processors");
+        MatcherAssert.assertThat(((Map<String, Object>) processors.get("ros_entities")).get("count"),
+                Matchers.equalTo(101L));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testEndpoints() {
+        RosetteStats stats = new RosetteStats();
+        stats.onCallStart("/entities");
+        stats.onCallStart("/entities");
+        stats.onCallEnd("/entities", 1000, null);
+        stats.onCallStart("/entities");
+        stats.onCallEnd("/entities", 1000, "429");
+        stats.onCallStart("/entities");
+        stats.onCallEnd("/entities", 1000, RosetteStats.UNREACHABLE);
+
+        Map<String, Object> endpoints = (Map<String, Object>) stats.snapshot().get("endpoints");
+        Map<String, Object> entities = (Map<String, Object>) endpoints.get("/entities");
+        MatcherAssert.assertThat(entities.get("count"), Matchers.equalTo(3L));
+        MatcherAssert.assertThat(entities.get("failed"), Matchers.equalTo(2L));
+        MatcherAssert.assertThat(entities.get("in_flight"), Matchers.equalTo(1L));
+        Map<String, Object> errors = (Map<String, Object>) entities.get("errors");
+        MatcherAssert.assertThat(errors.get("429"), Matchers.equalTo(1L));
+        MatcherAssert.assertThat(errors.get(RosetteStats.UNREACHABLE), Matchers.equalTo(1L));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testCacheAndGauges() {
+        RosetteStats stats = new RosetteStats();
+        stats.onCacheHit(RosetteStats.CacheTier.MEMORY);
+        stats.onCacheHit(RosetteStats.CacheTier.DISK);
+        stats.onCacheHit(RosetteStats.CacheTier.MEMORY);
+        stats.onCacheMiss();
+        stats.addGauge("breaker", () -> "closed");
+
+        Map<String, Object> snapshot = stats.snapshot();
+        Map<String, Object> cache = (Map<String, Object>) snapshot.get("cache");
+        MatcherAssert.assertThat(cache.get("memory_hits"), Matchers.equalTo(2L));
+        MatcherAssert.assertThat(cache.get("disk_hits"), Matchers.equalTo(1L));
+        MatcherAssert.assertThat(cache.get("index_hits"), Matchers.equalTo(0L));
+        MatcherAssert.assertThat(cache.get("misses"), Matchers.equalTo(1L));
+        MatcherAssert.assertThat(cache.get("hit_rate"), Matchers.equalTo(0.75));
+        MatcherAssert.assertThat(snapshot.get("breaker"), Matchers.equalTo("closed"));
+    }
+
+    @Test
+    public void testSerialization() throws Exception {
+        RosetteStats stats = new RosetteStats();
+        stats.onProcessed("ros_language", 1000, false);
+        stats.onCallStart("/language");
+        stats.onCallEnd("/language", 1000, "500");
+        stats.addGauge("hosts", () -> Collections.singletonList(Collections.singletonMap("in_flight", 2)));
+        DiscoveryNode node = new DiscoveryNode("node", new TransportAddress(InetAddress.getLoopbackAddress(), 9300),
+                Version.CURRENT);
+        RosetteStatsAction.NodeResponse response = new RosetteStatsAction.NodeResponse(node, stats.snapshot());
+
+        try (BytesStreamOutput out = new BytesStreamOutput()) {
+            response.writeTo(out);
+            RosetteStatsAction.NodeResponse read = new RosetteStatsAction.NodeResponse(out.bytes().streamInput());
+            MatcherAssert.assertThat(read.getNode(), Matchers.equalTo(node));
+            MatcherAssert.assertThat(read.getStats(), Matchers.equalTo(response.getStats()));
+        }
+    }
+}
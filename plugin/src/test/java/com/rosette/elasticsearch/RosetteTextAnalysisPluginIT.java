@@ -203,6 +203,32 @@ public class RosetteTextAnalysisPluginIT extends ESIntegTestCase {
         MatcherAssert.assertThat(entity.get("mention"), Matchers.equalTo("Original Ghostbuster Dan Aykroyd"));
     }
 
+    //Test that the enrich processor runs several analyses in one pass
+    @Test
+    public void testEnrich() throws Exception {
+
+        String inputText = "Original Ghostbuster Dan Aykroyd, who also co-wrote the 1984 Ghostbusters film, couldn’t "
+                + "be more pleased with the new all-female Ghostbusters cast, telling The Hollywood Reporter, “The "
+                + "Aykroyd family is delighted by this inheritance of the Ghostbusters torch by these most magnificent "
+                + "women in comedy.”";
+
+        SearchResponse response = exercisePipeline(inputText, "enrich");
+
+        //Each analysis writes to the same field as its own processor
+        Map<String, Object> source = response.getHits().getAt(0).getSourceAsMap();
+        MatcherAssert.assertThat(source.get(LanguageProcessor.Parameters.TARGET_FIELD.defaultValue),
+                Matchers.equalTo("eng"));
+        MatcherAssert.assertThat(source.get(CategoriesProcessor.Parameters.TARGET_FIELD.defaultValue),
+                Matchers.equalTo("ARTS_AND_ENTERTAINMENT"));
+        MatcherAssert.assertThat(source.get(SentimentProcessor.Parameters.TARGET_FIELD.defaultValue),
+                Matchers.equalTo("pos"));
+
+        assertFalse(((List)source.get(EntitiesProcessor.Parameters.TARGET_FIELD.defaultValue)).isEmpty());
+        Map entity = (Map)((List)source.get(EntitiesProcessor.Parameters.TARGET_FIELD.defaultValue)).get(0);
+        MatcherAssert.assertThat(entity.get("mention"), Matchers.equalTo("Original Ghostbuster Dan Aykroyd"));
+        assertFalse("Entities are missing offsets", ((List)entity.get("offsets")).isEmpty());
+    }
+
     private SearchResponse exercisePipeline(String inputText, String pipelineName) throws IOException {
 
         //Add the ingest pipeline
@@ -15,6 +15,7 @@
 */
 package com.rosette.elasticsearch;
 
+import com.basistech.util.LanguageCode;
 import org.elasticsearch.ingest.IngestDocument;
 import org.elasticsearch.ingest.RandomDocumentPicks;
 import org.elasticsearch.test.ESSingleNodeTestCase;
@@ -25,12 +26,14 @@ import org.junit.Test;
 import java.util.HashMap;
 import java.util.Map;
 
+import static com.basistech.rosette.api.common.AbstractRosetteAPI.SENTIMENT_SERVICE_PATH;
+
 public class SentimentProcessorTest extends ESSingleNodeTestCase {
 
     @Test
     public void testSentiment() throws Exception {
         SentimentProcessor processor = new SentimentProcessor(new RosetteApiWrapper(), randomUnicodeOfLength(10),
-                "description", "text", "sentiment");
+                "description", "text", "sentiment", null);
 
         String inputText = "I love this sentence so much I want to marry it!";
 
@@ -42,4 +45,26 @@ public class SentimentProcessorTest extends ESSingleNodeTestCase {
         MatcherAssert.assertThat(ingestDocument.getSourceAndMetadata().get("text"), Matchers.equalTo(inputText));
         MatcherAssert.assertThat(ingestDocument.getSourceAndMetadata().get("sentiment"), Matchers.equalTo("pos"));
     }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testReusesEntitySentiment() throws Exception {
+        RosetteApiWrapper rosAPI = new RosetteApiWrapper();
+        EntitiesProcessor entities = new EntitiesProcessor(rosAPI, randomUnicodeOfLength(10), "description", "text",
+                "entities", false, false, LanguageCode.ENGLISH, true);
+        SentimentProcessor processor = new SentimentProcessor(rosAPI, randomUnicodeOfLength(10), "description",
+                "text", "sentiment", null);
+
+        Map<String, Object> document = new HashMap<>();
+        document.put("text", "I love this sentence so much I want to marry it!");
+        IngestDocument ingestDocument = RandomDocumentPicks.randomIngestDocument(random(), document);
+        entities.execute(ingestDocument);
+        processor.execute(ingestDocument);
+
+        MatcherAssert.assertThat(ingestDocument.getSourceAndMetadata().get("sentiment"), Matchers.equalTo("pos"));
+        //The document level label was read from the ADM entity level sentiment already fetched
+        Map<String, Object> endpoints = (Map<String, Object>) rosAPI.getStats().snapshot().get("endpoints");
+        Map<String, Object> sentiment = (Map<String, Object>) endpoints.get(SENTIMENT_SERVICE_PATH);
+        MatcherAssert.assertThat(sentiment.get("count"), Matchers.equalTo(1L));
+    }
 }
@@ -0,0 +1,146 @@
+/*
+* Copyright 2022 Basis Technology Corp.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.rosette.elasticsearch;
+
+import org.elasticsearch.Version;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.ActionResponse;
+import org.elasticsearch.action.ActionType;
+import org.elasticsearch.action.get.MultiGetRequest;
+import org.elasticsearch.core.TimeValue;
+import org.elasticsearch.index.query.RangeQueryBuilder;
+import org.elasticsearch.index.reindex.DeleteByQueryRequest;
+import org.elasticsearch.indices.SystemIndexDescriptor;
+import org.elasticsearch.test.ESTestCase;
+import org.elasticsearch.test.client.NoOpClient;
+import org.hamcrest.MatcherAssert;
+import org.hamcrest.Matchers;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class SharedResponseCacheTest extends ESTestCase {
+
+    @Test
+    public void testId() {
+        String id = SharedResponseCache.id("/language|LanguageResponse|null|null|abc");
+
+        MatcherAssert.assertThat(id.length(), Matchers.equalTo(64));
+        MatcherAssert.assertThat(SharedResponseCache.id("/language|LanguageResponse|null|null|abc"),
+                Matchers.equalTo(id));
+        MatcherAssert.assertThat(SharedResponseCache.id("/language|LanguageResponse|null|null|abd"),
+                Matchers.not(Matchers.equalTo(id)));
+    }
+
+    @Test
+    public void testDescriptor() {
+        SystemIndexDescriptor descriptor = SharedResponseCache.descriptor();
+
+        assertTrue(descriptor.matchesIndexPattern(SharedResponseCache.INDEX));
+        assertTrue(descriptor.isAutomaticallyManaged());
+        assertTrue(descriptor.isInternal());
+        MatcherAssert.assertThat(descriptor.getMappingVersion(), Matchers.equalTo(Version.CURRENT));
+        MatcherAssert.assertThat(descriptor.getIndexFormat(), Matchers.equalTo(SharedResponseCache.INDEX_FORMAT));
+    }
+
+    @Test
+    public void testDeleteExpired() {
+        List<ActionRequest> requests = new ArrayList<>();
+        try (NoOpClient client = new RecordingClient(getTestName(), requests)) {
+            long before = System.currentTimeMillis();
+            new SharedResponseCache(client, TimeValue.timeValueHours(1)).deleteExpired();
+            long after = System.currentTimeMillis();
+
+            MatcherAssert.assertThat(requests.size(), Matchers.equalTo(1));
+            DeleteByQueryRequest request = (DeleteByQueryRequest) requests.get(0);
+            MatcherAssert.assertThat(request.indices(), Matchers.arrayContaining(SharedResponseCache.INDEX));
+            RangeQueryBuilder query = (RangeQueryBuilder) request.getSearchRequest().source().query();
+            MatcherAssert.assertThat(query.fieldName(), Matchers.equalTo(SharedResponseCache.CREATED_FIELD));
+            //Everything written more than the ttl ago is deleted, nothing written since
+            MatcherAssert.assertThat(query.from(), Matchers.nullValue());
+            MatcherAssert.assertThat(query.includeUpper(), Matchers.equalTo(false));
+            MatcherAssert.assertThat((Long) query.to(), Matchers.allOf(
+                    Matchers.greaterThanOrEqualTo(before - TimeValue.timeValueHours(1).millis()),
+                    Matchers.lessThanOrEqualTo(after - TimeValue.timeValueHours(1).millis())));
+            assertFalse(request.isAbortOnVersionConflict());
+        }
+    }
+
+    @Test
+    public void testDeleteExpiredWithoutTtl() {
+        List<ActionRequest> requests = new ArrayList<>();
+        try (NoOpClient client = new RecordingClient(getTestName(), requests)) {
+            new SharedResponseCache(client, TimeValue.ZERO).deleteExpired();
+
+            MatcherAssert.assertThat(requests, Matchers.empty());
+        }
+    }
+
+    @Test
+    public void testBoundedLookupsInFlight() {
+        List<ActionRequest> requests = new ArrayList<>();
+        List<ActionListener<?>> listeners = new ArrayList<>();
+        try (NoOpClient client = new HoldingClient(getTestName(), requests, listeners)) {
+            SharedResponseCache cache = new SharedResponseCache(client, TimeValue.timeValueHours(1));
+            for (int i = 0; i < 10; i++) {
+                cache.get("key" + i, String.class, ActionListener.wrap(() -> { }));
+            }
+
+            //The first lookups go out right away, the rest wait for one of them to be answered
+            MatcherAssert.assertThat(requests.size(), Matchers.equalTo(SharedResponseCache.MAX_LOOKUPS_IN_FLIGHT));
+            listeners.get(0).onFailure(new UnsupportedOperationException());
+            MatcherAssert.assertThat(requests.size(), Matchers.equalTo(SharedResponseCache.MAX_LOOKUPS_IN_FLIGHT + 1));
+            MatcherAssert.assertThat(((MultiGetRequest) requests.get(requests.size() - 1)).getItems().size(),
+                    Matchers.equalTo(10 - SharedResponseCache.MAX_LOOKUPS_IN_FLIGHT));
+        }
+    }
+
+    private static class HoldingClient extends NoOpClient {
+        private final List<ActionRequest> requests;
+        private final List<ActionListener<?>> listeners;
+
+        HoldingClient(String testName, List<ActionRequest> requests, List<ActionListener<?>> listeners) {
+            super(testName);
+            this.requests = requests;
+            this.listeners = listeners;
+        }
+
+        @Override
+        protected <Request extends ActionRequest, Response extends ActionResponse> void doExecute(
+                ActionType<Response> action, Request request, ActionListener<Response> listener) {
+            requests.add(request);
+            listeners.add(listener);
+        }
+    }
+
+    private static class RecordingClient extends NoOpClient {
+        private final List<ActionRequest> requests;
+
+        RecordingClient(String testName, List<ActionRequest> requests) {
+            super(testName);
+            this.requests = requests;
+        }
+
+        @Override
+        protected <Request extends ActionRequest, Response extends ActionResponse> void doExecute(
+                ActionType<Response> action, Request request, ActionListener<Response> listener) {
+            requests.add(request);
+            listener.onFailure(new UnsupportedOperationException());
+        }
+    }
+}
@@ -0,0 +1,57 @@
+/*
+* Copyright 2022 Basis Technology Corp.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.rosette.elasticsearch;
+
+import org.elasticsearch.test.ESTestCase;
+import org.hamcrest.MatcherAssert;
+import org.hamcrest.Matchers;
+import org.junit.Test;
+
+public class TextChunkerTest extends ESTestCase {
+
+    @Test
+    public void testSentences() {
+        String text = "The first sentence is here. The second one follows it. Then comes a third.";
+        int[] offsets = TextChunker.split(text, 60);
+        MatcherAssert.assertThat(offsets.length, Matchers.equalTo(3));
+        MatcherAssert.assertThat(text.substring(offsets[0], offsets[1]),
+                Matchers.equalTo("The first sentence is here. The second one follows it. "));
+        MatcherAssert.assertThat(text.substring(offsets[1], offsets[2]), Matchers.equalTo("Then comes a third."));
+    }
+
+    @Test
+    public void testParagraphs() {
+        //The paragraph break is preferred over the later sentence boundary
+        String text = "A first paragraph, long enough.\nA sentence. And another one that goes on.";
+        int[] offsets = TextChunker.split(text, 50);
+        MatcherAssert.assertThat(offsets[1], Matchers.equalTo(text.indexOf('\n') + 1));
+    }
+
+    @Test
+    public void testCoversText() {
+        String text = randomRealisticUnicodeOfLength(5000);
+        int chunkSize = randomIntBetween(10, 1000);
+        int[] offsets = TextChunker.split(text, chunkSize);
+        MatcherAssert.assertThat(offsets[0], Matchers.equalTo(0));
+        MatcherAssert.assertThat(offsets[offsets.length - 1], Matchers.equalTo(text.length()));
+        for (int i = 1; i < offsets.length; i++) {
+            MatcherAssert.assertThat(offsets[i], Matchers.greaterThan(offsets[i - 1]));
+            MatcherAssert.assertThat(offsets[i] - offsets[i - 1], Matchers.lessThanOrEqualTo(chunkSize));
+            assertFalse("Chunk starts in the middle of a code point",
+                    Character.isLowSurrogate(text.charAt(offsets[i - 1])));
+        }
+    }
+}
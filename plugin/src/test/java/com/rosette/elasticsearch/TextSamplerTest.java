@@ -0,0 +1,83 @@
+/*
+* Copyright 2022 Basis Technology Corp.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.rosette.elasticsearch;
+
+import org.elasticsearch.ElasticsearchParseException;
+import org.elasticsearch.test.ESTestCase;
+import org.hamcrest.MatcherAssert;
+import org.hamcrest.Matchers;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+public class TextSamplerTest extends ESTestCase {
+
+    private static final String TEXT = "The first sentence is here. The second one follows it. "
+            + "Then comes a third. And the fourth is the last one.";
+
+    @Test
+    public void testShortText() {
+        MatcherAssert.assertThat(new TextSampler(1000, TextSampler.Strategy.HEAD).sample(TEXT),
+                Matchers.equalTo(TEXT));
+        MatcherAssert.assertThat(TextSampler.WHOLE_TEXT.sample(TEXT), Matchers.equalTo(TEXT));
+    }
+
+    @Test
+    public void testHead() {
+        //Cut at the end of the last sentence that fits
+        MatcherAssert.assertThat(new TextSampler(60, TextSampler.Strategy.HEAD).sample(TEXT),
+                Matchers.equalTo("The first sentence is here. The second one follows it. "));
+    }
+
+    @Test
+    public void testHeadTail() {
+        String sample = new TextSampler(80, TextSampler.Strategy.HEAD_TAIL).sample(TEXT);
+        MatcherAssert.assertThat(sample, Matchers.startsWith("The first sentence is here. "));
+        MatcherAssert.assertThat(sample, Matchers.endsWith("And the fourth is the last one."));
+        MatcherAssert.assertThat(sample, Matchers.not(Matchers.containsString("second")));
+    }
+
+    @Test
+    public void testSpread() {
+        String text = randomAlphaOfLength(10000);
+        String sample = new TextSampler(1000, TextSampler.Strategy.SPREAD).sample(text);
+        MatcherAssert.assertThat(sample.length(), Matchers.lessThanOrEqualTo(1000 + 3));
+        MatcherAssert.assertThat(sample, Matchers.startsWith(text.substring(0, 250)));
+        MatcherAssert.assertThat(sample, Matchers.endsWith(text.substring(text.length() - 250)));
+    }
+
+    @Test
+    public void testCodePoints() {
+        //Without a sentence boundary to cut on, surrogate pairs are kept whole
+        String text = "a\uD83D\uDE00\uD83D\uDE00\uD83D\uDE00";
+        MatcherAssert.assertThat(new TextSampler(2, TextSampler.Strategy.HEAD).sample(text), Matchers.equalTo("a"));
+    }
+
+    @Test
+    public void testMinimumMaxChars() {
+        //Spread over four windows, a few characters would leave every window empty
+        Map<String, Object> config = new HashMap<>();
+        config.put("max_chars", 3);
+        config.put("sample_strategy", "spread");
+        expectThrows(ElasticsearchParseException.class,
+                () -> TextSampler.readConfig("rosette_language", "tag", config));
+
+        config.put("max_chars", TextSampler.MIN_MAX_CHARS);
+        MatcherAssert.assertThat(TextSampler.readConfig("rosette_language", "tag", config).sample(TEXT),
+                Matchers.containsString("first"));
+    }
+}
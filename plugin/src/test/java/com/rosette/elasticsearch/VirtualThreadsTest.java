@@ -0,0 +1,99 @@
+/*
+* Copyright 2022 Basis Technology Corp.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.rosette.elasticsearch;
+
+import com.basistech.rosette.apimodel.DocumentRequest;
+import com.basistech.rosette.apimodel.LanguageOptions;
+import com.basistech.rosette.apimodel.LanguageResponse;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.test.ESTestCase;
+import org.hamcrest.MatcherAssert;
+import org.hamcrest.Matchers;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+import static com.basistech.rosette.api.common.AbstractRosetteAPI.LANGUAGE_SERVICE_PATH;
+
+public class VirtualThreadsTest extends ESTestCase {
+
+    @Test
+    public void testExecutor() throws Exception {
+        ExecutorService executor = VirtualThreads.newExecutor("rosette-test-");
+        if (executor == null) {
+            //Only JVMs without virtual threads (or with them still in preview) fall back to the thread pool
+            String version = System.getProperty("java.specification.version");
+            MatcherAssert.assertThat(version.startsWith("1.") ? 8 : Integer.parseInt(version), Matchers.lessThan(21));
+            return;
+        }
+        try {
+            Future<Object[]> thread = executor.submit(() -> new Object[] {Thread.currentThread().getName(),
+                    Thread.class.getMethod("isVirtual").invoke(Thread.currentThread())});
+            Object[] result = thread.get(10, TimeUnit.SECONDS);
+            MatcherAssert.assertThat((String) result[0], Matchers.startsWith("rosette-test-"));
+            MatcherAssert.assertThat(result[1], Matchers.equalTo(Boolean.TRUE));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testLimits() {
+        Settings limits = RosetteTextAnalysisPlugin.virtualThreadLimits(Settings.builder()
+                .put(RosetteTextAnalysisPlugin.ROSETTE_HTTP_MAX_CONNECTIONS.getKey(), 100)
+                .build());
+
+        //Defaults are raised, what was set is kept
+        MatcherAssert.assertThat(RosetteTextAnalysisPlugin.ROSETTE_CONCURRENCY.get(limits),
+                Matchers.equalTo(8 * RosetteTextAnalysisPlugin.VIRTUAL_THREADS_LIMIT_SCALE));
+        MatcherAssert.assertThat(RosetteTextAnalysisPlugin.ROSETTE_HTTP_MAX_CONNECTIONS_PER_ROUTE.get(limits),
+                Matchers.equalTo(64 * RosetteTextAnalysisPlugin.VIRTUAL_THREADS_LIMIT_SCALE));
+        MatcherAssert.assertThat(RosetteTextAnalysisPlugin.ROSETTE_HTTP_MAX_CONNECTIONS.get(limits),
+                Matchers.equalTo(100));
+    }
+
+    @Test
+    public void testCompletionsLeaveCallThreads() throws Exception {
+        //Stands in for the virtual threads, which the rest of the pipeline mustn't run on
+        Consumer<Runnable> callExecutor = task -> new Thread(task, "rosette-call").start();
+        RosetteApiWrapper rosAPI = new RosetteApiWrapper(null, "http://localhost:1/rest/v1", callExecutor,
+                RosetteResponseCache.disabled(), RequestBatcher.direct(callExecutor), null,
+                RosetteCircuitBreaker.disabled(), RetryPolicy.none(), HedgePolicy.none(), null, new RosetteStats());
+        rosAPI.setCompletionExecutor(task -> new Thread(task, "rosette-completion").start());
+        AtomicReference<String> thread = new AtomicReference<>();
+        CountDownLatch done = new CountDownLatch(1);
+        DocumentRequest<LanguageOptions> request = DocumentRequest.<LanguageOptions>builder()
+                .content("Called on a thread of its own.").build();
+
+        rosAPI.perform(LANGUAGE_SERVICE_PATH, request, LanguageResponse.class,
+                ActionListener.wrap(response -> {
+                    thread.set(Thread.currentThread().getName());
+                    done.countDown();
+                }, e -> {
+                    thread.set(Thread.currentThread().getName());
+                    done.countDown();
+                }));
+
+        assertTrue(done.await(30, TimeUnit.SECONDS));
+        MatcherAssert.assertThat(thread.get(), Matchers.equalTo("rosette-completion"));
+    }
+}